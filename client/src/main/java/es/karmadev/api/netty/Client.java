@@ -25,16 +25,26 @@ import es.karmadev.api.channel.subscription.event.connection.PreConnectEvent;
 import es.karmadev.api.netty.handler.ClientHandler;
 import es.karmadev.api.netty.handler.DataDecoder;
 import es.karmadev.api.netty.handler.DataEncoder;
+import es.karmadev.api.netty.handler.StreamContext;
 import es.karmadev.api.netty.message.DecMessage;
 import es.karmadev.api.netty.message.MessageBuilder;
+import es.karmadev.api.netty.message.compress.CompressionDictionary;
+import es.karmadev.api.netty.message.compress.CompressionPolicy;
+import es.karmadev.api.netty.message.compress.StreamCompression;
+import es.karmadev.api.netty.message.compress.DeflateCodec;
 import es.karmadev.api.netty.message.nat.Messages;
+import es.karmadev.api.netty.secure.CipherSession;
+import es.karmadev.api.netty.secure.CipherSuite;
+import es.karmadev.api.netty.secure.KeyShareGroup;
 import es.karmadev.api.netty.secure.SecureGen;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
 import lombok.Getter;
+import lombok.NonNull;
 import lombok.Setter;
 import org.jetbrains.annotations.Nullable;
 
@@ -42,10 +52,12 @@ import javax.annotation.concurrent.ThreadSafe;
 import javax.crypto.SecretKey;
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.security.KeyPair;
 import java.security.PublicKey;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.zip.DataFormatException;
@@ -56,6 +68,8 @@ import java.util.zip.DataFormatException;
 @ThreadSafe
 public class Client extends SubscriberImpl implements es.karmadev.api.channel.Client, Writeable {
 
+    private final static long MAX_RETRY_WAIT = TimeUnit.SECONDS.toMillis(30);
+
     private final EventLoopGroup workGroup = new NioEventLoopGroup();
     private final long id = ThreadLocalRandom.current().nextLong();
     private final AtomicBoolean connecting = new AtomicBoolean(false);
@@ -68,8 +82,30 @@ public class Client extends SubscriberImpl implements es.karmadev.api.channel.Cl
     private boolean ready;
     @Getter
     private final Queue<BaseMessage> messageQue = new ArrayDeque<>();
+    @Getter
+    @Setter
+    private int maxFrameLength = DataDecoder.DEFAULT_MAX_FRAME_LENGTH;
+    @Getter
+    @Setter
+    private volatile @NonNull CompressionPolicy compression = CompressionPolicy.DEFAULT;
+    @Getter
+    @Setter
+    private @Nullable StreamCompression streamCompression;
+
+    /**
+     * The times we retry the connection when the
+     * server is busy, before giving up
+     */
+    @Getter
+    @Setter
+    private int maxRetries = 5;
 
     private SecretKey secret;
+    private SocketAddress address;
+    private String accessKey;
+    private int retries;
+    private volatile @Nullable SessionTicket ticket;
+    private byte[] resumeNonce;
     private Thread shutdownHook;
 
     /**
@@ -140,6 +176,22 @@ public class Client extends SubscriberImpl implements es.karmadev.api.channel.Cl
         handle(event);
 
         this.bridgeSupport = (boolean) properties.getOrDefault("bridge", bridge);
+        this.address = address;
+        this.accessKey = key;
+        this.retries = 0;
+
+        open(future);
+        return future;
+    }
+
+    /**
+     * Open the connection to the server
+     *
+     * @param future the connection task, null
+     *               if we are retrying the connection
+     */
+    private void open(final @Nullable CompletableFuture<RemoteServer> future) {
+        String key = accessKey;
 
         Bootstrap bootstrap = new Bootstrap();
         bootstrap.group(workGroup);
@@ -147,19 +199,34 @@ public class Client extends SubscriberImpl implements es.karmadev.api.channel.Cl
         bootstrap.option(ChannelOption.SO_KEEPALIVE, true);
 
         secret = SecureGen.generateSecret();
+        ready = false;
 
         bootstrap.handler(new ChannelInitializer<SocketChannel>() {
             @Override
             protected void initChannel(SocketChannel ch) {
+                /*
+                The server might send its key exchange before our
+                connect listener runs, so the channel must be known
+                before we read anything
+                 */
+                channel = ch;
+
+                /*
+                Messages sent by the server are encrypted with our
+                secret, the ones we send are encrypted with the server
+                secret, once the key exchange is completed
+                 */
+                CipherSession.attach(ch).setDecryptKey(secret);
+
                 ClientHandler handler = new ClientHandler(Client.this, key);
                 DataEncoder encoder = new DataEncoder(((message, channel) -> {
                     try {
-                        return handler.encode(message);
+                        return handler.encode(message, channel);
                     } catch (IOException ex) {
                         throw new RuntimeException(ex);
                     }
                 }));
-                DataDecoder decoder = new DataDecoder();
+                DataDecoder decoder = new DataDecoder(maxFrameLength);
 
                 ch.pipeline().addLast(
                         encoder,
@@ -172,7 +239,16 @@ public class Client extends SubscriberImpl implements es.karmadev.api.channel.Cl
         bootstrap.connect(address).addListener((ChannelFutureListener) channelFuture -> {
             if (channelFuture.isSuccess()) {
                 this.channel = channelFuture.channel();
-                server = new RemoteServer(address, Client.this, channel);
+
+                /*
+                The server rejected us before the key exchange,
+                so the remote server has no state yet
+                 */
+                if (future == null && server != null) {
+                    server.bind(channel);
+                } else {
+                    server = new RemoteServer(address, Client.this, channel);
+                }
 
                 if (shutdownHook != null) {
                     Runtime.getRuntime().removeShutdownHook(shutdownHook);
@@ -191,13 +267,41 @@ public class Client extends SubscriberImpl implements es.karmadev.api.channel.Cl
                 }, "gratefullyClose");
                 Runtime.getRuntime().addShutdownHook(shutdownHook);
 
-                future.complete(server);
-            } else {
+                if (future != null) future.complete(server);
+            } else if (future != null) {
                 future.completeExceptionally(channelFuture.cause());
+            } else {
+                retry(TimeUnit.SECONDS.toMillis(1));
             }
         });
+    }
 
-        return future;
+    /**
+     * Retry the connection, once the server rejects
+     * us because it's busy. The wait grows with each
+     * retry, and is randomized, so the clients the server
+     * rejected at once don't retry at once
+     *
+     * @param retryAfter the time the server told us
+     *                   to wait, in milliseconds
+     * @return if the connection will be retried
+     */
+    public boolean retry(final long retryAfter) {
+        if (!connecting.get() || address == null || retries >= maxRetries) return false;
+
+        /*
+        The wait comes from the server, so it's clamped before
+        growing it, and the shift is small enough to never overflow
+         */
+        long wait = Math.min(MAX_RETRY_WAIT, Math.max(1, retryAfter));
+        long ceiling = Math.min(MAX_RETRY_WAIT, wait << Math.min(retries, 16));
+        long delay = Math.min(MAX_RETRY_WAIT, wait + ThreadLocalRandom.current().nextLong(ceiling + 1));
+        retries++;
+
+        workGroup.schedule(() -> {
+            if (connecting.get()) open(null);
+        }, delay, TimeUnit.MILLISECONDS);
+        return true;
     }
 
     /**
@@ -223,6 +327,33 @@ public class Client extends SubscriberImpl implements es.karmadev.api.channel.Cl
         return bridgeSupport;
     }
 
+    /**
+     * Set the min size a message must have
+     * to be compressed. Smaller messages are
+     * sent raw
+     *
+     * @param threshold the compression threshold
+     */
+    public void setCompressionThreshold(final int threshold) {
+        compression = compression.withThreshold(threshold);
+    }
+
+    /**
+     * Use the preset dictionary sent by the server
+     * on the key exchange. The client only compresses
+     * with it when using the deflate codec, as other codecs
+     * don't support dictionaries
+     *
+     * @param dictionary the server dictionary, or null if
+     *                   the server has no dictionary
+     */
+    public void useServerDictionary(final @Nullable CompressionDictionary dictionary) {
+        if (Objects.equals(compression.getDictionary(), dictionary)) return;
+
+        if (dictionary != null && !(compression.getCodec() instanceof DeflateCodec)) return;
+        compression = compression.withDictionary(dictionary);
+    }
+
     /**
      * Push a message directly to the
      * netty object
@@ -231,7 +362,7 @@ public class Client extends SubscriberImpl implements es.karmadev.api.channel.Cl
      */
     @Override
     public void push(final BaseMessage message) {
-        channel.writeAndFlush(message);
+        channel.writeAndFlush(ReferenceCountUtil.retain(message));
     }
 
     /**
@@ -250,7 +381,7 @@ public class Client extends SubscriberImpl implements es.karmadev.api.channel.Cl
      */
     @Override
     public void addToQue(final BaseMessage message) {
-        messageQue.add(message);
+        messageQue.add(ReferenceCountUtil.retain(message));
     }
 
     /**
@@ -260,8 +391,14 @@ public class Client extends SubscriberImpl implements es.karmadev.api.channel.Cl
      */
     @Override
     public void processQue(final Consumer<BaseMessage> consumer) {
-        messageQue.forEach(consumer);
-        messageQue.clear();
+        BaseMessage message;
+        while ((message = messageQue.poll()) != null) {
+            try {
+                consumer.accept(message);
+            } finally {
+                ReferenceCountUtil.release(message);
+            }
+        }
     }
 
     /**
@@ -291,15 +428,82 @@ public class Client extends SubscriberImpl implements es.karmadev.api.channel.Cl
      * @param serverKey the server key
      */
     public void performKeyExchange(final PublicKey serverKey) {
+        performKeyExchange(serverKey, null);
+    }
+
+    /**
+     * Perform the connection key exchange, sending
+     * the access key along with our key, so the server
+     * doesn't need to request it
+     *
+     * @param serverKey the server key
+     * @param accessKey the access key
+     */
+    public void performKeyExchange(final PublicKey serverKey, final @Nullable String accessKey) {
         if (secret == null) return;
 
         byte[] secured = SecureGen.protectKey(secret, serverKey);
         if (secured == null) throw new RuntimeException("Failed to encode our key with the server key");
 
-        MessageBuilder builder = new MessageBuilder();
+        sendKeyExchange(secured, null, accessKey);
+    }
+
+    /**
+     * Perform the connection key exchange by agreeing
+     * our secret on the server key share, sending the access
+     * key along with our key share
+     *
+     * @param group the key share group
+     * @param serverShare the server key share
+     * @param accessKey the access key
+     */
+    public void performKeyExchange(final KeyShareGroup group, final byte[] serverShare, final @Nullable String accessKey) {
+        KeyPair share = group.generate();
+        byte[] clientShare = share.getPublic().getEncoded();
+
+        SecretKey agreed = SecureGen.deriveSecret(group.agree(share.getPrivate(), serverShare), serverShare, clientShare);
+        if (agreed == null) throw new RuntimeException("Failed to derive our key from the server key share");
+
+        secret = agreed;
+        CipherSession.attach(channel).setDecryptKey(secret);
+
+        sendKeyExchange(clientShare, group, accessKey);
+    }
+
+    /**
+     * Send our key to the server
+     *
+     * @param key our wrapped secret, or our key share
+     * @param group the key share group, null if the
+     *              secret was wrapped with the server key
+     * @param accessKey the access key
+     */
+    private void sendKeyExchange(final byte[] key, final @Nullable KeyShareGroup group, final @Nullable String accessKey) {
+        MessageBuilder builder = MessageBuilder.pooled().compression(compression);
         builder.writeInt64(id);
-        builder.write(secured);
+        builder.write(key);
         builder.writeUTF(SecureGen.SECRET_ALGORITHM);
+        builder.writeBoolean(streamCompression != null);
+
+        /*
+        Servers which support any of our cipher suites
+        answer with a sealed message, older servers ignore
+        the offer
+         */
+        for (CipherSuite suite : CipherSession.attach(channel).offer(secret)) {
+            builder.writeInt16((short) suite.getId());
+        }
+
+        /*
+        Servers which support the pipelined handshake take our
+        access key and push us the discover with their answer,
+        older servers ignore both and request them as usual
+         */
+        if (accessKey != null) builder.write(encode(accessKey.getBytes()));
+        builder.writeBoolean(true);
+        builder.writeBoolean(true); //We take resumption tickets
+
+        if (group != null) builder.writeInt32(group.getId());
 
         try {
             BaseMessage message = builder.build(Messages.KEY_EXCHANGE);
@@ -309,6 +513,85 @@ public class Client extends SubscriberImpl implements es.karmadev.api.channel.Cl
         }
     }
 
+    /**
+     * Resume our previous session with the server,
+     * with the ticket it issued us, instead of performing
+     * the key exchange
+     *
+     * @return if we requested the resume, false if we
+     * have no valid ticket for the server
+     */
+    public boolean resume() {
+        SessionTicket current = ticket;
+        if (current == null || !current.isValid(address)) return false;
+
+        resumeNonce = SecureGen.generateNonce();
+
+        MessageBuilder builder = MessageBuilder.pooled().compression(compression);
+        builder.writeInt64(id);
+        builder.write(current.data);
+        builder.write(resumeNonce);
+        builder.writeBoolean(streamCompression != null);
+        builder.writeBoolean(true);
+        for (CipherSuite suite : CipherSuite.supported()) {
+            builder.writeInt16((short) suite.getId());
+        }
+
+        try {
+            BaseMessage message = builder.build(Messages.RESUME);
+            channel.writeAndFlush(message);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        return true;
+    }
+
+    /**
+     * Complete the resume of our session. Tickets
+     * are used only once, as the server issues us a new
+     * one once the session is resumed
+     *
+     * @param serverNonce the server nonce, null if
+     *                    the server rejected our ticket
+     * @return if the session was resumed
+     */
+    public boolean completeResume(final @Nullable byte[] serverNonce) {
+        SessionTicket current = ticket;
+        byte[] nonce = resumeNonce;
+
+        ticket = null;
+        resumeNonce = null;
+        if (serverNonce == null || current == null || nonce == null) return false;
+
+        SecretKey resumed = SecureGen.deriveResumed(current.resumption, nonce, serverNonce);
+        if (resumed == null) return false;
+
+        secret = resumed;
+
+        CipherSession session = CipherSession.attach(channel);
+        session.setDecryptKey(secret);
+        session.offer(secret);
+
+        return true;
+    }
+
+    /**
+     * Store the session resumption ticket
+     * the server issued us
+     *
+     * @param data the ticket
+     * @param lifetime the ticket lifetime, in milliseconds
+     */
+    public void storeTicket(final byte[] data, final long lifetime) {
+        if (secret == null) return;
+
+        SecretKey resumption = SecureGen.deriveResumption(secret);
+        if (resumption == null) return;
+
+        ticket = new SessionTicket(address, data, resumption, System.currentTimeMillis() + lifetime);
+    }
+
     /**
      * Resolve the encoded data
      *
@@ -317,14 +600,49 @@ public class Client extends SubscriberImpl implements es.karmadev.api.channel.Cl
      * @return the resolved message
      */
     public BaseMessage resolve(final long id, final byte[] encodedData) {
+        return resolve(id, encodedData, null);
+    }
+
+    /**
+     * Resolve the encoded data
+     *
+     * @param id the message type id
+     * @param encodedData the encoded data
+     * @param stream the connection stream context
+     * @return the resolved message
+     */
+    public BaseMessage resolve(final long id, final byte[] encodedData, final @Nullable StreamContext stream) {
         try {
             byte[] resolved = SecureGen.SECRET_PROVIDER
                     .decodeData(encodedData, secret);
 
             System.out.println("Reading: " + Arrays.toString(resolved));
-            return new DecMessage(id, resolved);
+            return new DecMessage(id, resolved, stream);
         } catch (IOException | DataFormatException ex) {
             throw new RuntimeException(ex);
         }
     }
+
+    /**
+     * A session resumption ticket, only
+     * valid for the server which issued it
+     */
+    private static final class SessionTicket {
+
+        private final SocketAddress address;
+        private final byte[] data;
+        private final SecretKey resumption;
+        private final long expiration;
+
+        private SessionTicket(final SocketAddress address, final byte[] data, final SecretKey resumption, final long expiration) {
+            this.address = address;
+            this.data = data;
+            this.resumption = resumption;
+            this.expiration = expiration;
+        }
+
+        private boolean isValid(final SocketAddress address) {
+            return this.address.equals(address) && System.currentTimeMillis() < expiration;
+        }
+    }
 }
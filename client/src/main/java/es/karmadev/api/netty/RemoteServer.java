@@ -26,6 +26,7 @@ import es.karmadev.api.channel.subscription.event.data.direct.MessageEmitEvent;
 import es.karmadev.api.netty.message.MessageBuilder;
 import es.karmadev.api.netty.message.nat.Messages;
 import io.netty.channel.Channel;
+import io.netty.util.ReferenceCountUtil;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import org.jetbrains.annotations.Nullable;
@@ -47,18 +48,21 @@ public class RemoteServer implements es.karmadev.api.channel.com.remote.RemoteSe
 
     private final SocketAddress address;
     private final Client client;
-    private final Channel channel;
+    private volatile Channel channel;
 
     @Getter
     private final ConcurrentWatchdogSet<VirtualChannel> joinedChannels = new ConcurrentWatchdogSet<>();
     @Getter
     private final Set<String> joinAbleChannels = ConcurrentHashMap.newKeySet();
 
+    @Getter
+    private final ChannelRegistry channelRegistry = new ChannelRegistry();
+
     private final Map<String, Consumer<VirtualChannel>> joinListeners = new ConcurrentHashMap<>();
 
     {
         joinedChannels.onAdd((channel) -> {
-            String name = channel.getName();
+            String name = ChannelRegistry.normalize(channel.getName());
             Consumer<VirtualChannel> consumer = joinListeners.remove(name);
             if (consumer == null) return false;
 
@@ -67,6 +71,16 @@ public class RemoteServer implements es.karmadev.api.channel.com.remote.RemoteSe
         });
     }
 
+    /**
+     * Bind the remote server to the connection
+     * we retried after the server rejected us
+     *
+     * @param channel the new connection
+     */
+    void bind(final Channel channel) {
+        this.channel = channel;
+    }
+
     /**
      * Get the server address
      *
@@ -109,8 +123,18 @@ public class RemoteServer implements es.karmadev.api.channel.com.remote.RemoteSe
      */
     @Override
     public @Nullable VirtualChannel getChannel(final String channel) {
-        return joinedChannels.stream().filter((ch) -> ch.getName().equalsIgnoreCase(channel))
-                .findAny().orElse(null);
+        return channelRegistry.get(channel);
+    }
+
+    /**
+     * Get a channel that the current client
+     * is connected to
+     *
+     * @param id the channel id
+     * @return the channel (if we are connected)
+     */
+    public @Nullable VirtualChannel getChannel(final int id) {
+        return channelRegistry.get(id);
     }
 
     /**
@@ -121,17 +145,17 @@ public class RemoteServer implements es.karmadev.api.channel.com.remote.RemoteSe
      */
     @Override
     public CompletableFuture<VirtualChannel> joinChannel(final String channel) {
-        if (joinListeners.containsKey(channel)) throw new RuntimeException("Already trying to join channel");
-
         VirtualChannel joined = getChannel(channel);
         if (joined != null) return CompletableFuture.completedFuture(joined);
 
         CompletableFuture<VirtualChannel> future = new CompletableFuture<>();
-        joinListeners.put(channel, future::complete);
+        if (joinListeners.putIfAbsent(ChannelRegistry.normalize(channel), future::complete) != null)
+            throw new RuntimeException("Already trying to join channel");
 
         try {
-            MessageBuilder builder = new MessageBuilder();
+            MessageBuilder builder = MessageBuilder.pooled().compression(client.getCompression());
             builder.writeUTF(channel);
+            builder.writeBoolean(true); //We read channel keys
 
             BaseMessage message = builder.build(Messages.CHANNEL_JOIN);
             this.channel.writeAndFlush(message);
@@ -154,7 +178,7 @@ public class RemoteServer implements es.karmadev.api.channel.com.remote.RemoteSe
         }
 
         try {
-            MessageBuilder builder = new MessageBuilder();
+            MessageBuilder builder = MessageBuilder.pooled().compression(client.getCompression());
             builder.writeUTF(channel);
 
             BaseMessage message = builder.build(Messages.CHANNEL_LEAVE);
@@ -199,7 +223,7 @@ public class RemoteServer implements es.karmadev.api.channel.com.remote.RemoteSe
 
             if (event.isCancelled()) return;
 
-            channel.writeAndFlush(message);
+            channel.writeAndFlush(ReferenceCountUtil.retain(message)); //The pipeline releases the message once written
         } else {
             client.addToQue(message);
         }
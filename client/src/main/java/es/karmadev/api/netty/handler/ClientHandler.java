@@ -19,7 +19,6 @@ package es.karmadev.api.netty.handler;
  * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
  */
 
-import es.karmadev.api.channel.com.security.SecurityProvider;
 import es.karmadev.api.channel.data.BaseMessage;
 import es.karmadev.api.channel.subscription.event.NetworkEvent;
 import es.karmadev.api.channel.subscription.event.connection.PostConnectEvent;
@@ -30,14 +29,26 @@ import es.karmadev.api.netty.RemoteServer;
 import es.karmadev.api.netty.VirtualChannel;
 import es.karmadev.api.netty.message.DecMessage;
 import es.karmadev.api.netty.message.MessageBuilder;
+import es.karmadev.api.netty.message.MessageView;
+import es.karmadev.api.netty.message.compress.CompressionDictionary;
+import es.karmadev.api.netty.message.compress.CompressionPolicy;
+import es.karmadev.api.netty.message.compress.StreamCompression;
 import es.karmadev.api.netty.message.nat.Messages;
+import es.karmadev.api.netty.message.table.DataTypes;
+import es.karmadev.api.netty.secure.ChannelKey;
+import es.karmadev.api.netty.secure.CipherSession;
+import es.karmadev.api.netty.secure.KeyShareGroup;
 import es.karmadev.api.netty.secure.SecureGen;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandler;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelPipeline;
+import io.netty.util.ReferenceCountUtil;
+import org.jetbrains.annotations.Nullable;
 
-import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.security.KeyFactory;
@@ -46,16 +57,17 @@ import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Arrays;
+import java.util.zip.DataFormatException;
 
 public class ClientHandler extends ChannelInboundHandlerAdapter {
 
     private final Client client;
     private final String accessKey;
 
-    private PublicKey serverKey;
+    private boolean exchanged;
 
-    private String serverAlgo;
-    private SecretKey serverSecret;
+    private KeyShareGroup pendingGroup;
+    private byte[] pendingShare;
 
     public ClientHandler(final Client client, final String accessKey) {
         this.client = client;
@@ -91,126 +103,354 @@ public class ClientHandler extends ChannelInboundHandlerAdapter {
 
         if (msg instanceof BaseMessage) {
             BaseMessage message = (BaseMessage) msg;
-            long id = message.getId();
+            try {
+                handleMessage(ctx, remote, message);
+            } finally {
+                ReferenceCountUtil.release(message);
+            }
+        }
+    }
 
-            if (id == Messages.KEY_EXCHANGE.getId()) {
-                byte[] key = message.getBytes();
-                String algorithm = message.getUTF();
+    /**
+     * Handle a message sent by the server
+     *
+     * @param ctx the channel context
+     * @param remote the remote server
+     * @param message the message
+     * @throws Exception if something goes wrong
+     */
+    private void handleMessage(final ChannelHandlerContext ctx, final RemoteServer remote, final BaseMessage message) throws Exception {
+        long id = message.getId();
+
+        /*
+        Sealed connections only emit opened messages,
+        and channel encoded messages
+         */
+        CipherSession session = CipherSession.get(ctx.channel());
+        if (session != null && session.isSealed() && id != Messages.CHANNEL_ENCODED.getId()) {
+            handleResolved(ctx, remote, session, message);
+            return;
+        }
 
-                if (key == null || algorithm == null) return;
+        if (id == Messages.DISCONNECTION.getId()) {
+            handleDisconnection(message);
+            return;
+        }
 
-                if (serverKey == null) {
-                    serverKey = loadKey(key, algorithm);
-                    if (serverKey != null) {
-                        client.performKeyExchange(serverKey);
-                    }
-                }
+        if (id == Messages.KEY_SHARE.getId()) {
+            MessageView view = MessageView.of(message);
+            if (exchanged || view == null || view.count(DataTypes.INT16) == 0 || view.count(DataTypes.BYTE) == 0) return;
+
+            /*
+            If we don't support the group of the server
+            key share, we wait for its key exchange
+             */
+            KeyShareGroup group = KeyShareGroup.byId(view.getInt16(0));
+            if (group == null || !group.isSupported()) return;
+
+            byte[] dictionary = view.count(DataTypes.BYTE) > 1 ? view.getBytes(1) : null;
+            useServerDictionary(ctx, dictionary != null ? CompressionDictionary.of(dictionary) : null);
+
+            /*
+            If we resume our session, we keep the key share
+            in case the server rejects our ticket
+             */
+            exchanged = true;
+            boolean resumable = view.count(DataTypes.BOOLEAN) > 0 && view.getBoolean(0);
+            if (resumable && client.resume()) {
+                pendingGroup = group;
+                pendingShare = view.getBytes(0);
+            } else {
+                client.performKeyExchange(group, view.getBytes(0), accessKey);
             }
+        }
 
-            if (id == Messages.ENCODED.getId()) {
-                byte[] encodedData = message.getBytes();
-                Long encodedId = message.getInt64();
-                if (encodedId == null) return;
-
-                BaseMessage resolved = client.resolve(encodedId, encodedData);
-                if (resolved == null) return;
-
-                //TODO: Move this to another class
-                if (encodedId == Messages.KEY_EXCHANGE.getId()) {
-                    if (serverAlgo != null && serverSecret != null) return;
-
-                    Boolean requiresAccessKey = resolved.getBoolean();
-                    if (requiresAccessKey != null && requiresAccessKey) {
-                        if (accessKey == null) {
-                            throw new SecurityException("Failed to connect to server. Server required an access key but we provided nothing");
-                        }
-
-                        MessageBuilder builder = new MessageBuilder();
-                        builder.writeInt64(client.getId());
-                        builder.write(client.encode(accessKey.getBytes()));
-                        BaseMessage keyAuth = builder.build(Messages.ACCESS_KEY);
-                        ctx.channel().writeAndFlush(keyAuth); //Write directly to channel, as our client is not ready yet
-
-                        return;
-                    }
-
-                    byte[] serverKey = resolved.getBytes();
-                    String algorithm = resolved.getUTF();
-
-                    if (algorithm == null) return;
-
-                    serverSecret = new SecretKeySpec(serverKey, algorithm);
-                    serverAlgo = algorithm;
-
-                    client.setReady(true);
-                    client.processQue((queMessage) -> client.getServer().write(queMessage));
-
-                    //Do discover
-                    try {
-                        MessageBuilder builder = new MessageBuilder();
-                        BaseMessage request = builder.build(Messages.DISCOVER);
-
-                        remote.write(request);
-                    } catch (IOException ignored) {}
-
-                    return;
-                } else if (encodedId == Messages.DISCOVER.getId()) {
-                    String name;
-                    while ((name = resolved.getUTF()) != null) {
-                        remote.getJoinAbleChannels().add(name);
-                    }
-
-                    /*
-                    This is where the client is ready to communicate
-                    with the server, as now he knows which channels he's
-                    able to join at
-                     */
-                    NetworkEvent event = new PostConnectEvent(remote);
-                    client.handle(event);
-                } else if (encodedId == Messages.CHANNEL_OPEN.getId()) {
-                    String name = resolved.getUTF();
-                    if (name == null) return;
-
-                    remote.getAvailableChannels().add(name);
-                } else if (encodedId == Messages.CHANNEL_CLOSE.getId()) {
-                    String name = resolved.getUTF();
-                    if (name == null) return;
-
-                    remote.getAvailableChannels().remove(name);
-                    VirtualChannel connectedAt = remote.getChannel(name);
-                    if (connectedAt == null) return;
-
-                    remote.getJoinedChannels().remove(connectedAt);
-                } else if (encodedId == Messages.CHANNEL_MESSAGE.getId()) {
-                    String name = resolved.getUTF();
-                    if (name == null) return;
-
-                    VirtualChannel connectedAt = remote.getChannel(name);
-                    if (connectedAt == null) return;
-
-                    Long messageId = resolved.getInt64();
-                    if (messageId == null) return;
-
-                    byte[] messageData = resolved.getBytes();
-                    if (messageData == null) return;
-
-                    DecMessage encoded = new DecMessage(messageId, messageData);
-                    ChannelReceiveEvent event = new ChannelReceiveEvent(connectedAt, encoded);
-                    connectedAt.handle(event);
-
-                    System.out.println("From channel " + name + ": " + encoded);
-                } else if (encodedId == Messages.CHANNEL_JOIN.getId()) {
-                    String name = resolved.getUTF();
-                    if (name == null) return;
-
-                    VirtualChannel instance = new VirtualChannel(client, name);
-                    remote.getJoinedChannels().add(instance);
-                }
+        if (id == Messages.RESUME.getId()) {
+            if (pendingShare == null) return;
+
+            byte[] serverNonce = message.getBytes();
+            if (!client.completeResume(serverNonce)) {
+                client.performKeyExchange(pendingGroup, pendingShare, accessKey);
+            }
+
+            pendingGroup = null;
+            pendingShare = null;
+        }
+
+        if (id == Messages.KEY_EXCHANGE.getId()) {
+            byte[] key = message.getBytes();
+            String algorithm = message.getUTF();
+
+            if (exchanged || key == null || algorithm == null) return;
+
+            byte[] dictionary = message.getBytes();
+            useServerDictionary(ctx, dictionary != null ? CompressionDictionary.of(dictionary) : null);
+
+            PublicKey serverKey = loadKey(key, algorithm);
+            if (serverKey != null) {
+                exchanged = true;
+                client.performKeyExchange(serverKey, accessKey);
+            }
+        }
+
+        if (id == Messages.ENCODED.getId()) {
+            MessageView view = MessageView.of(message);
+            if (session == null || !session.canDecrypt() || view == null
+                    || view.count(DataTypes.INT64) == 0 || view.count(DataTypes.BYTE) == 0) return;
+
+            long encodedId = view.getInt64(0);
+            ByteBuf encodedData = session.decrypt(ctx.alloc(), view.sliceBytes(0));
+
+            BaseMessage resolved;
+            try {
+                resolved = new DecMessage(encodedId, encodedData, StreamContext.get(ctx.channel()));
+            } catch (IOException | DataFormatException | RuntimeException ex) {
+                encodedData.release();
+                throw ex;
+            }
+
+            try {
+                handleResolved(ctx, remote, session, resolved);
+            } finally {
+                ReferenceCountUtil.release(resolved);
+            }
+        }
+
+        if (id == Messages.CHANNEL_ENCODED.getId()) {
+            MessageView view = MessageView.of(message);
+            if (view == null || view.count(DataTypes.INT32) < 2 || view.count(DataTypes.BYTE) == 0) return;
+
+            VirtualChannel connectedAt = remote.getChannel(view.getInt32(0));
+            if (connectedAt == null) return;
+
+            ChannelKey key = connectedAt.getKey(view.getInt32(1));
+            if (key == null) return; //We don't know the key the message was sealed with
+
+            ByteBuf opened = key.open(ctx.alloc(), view.sliceBytes(0));
+
+            DecMessage resolved;
+            try {
+                resolved = new DecMessage(Messages.CHANNEL_MESSAGE.getId(), opened, null, dictionary(ctx));
+            } catch (IOException | DataFormatException | RuntimeException ex) {
+                opened.release();
+                throw ex;
+            }
+
+            try {
+                if (!handleChannelMessage(ctx, remote, resolved)) return;
 
                 NetworkEvent received = new MessageReceiveEvent(resolved);
                 client.handle(received);
+            } finally {
+                resolved.release();
+            }
+        }
+    }
+
+    /**
+     * Handle the server disconnecting us. Servers which
+     * are busy reject us before the handshake completes,
+     * telling us when to retry
+     *
+     * @param message the disconnection message
+     */
+    private void handleDisconnection(final BaseMessage message) {
+        MessageView view = MessageView.of(message);
+        if (client.isReady() || view == null || view.count(DataTypes.INT64) == 0) return;
+
+        long retryAfter = view.getInt64(0);
+        if (retryAfter > 0) client.retry(retryAfter);
+    }
+
+    /**
+     * Handle a message sent by the server, once
+     * decrypted or opened
+     *
+     * @param ctx the channel context
+     * @param remote the remote server
+     * @param session the connection cipher session
+     * @param resolved the decrypted message
+     * @throws Exception if something goes wrong
+     */
+    private void handleResolved(final ChannelHandlerContext ctx, final RemoteServer remote, final CipherSession session,
+                                final BaseMessage resolved) throws Exception {
+        long id = resolved.getId();
+
+        //TODO: Move this to another class
+        if (id == Messages.KEY_EXCHANGE.getId()) {
+            if (client.isReady()) return;
+
+            Boolean requiresAccessKey = resolved.getBoolean();
+            if (requiresAccessKey != null && requiresAccessKey) {
+                if (accessKey == null) {
+                    throw new SecurityException("Failed to connect to server. Server required an access key but we provided nothing");
+                }
+
+                MessageBuilder builder = MessageBuilder.pooled().compression(client.getCompression());
+                builder.writeInt64(client.getId());
+                builder.write(client.encode(accessKey.getBytes()));
+                BaseMessage keyAuth = builder.build(Messages.ACCESS_KEY);
+                ctx.channel().writeAndFlush(keyAuth); //Write directly to channel, as our client is not ready yet
+
+                return;
             }
+
+            byte[] serverKey = resolved.getBytes();
+            String algorithm = resolved.getUTF();
+
+            if (serverKey != null && algorithm != null) {
+                session.setEncryptKey(new SecretKeySpec(serverKey, algorithm));
+            } else if (!session.isSealed()) {
+                return; //Only sealed connections don't receive the server secret
+            }
+
+            Boolean streamAccepted = resolved.getBoolean();
+            StreamCompression streamCompression = client.getStreamCompression();
+            if (Boolean.TRUE.equals(streamAccepted) && streamCompression != null) {
+                StreamContext stream = StreamContext.get(ctx.channel());
+                if (stream != null) stream.startCompressing(streamCompression);
+            }
+
+            client.setReady(true);
+            client.processQue((queMessage) -> client.getServer().write(queMessage));
+
+            /*
+            Servers which support the pipelined handshake
+            already sent us the discover after this message
+             */
+            Boolean discoverPushed = resolved.getBoolean();
+            if (Boolean.TRUE.equals(discoverPushed)) return;
+
+            //Do discover
+            try {
+                MessageBuilder builder = MessageBuilder.pooled().compression(client.getCompression());
+                BaseMessage request = builder.build(Messages.DISCOVER);
+
+                remote.write(request);
+                ReferenceCountUtil.release(request);
+            } catch (IOException ignored) {}
+
+            return;
+        } else if (id == Messages.DISCONNECTION.getId()) {
+            handleDisconnection(resolved);
+            return;
+        } else if (id == Messages.TICKET.getId()) {
+            byte[] ticket = resolved.getBytes();
+            Long lifetime = resolved.getInt64();
+            if (ticket != null && lifetime != null) client.storeTicket(ticket, lifetime);
+
+            return;
+        } else if (id == Messages.DISCOVER.getId()) {
+            String name;
+            while ((name = resolved.getUTF()) != null) {
+                remote.getJoinAbleChannels().add(name);
+            }
+
+            /*
+            This is where the client is ready to communicate
+            with the server, as now he knows which channels he's
+            able to join at
+             */
+            NetworkEvent event = new PostConnectEvent(remote);
+            client.handle(event);
+        } else if (id == Messages.CHANNEL_OPEN.getId()) {
+            String name = resolved.getUTF();
+            if (name == null) return;
+
+            remote.getAvailableChannels().add(name);
+        } else if (id == Messages.CHANNEL_CLOSE.getId()) {
+            String name = resolved.getUTF();
+            if (name == null) return;
+
+            remote.getAvailableChannels().remove(name);
+            VirtualChannel connectedAt = remote.getChannel(name);
+            if (connectedAt == null) return;
+
+            remote.getChannelRegistry().remove(connectedAt);
+            remote.getJoinedChannels().remove(connectedAt);
+        } else if (id == Messages.CHANNEL_MESSAGE.getId()) {
+            if (!handleChannelMessage(ctx, remote, resolved)) return;
+        } else if (id == Messages.CHANNEL_KEY.getId()) {
+            Integer channelId = resolved.getInt32();
+            Integer epoch = resolved.getInt32();
+            byte[] key = resolved.getBytes();
+            if (channelId == null || epoch == null || key == null) return;
+
+            VirtualChannel connectedAt = remote.getChannel(channelId);
+            if (connectedAt == null) return;
+
+            connectedAt.setKey(ChannelKey.of(epoch, key));
+        } else if (id == Messages.CHANNEL_JOIN.getId()) {
+            String name = resolved.getUTF();
+            if (name == null) return;
+
+            /*
+            Servers which don't assign channel ids
+            keep receiving the channel name
+             */
+            Integer channelId = resolved.getInt32();
+            VirtualChannel instance = new VirtualChannel(client, name,
+                    channelId != null ? channelId : VirtualChannel.UNASSIGNED_ID);
+
+            /*
+            Servers which don't support channel keys
+            keep sending the channel messages encrypted
+            with our session key
+             */
+            Integer epoch = resolved.getInt32();
+            byte[] key = resolved.getBytes();
+            if (epoch != null && key != null) {
+                instance.setKey(ChannelKey.of(epoch, key));
+            }
+
+            if (!remote.getChannelRegistry().add(instance)) return; //Already joined
+            remote.getJoinedChannels().add(instance);
+        }
+
+        NetworkEvent received = new MessageReceiveEvent(resolved);
+        client.handle(received);
+    }
+
+    /**
+     * Handle a channel message
+     *
+     * @param ctx the channel context
+     * @param remote the remote server
+     * @param message the channel message
+     * @return if the message was handled
+     * @throws IOException if the channel message fails to decode
+     * @throws DataFormatException if the channel message fails to decompress
+     */
+    private boolean handleChannelMessage(final ChannelHandlerContext ctx, final RemoteServer remote, final BaseMessage message) throws IOException,
+            DataFormatException {
+        VirtualChannel connectedAt;
+
+        Integer channelId = message.getInt32();
+        if (channelId != null) {
+            connectedAt = remote.getChannel(channelId);
+        } else {
+            String name = message.getUTF();
+            if (name == null) return false;
+
+            connectedAt = remote.getChannel(name);
         }
+        if (connectedAt == null) return false;
+
+        Long messageId = message.getInt64();
+        if (messageId == null) return false;
+
+        byte[] messageData = message.getBytes();
+        if (messageData == null) return false;
+
+        DecMessage encoded = new DecMessage(messageId, Unpooled.wrappedBuffer(messageData), null, dictionary(ctx));
+        try {
+            ChannelReceiveEvent event = new ChannelReceiveEvent(connectedAt, encoded);
+            connectedAt.handle(event);
+        } finally {
+            encoded.release();
+        }
+
+        return true;
     }
 
     private PublicKey loadKey(final byte[] data, final String algorithm) throws NoSuchAlgorithmException,
@@ -221,27 +461,59 @@ public class ClientHandler extends ChannelInboundHandlerAdapter {
         return factory.generatePublic(spec);
     }
 
+    /**
+     * Use the server dictionary, both to compress
+     * our messages and to decompress the connection ones
+     *
+     * @param ctx the channel context
+     * @param dictionary the server dictionary
+     */
+    private void useServerDictionary(final ChannelHandlerContext ctx, final @Nullable CompressionDictionary dictionary) {
+        StreamContext stream = StreamContext.get(ctx.channel());
+        if (stream != null) stream.setDictionary(dictionary);
+
+        client.useServerDictionary(dictionary);
+    }
+
+    private static @Nullable CompressionDictionary dictionary(final ChannelHandlerContext ctx) {
+        StreamContext stream = StreamContext.get(ctx.channel());
+        return stream != null ? stream.getDictionary() : null;
+    }
+
     /**
      * Encode a server message
      *
      * @param message the message to encode
+     * @param channel the server connection
      * @return the encoded message
      * @throws IOException if the encoded message fails to
      * build
      */
-    public BaseMessage encode(final BaseMessage message) throws IOException {
+    public BaseMessage encode(final BaseMessage message, final Channel channel) throws IOException {
         if (message.getId() == Messages.ENCODED.getId()) {
             return message;
         }
-        if (serverSecret == null) return message;
-
-        SecurityProvider provider = SecurityProvider.getInstance(serverAlgo);
-        byte[] encoded = provider.encodeData(message.readAll(), serverSecret);
 
-        MessageBuilder encodedBuilder = new MessageBuilder();
-        encodedBuilder.writeInt64(message.getId()); // Original message id
-        encodedBuilder.write(encoded); // Encoded message
-
-        return encodedBuilder.build(Messages.ENCODED);
+        CipherSession session = CipherSession.get(channel);
+        if (session == null || !session.canEncrypt()) return message;
+
+        ByteBuf body = DataEncoder.body(message);
+        ByteBuf encoded = null;
+        try {
+            encoded = session.encrypt(channel.alloc(), body);
+
+            /*
+            The message is already compressed, and the encrypted
+            data is not compressible
+             */
+            MessageBuilder encodedBuilder = MessageBuilder.pooled().compression(CompressionPolicy.NEVER);
+            encodedBuilder.writeInt64(message.getId()); // Original message id
+            encodedBuilder.write(encoded); // Encoded message
+
+            return encodedBuilder.build(Messages.ENCODED);
+        } finally {
+            body.release();
+            if (encoded != null) encoded.release();
+        }
     }
 }
@@ -0,0 +1,199 @@
+package es.karmadev.api.netty;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * Channel registry. Channels are looked up on
+ * every channel message, by their case-insensitive
+ * name or by their id, so lookups never lock, while
+ * channels are created and removed atomically
+ */
+@ThreadSafe
+public final class ChannelRegistry {
+
+    /**
+     * Channel ids below this limit are stored in a
+     * plain array, indexed by the id. Ids are assigned
+     * sequentially, so this covers all the channels
+     * but the ones of long-running servers which keep
+     * creating and removing channels
+     */
+    private final static int DENSE_ID_LIMIT = 1 << 16;
+
+    private final Map<String, VirtualChannel> names = new ConcurrentHashMap<>();
+    private final Collection<VirtualChannel> channels = Collections.unmodifiableCollection(names.values());
+
+    private volatile AtomicReferenceArray<VirtualChannel> denseIds = new AtomicReferenceArray<>(16);
+    private final Map<Integer, VirtualChannel> sparseIds = new ConcurrentHashMap<>();
+
+    /**
+     * Get a channel by its name
+     *
+     * @param name the channel name
+     * @return the channel
+     */
+    public @Nullable VirtualChannel get(final String name) {
+        if (name == null) return null;
+        return names.get(normalize(name));
+    }
+
+    /**
+     * Get a channel by its id
+     *
+     * @param id the channel id
+     * @return the channel
+     */
+    public @Nullable VirtualChannel get(final int id) {
+        AtomicReferenceArray<VirtualChannel> dense = denseIds;
+        if (id >= 0 && id < dense.length()) return dense.get(id);
+
+        return id >= DENSE_ID_LIMIT ? sparseIds.get(id) : null;
+    }
+
+    /**
+     * Get a channel, creating it if there's
+     * no channel with the name
+     *
+     * @param name the channel name
+     * @param factory the channel factory
+     * @return the channel
+     */
+    public VirtualChannel getOrCreate(final @NonNull String name, final @NonNull Function<String, VirtualChannel> factory) {
+        VirtualChannel existing = names.get(normalize(name));
+        if (existing != null) return existing;
+
+        synchronized (this) {
+            return names.computeIfAbsent(normalize(name), (key) -> {
+                VirtualChannel channel = factory.apply(name);
+                index(channel);
+
+                return channel;
+            });
+        }
+    }
+
+    /**
+     * Add a channel
+     *
+     * @param channel the channel
+     * @return if the channel was added, false
+     * if there's already a channel with the name
+     */
+    public synchronized boolean add(final @NonNull VirtualChannel channel) {
+        if (names.putIfAbsent(normalize(channel.getName()), channel) != null) return false;
+
+        index(channel);
+        return true;
+    }
+
+    /**
+     * Remove a channel
+     *
+     * @param channel the channel
+     * @return if the channel was removed
+     */
+    public synchronized boolean remove(final @NonNull VirtualChannel channel) {
+        if (!names.remove(normalize(channel.getName()), channel)) return false;
+
+        int id = channel.getId();
+        if (id == VirtualChannel.UNASSIGNED_ID) return true;
+
+        if (id < DENSE_ID_LIMIT) {
+            AtomicReferenceArray<VirtualChannel> dense = denseIds;
+            if (id >= 0 && id < dense.length()) dense.compareAndSet(id, channel, null);
+        } else {
+            sparseIds.remove(id, channel);
+        }
+
+        return true;
+    }
+
+    /**
+     * Get all the channels
+     *
+     * @return the channels
+     */
+    public Collection<VirtualChannel> values() {
+        return channels;
+    }
+
+    /**
+     * Get the amount of channels
+     *
+     * @return the amount of channels
+     */
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Index a channel by its id. Writers
+     * are serialized, so the dense array can
+     * be grown without losing entries
+     *
+     * @param channel the channel
+     */
+    private void index(final VirtualChannel channel) {
+        int id = channel.getId();
+        if (id == VirtualChannel.UNASSIGNED_ID) return;
+        if (id < 0) throw new IllegalArgumentException("Invalid channel id " + id);
+
+        if (id >= DENSE_ID_LIMIT) {
+            sparseIds.put(id, channel);
+            return;
+        }
+
+        AtomicReferenceArray<VirtualChannel> dense = denseIds;
+        if (id >= dense.length()) {
+            int length = dense.length();
+            while (length <= id) length <<= 1;
+
+            AtomicReferenceArray<VirtualChannel> grown = new AtomicReferenceArray<>(length);
+            for (int i = 0; i < dense.length(); i++) grown.lazySet(i, dense.get(i));
+
+            denseIds = dense = grown;
+        }
+
+        dense.set(id, channel);
+    }
+
+    /**
+     * Normalize a channel name, so channel
+     * names are case-insensitive
+     *
+     * @param name the channel name
+     * @return the normalized name
+     */
+    public static String normalize(final @NonNull String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -23,11 +23,20 @@ import es.karmadev.api.channel.com.remote.RemoteClient;
 import es.karmadev.api.channel.data.BaseMessage;
 import es.karmadev.api.netty.message.MessageBuilder;
 import es.karmadev.api.netty.message.nat.Messages;
+import es.karmadev.api.netty.secure.ChannelKey;
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import lombok.Getter;
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.annotation.concurrent.ThreadSafe;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a virtual channel
@@ -36,15 +45,88 @@ import java.util.*;
 @ThreadSafe
 public class VirtualChannel extends SubscriberImpl implements es.karmadev.api.channel.VirtualChannel {
 
+    /**
+     * The id of the channels which have not
+     * been assigned an id by the server
+     */
+    public final static int UNASSIGNED_ID = 0;
+
+    private final Map<RemoteClient, Channel> connections = new ConcurrentHashMap<>();
+
+    /**
+     * The netty channels of the channel connections,
+     * closed channels are removed automatically
+     */
     @Getter
-    private final Queue<RemoteClient> connections = new ArrayDeque<>();
+    private final ChannelGroup members;
 
     private final Writeable writeable;
     private final String name;
 
+    /**
+     * The channel id, assigned by the server. Channel
+     * messages carry the id instead of the channel name
+     * when the channel has one
+     */
+    @Getter
+    private final int id;
+
+    /*
+    The previous key is kept, so messages encrypted
+    right before a key rotation can still be read
+     */
+    private volatile ChannelKey key;
+    private volatile ChannelKey previousKey;
+    private volatile boolean keyStale;
+
     public VirtualChannel(final Writeable writeable, final String name) {
+        this(writeable, name, UNASSIGNED_ID);
+    }
+
+    public VirtualChannel(final Writeable writeable, final String name, final int id) {
         this.writeable = writeable;
         this.name = name;
+        this.id = id;
+        this.members = new DefaultChannelGroup(name, GlobalEventExecutor.INSTANCE);
+    }
+
+    /**
+     * Get the clients connected
+     * on the channel
+     *
+     * @return the channel connections
+     */
+    public Set<RemoteClient> getConnections() {
+        return Collections.unmodifiableSet(connections.keySet());
+    }
+
+    /**
+     * Add a client to the channel
+     *
+     * @param client the client
+     * @param channel the client netty channel
+     * @return if the client was added, false if
+     * the client was already connected
+     */
+    public boolean join(final @NonNull RemoteClient client, final @NonNull Channel channel) {
+        if (connections.putIfAbsent(client, channel) != null) return false;
+
+        members.add(channel);
+        return true;
+    }
+
+    /**
+     * Remove a client from the channel
+     *
+     * @param client the client
+     * @return if the client was removed
+     */
+    public boolean leave(final @NonNull RemoteClient client) {
+        Channel channel = connections.remove(client);
+        if (channel == null) return false;
+
+        members.remove(channel);
+        return true;
     }
 
     /**
@@ -57,6 +139,78 @@ public class VirtualChannel extends SubscriberImpl implements es.karmadev.api.ch
         return name;
     }
 
+    /**
+     * Get the current channel key
+     *
+     * @return the channel key
+     */
+    public @Nullable ChannelKey getKey() {
+        return key;
+    }
+
+    /**
+     * Get the channel key of the epoch
+     *
+     * @param epoch the key epoch
+     * @return the channel key, or null if the
+     * key is not known or has been discarded
+     */
+    public @Nullable ChannelKey getKey(final int epoch) {
+        ChannelKey current = key;
+        if (current != null && current.getEpoch() == epoch) return current;
+
+        ChannelKey previous = previousKey;
+        if (previous != null && previous.getEpoch() == epoch) return previous;
+
+        return null;
+    }
+
+    /**
+     * Set the channel key
+     *
+     * @param key the new channel key
+     */
+    public synchronized void setKey(final @NonNull ChannelKey key) {
+        ChannelKey current = this.key;
+        if (current != null && current.getEpoch() == key.getEpoch()) return;
+
+        this.previousKey = current;
+        this.key = key;
+    }
+
+    /**
+     * Replace the channel key with a
+     * new random key
+     *
+     * @return the new channel key
+     */
+    public synchronized ChannelKey rotateKey() {
+        ChannelKey current = this.key;
+        ChannelKey rotated = ChannelKey.generate(current == null ? 1 : current.getEpoch() + 1);
+        setKey(rotated);
+        keyStale = false;
+
+        return rotated;
+    }
+
+    /**
+     * Mark the channel key as stale, so it's
+     * rotated before it seals another message
+     */
+    public void invalidateKey() {
+        keyStale = true;
+    }
+
+    /**
+     * Get if the channel key must be rotated
+     * before it seals another message
+     *
+     * @return if the key is stale
+     */
+    public boolean isKeyStale() {
+        return keyStale;
+    }
+
     /**
      * Write a message to the clients
      * connected on the channel
@@ -66,19 +220,25 @@ public class VirtualChannel extends SubscriberImpl implements es.karmadev.api.ch
     @Override
     public void write(final BaseMessage message) {
         try {
-            MessageBuilder channelAppender = new MessageBuilder();
-            channelAppender.writeUTF(name);
+            MessageBuilder channelAppender = MessageBuilder.pooled().compression(writeable.getCompression());
+            if (id != UNASSIGNED_ID) {
+                channelAppender.writeInt32(id);
+            } else {
+                channelAppender.writeUTF(name);
+            }
             channelAppender.writeInt64(message.getId());
             channelAppender.write(message.readAll());
             BaseMessage channeledMessage = channelAppender
                     .build(Messages.CHANNEL_MESSAGE);
 
-            System.out.println("Writing: " + Arrays.toString(message.readAll()));
-
-            if (writeable.isReady()) {
-                writeable.push(channeledMessage);
-            } else {
-                writeable.addToQue(channeledMessage);
+            try {
+                if (writeable.isReady()) {
+                    writeable.push(this, channeledMessage);
+                } else {
+                    writeable.addToQue(channeledMessage);
+                }
+            } finally {
+                ReferenceCountUtil.release(channeledMessage);
             }
         } catch (IOException ex) {
             throw new RuntimeException(ex);
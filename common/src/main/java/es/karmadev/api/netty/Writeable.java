@@ -20,6 +20,7 @@ package es.karmadev.api.netty;
  */
 
 import es.karmadev.api.channel.data.BaseMessage;
+import es.karmadev.api.netty.message.compress.CompressionPolicy;
 
 import java.io.Closeable;
 import java.util.function.Consumer;
@@ -38,6 +39,17 @@ public interface Writeable extends Closeable {
      */
     void push(final BaseMessage message);
 
+    /**
+     * Push a channel message to the members
+     * of the channel
+     *
+     * @param channel the channel
+     * @param message the message
+     */
+    default void push(final VirtualChannel channel, final BaseMessage message) {
+        push(message);
+    }
+
     /**
      * Get if the writeable object
      * is ready to process elements
@@ -66,4 +78,12 @@ public interface Writeable extends Closeable {
      * @param consumer the message consumer
      */
     void processQue(final Consumer<BaseMessage> consumer);
+
+    /**
+     * Get the compression policy used
+     * when building messages
+     *
+     * @return the compression policy
+     */
+    CompressionPolicy getCompression();
 }
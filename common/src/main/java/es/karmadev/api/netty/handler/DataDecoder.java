@@ -20,21 +20,127 @@ package es.karmadev.api.netty.handler;
  */
 
 import es.karmadev.api.netty.message.DecMessage;
+import es.karmadev.api.netty.message.nat.Messages;
+import es.karmadev.api.netty.secure.CipherSession;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
 
 import java.util.List;
 
+/**
+ * Frame decoder. Each frame is prefixed by its
+ * length, so a message is only emitted once all of
+ * its bytes have been received, no matter how the
+ * transport splits or merges the writes
+ * [
+ *  [length=int32],
+ *  [id=int64],
+ *  [data=length - 8]
+ * ]
+ * Sealed records are opened in place, and emitted as
+ * the message they seal. Once a connection is sealed,
+ * any other frame but channel encoded messages closes
+ * the connection
+ */
 public class DataDecoder extends ByteToMessageDecoder {
 
+    /**
+     * The size of the length prefix
+     */
+    public final static int LENGTH_FIELD_SIZE = Integer.BYTES;
+
+    /**
+     * The default max frame length (8MB)
+     */
+    public final static int DEFAULT_MAX_FRAME_LENGTH = 8 * 1024 * 1024;
+
+    private final int maxFrameLength;
+
+    /**
+     * Create a new data decoder
+     */
+    public DataDecoder() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Create a new data decoder
+     *
+     * @param maxFrameLength the max length a frame
+     *                       can have, excluding the length
+     *                       prefix
+     */
+    public DataDecoder(final int maxFrameLength) {
+        if (maxFrameLength < Long.BYTES) throw new IllegalArgumentException("Max frame length must be at least " + Long.BYTES);
+        this.maxFrameLength = maxFrameLength;
+    }
+
     @Override
-    protected void decode(ChannelHandlerContext ctx, ByteBuf byteBuf, List<Object> out) throws Exception {
-        long id = byteBuf.readLong();
-        byte[] data = new byte[byteBuf.readableBytes()];
-        byteBuf.readBytes(data);
+    public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+        StreamContext.attach(ctx.channel());
+        super.handlerAdded(ctx);
+    }
+
+    @Override
+    public void channelInactive(final ChannelHandlerContext ctx) throws Exception {
+        try {
+            super.channelInactive(ctx);
+        } finally {
+            StreamContext.detach(ctx.channel());
+        }
+    }
+
+    @Override
+    protected void decode(final ChannelHandlerContext ctx, final ByteBuf in, final List<Object> out) throws Exception {
+        if (in.readableBytes() < LENGTH_FIELD_SIZE) return;
+
+        int length = in.getInt(in.readerIndex());
+        if (length < Long.BYTES || length > maxFrameLength) {
+            /*
+            We cannot know where the next frame starts, so
+            there's no way to recover the stream from here
+             */
+            in.skipBytes(in.readableBytes());
+            ctx.close();
+
+            if (length > maxFrameLength) {
+                throw new TooLongFrameException("Frame length " + length + " exceeds the max of " + maxFrameLength);
+            }
+            throw new CorruptedFrameException("Invalid frame length " + length);
+        }
+
+        if (in.readableBytes() < LENGTH_FIELD_SIZE + length) return; //Wait for the rest of the frame
+        in.skipBytes(LENGTH_FIELD_SIZE);
+
+        long id = in.readLong();
+        ByteBuf data = in.readRetainedSlice(length - Long.BYTES);
+        try {
+            CipherSession session = CipherSession.get(ctx.channel());
+            if (id == Messages.SEALED.getId()) {
+                if (session == null) throw new CorruptedFrameException("Received a sealed record without a cipher session");
+
+                data = session.open(ctx.alloc(), data);
+                id = data.readLong();
+            } else if (session != null && session.isSealed() && id != Messages.CHANNEL_ENCODED.getId()) {
+                throw new CorruptedFrameException("Received an unsealed message on a sealed connection");
+            }
 
-        DecMessage message = new DecMessage(id, data);
-        out.add(message);
+            out.add(new DecMessage(id, data, StreamContext.get(ctx.channel())));
+        } catch (SecurityException | CorruptedFrameException ex) {
+            /*
+            Messages which fail to open might have been
+            tampered with, we cannot trust the connection
+             */
+            data.release();
+            in.skipBytes(in.readableBytes());
+            ctx.close();
+            throw ex;
+        } catch (Exception ex) {
+            data.release();
+            throw ex;
+        }
     }
 }
@@ -20,24 +20,209 @@ package es.karmadev.api.netty.handler;
  */
 
 import es.karmadev.api.channel.data.BaseMessage;
+import es.karmadev.api.netty.message.DecMessage;
+import es.karmadev.api.netty.message.MessageBuilder;
+import es.karmadev.api.netty.message.OutMessage;
+import es.karmadev.api.netty.message.VarInt;
+import es.karmadev.api.netty.message.nat.Messages;
+import es.karmadev.api.netty.message.table.DataTable;
+import es.karmadev.api.netty.secure.CipherSession;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.util.ReferenceCountUtil;
 import lombok.AllArgsConstructor;
 
+import java.util.List;
 import java.util.function.BiFunction;
 
+/**
+ * Frame encoder. Writes each message prefixed
+ * by its length, as expected by {@link DataDecoder}.
+ * Messages which already hold their frame or their
+ * encoded data are passed to the channel without
+ * being copied. When the connection uses stream
+ * compression, messages are compressed on the
+ * connection {@link StreamContext stream} before
+ * being encoded. When the connection is sealed, the
+ * messages are sealed straight into their frame, after
+ * being compressed
+ */
 @AllArgsConstructor
-public final class DataEncoder extends MessageToByteEncoder<BaseMessage> {
+public final class DataEncoder extends MessageToMessageEncoder<BaseMessage> {
 
     private final BiFunction<BaseMessage, Channel, BaseMessage> encodeFunction;
 
     @Override
-    protected void encode(final ChannelHandlerContext ctx, final BaseMessage message, final ByteBuf out) {
-        BaseMessage encoded = encodeFunction.apply(message, ctx.channel());
+    protected void encode(final ChannelHandlerContext ctx, final BaseMessage message, final List<Object> out) {
+        BaseMessage source = stream(ctx, message);
+        BaseMessage encoded = null;
+        try {
+            CipherSession session = CipherSession.get(ctx.channel());
+            if (session != null && session.isSealed() && source.getId() != Messages.CHANNEL_ENCODED.getId()) {
+                out.add(seal(ctx.alloc(), session, source));
+                return;
+            }
+
+            encoded = encodeFunction.apply(source, ctx.channel());
+
+            if (encoded instanceof OutMessage) {
+                out.add(((OutMessage) encoded).getFrame().retainedDuplicate());
+                return;
+            }
+
+            if (encoded instanceof DecMessage) {
+                ByteBuf data = ((DecMessage) encoded).getEncoded();
+
+                out.add(header(ctx.alloc(), encoded.getId(), data.readableBytes(), 0));
+                out.add(data.retainedDuplicate());
+                return;
+            }
+
+            byte[] data = encoded.readAll();
+            ByteBuf frame = header(ctx.alloc(), encoded.getId(), data.length, data.length);
+            frame.writeBytes(data);
+
+            out.add(frame);
+        } finally {
+            /*
+            The original message is released by the encoder, but
+            the stream and encoded messages are created by us
+             */
+            if (encoded != null && encoded != source && encoded != message) ReferenceCountUtil.release(encoded);
+            if (source != message) ReferenceCountUtil.release(source);
+        }
+    }
+
+    /**
+     * Seal the message into a record frame
+     *
+     * @param allocator the frame allocator
+     * @param session the connection cipher session
+     * @param message the message
+     * @return the sealed message frame
+     */
+    private static ByteBuf seal(final ByteBufAllocator allocator, final CipherSession session, final BaseMessage message) {
+        ByteBuf body = body(message);
+        try {
+            int length = CipherSession.sealedSize(body.readableBytes());
+
+            ByteBuf frame = header(allocator, Messages.SEALED.getId(), length, length);
+            try {
+                session.seal(frame, message.getId(), body);
+                return frame;
+            } catch (RuntimeException ex) {
+                frame.release();
+                throw ex;
+            }
+        } finally {
+            body.release();
+        }
+    }
+
+    /**
+     * Compress the message on the connection stream,
+     * if the connection is using stream compression. The
+     * message is compressed before being encoded, as encoded
+     * and channel encoded messages cannot be compressed
+     *
+     * @param ctx the channel context
+     * @param message the message
+     * @return the stream compressed message
+     */
+    private static BaseMessage stream(final ChannelHandlerContext ctx, final BaseMessage message) {
+        StreamContext stream = StreamContext.get(ctx.channel());
+        if (stream == null || !stream.isCompressing() || message.getId() == Messages.ENCODED.getId()
+                || message.getId() == Messages.CHANNEL_ENCODED.getId()) return message;
+
+        DataTable table;
+        ByteBuf data;
+        if (message instanceof OutMessage) {
+            table = ((OutMessage) message).getTable();
+            data = ((OutMessage) message).getData();
+        } else if (message instanceof DecMessage) {
+            table = ((DecMessage) message).getTable();
+            data = ((DecMessage) message).getData();
+        } else {
+            return message;
+        }
+
+        ByteBuf raw = ctx.alloc().heapBuffer();
+        ByteBuf frame = ctx.alloc().heapBuffer();
+        try {
+            table.write(raw);
+            raw.writeBytes(data, data.readerIndex(), data.readableBytes());
+
+            frame.writerIndex(MessageBuilder.FRAME_HEADER_SIZE); //Reserve the frame header
+            frame.writeByte(MessageBuilder.BODY_FLAGS_MARKER | MessageBuilder.BODY_FLAG_STREAM);
+            VarInt.write(frame, raw.readableBytes());
+            stream.compress(raw, frame);
+
+            frame.setInt(0, frame.readableBytes() - DataDecoder.LENGTH_FIELD_SIZE);
+            frame.setLong(DataDecoder.LENGTH_FIELD_SIZE, message.getId());
+
+            return new OutMessage(message.getId(), frame, data.retainedDuplicate(), table.clone());
+        } catch (RuntimeException ex) {
+            frame.release();
+            throw ex;
+        } finally {
+            raw.release();
+        }
+    }
+
+    /**
+     * Get the frame of a message, as it would be written
+     * by the encoder to a connection which neither encodes
+     * nor stream compresses its messages. The frame can be
+     * written to any number of those connections, as retained
+     * duplicates, so the message is only encoded once
+     *
+     * @param allocator the frame allocator
+     * @param message the message
+     * @return the message frame
+     */
+    public static ByteBuf frame(final ByteBufAllocator allocator, final BaseMessage message) {
+        if (message instanceof OutMessage) return ((OutMessage) message).getFrame().retainedDuplicate();
+
+        if (message instanceof DecMessage) {
+            ByteBuf data = ((DecMessage) message).getEncoded();
+            return allocator.compositeBuffer(2).addComponents(true,
+                    header(allocator, message.getId(), data.readableBytes(), 0),
+                    data.retainedDuplicate());
+        }
+
+        byte[] data = message.readAll();
+        return header(allocator, message.getId(), data.length, data.length).writeBytes(data);
+    }
+
+    /**
+     * Get the encoded body of a message, which is
+     * the message frame without its header. The body
+     * must be released once used
+     *
+     * @param message the message
+     * @return the message body
+     */
+    public static ByteBuf body(final BaseMessage message) {
+        if (message instanceof OutMessage) {
+            ByteBuf frame = ((OutMessage) message).getFrame();
+            int offset = frame.readerIndex() + MessageBuilder.FRAME_HEADER_SIZE;
+
+            return frame.retainedSlice(offset, frame.writerIndex() - offset);
+        }
+
+        if (message instanceof DecMessage) return ((DecMessage) message).getEncoded().retainedDuplicate();
+        return Unpooled.wrappedBuffer(message.readAll());
+    }
+
+    private static ByteBuf header(final ByteBufAllocator allocator, final long id, final int length, final int extraCapacity) {
+        ByteBuf header = allocator.buffer(MessageBuilder.FRAME_HEADER_SIZE + extraCapacity);
+        header.writeInt(Long.BYTES + length);
+        header.writeLong(id);
 
-        out.writeLong(encoded.getId());
-        out.writeBytes(encoded.readAll());
+        return header;
     }
 }
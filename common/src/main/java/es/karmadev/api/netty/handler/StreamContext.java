@@ -0,0 +1,231 @@
+package es.karmadev.api.netty.handler;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import es.karmadev.api.netty.message.compress.CompressionDictionary;
+import es.karmadev.api.netty.message.compress.StreamCompression;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.AttributeKey;
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Per connection stream compression context. The
+ * context is attached to the channel by the {@link DataDecoder},
+ * and is only accessed from the channel event loop. Stream
+ * compressed messages must be decompressed in the same order
+ * they were compressed, which is the order they are read.
+ * Each compressed message is sync flushed, and the trailing
+ * empty block every sync flush ends with is not sent, as
+ * it's always the same.
+ * The context also holds the preset dictionary agreed
+ * with the peer on the key exchange, so dictionaries are
+ * never shared between connections
+ */
+public final class StreamContext {
+
+    private final static AttributeKey<StreamContext> KEY = AttributeKey.valueOf("channeling_stream_context");
+    private final static byte[] FLUSH_TRAILER = {0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+    private final static int INFLATE_CHUNK_SIZE = 8192;
+
+    private EmbeddedChannel deflater;
+    private Inflater inflater;
+    private final byte[] scratch = new byte[1];
+    private CompressionDictionary dictionary;
+
+    private StreamContext() {}
+
+    /**
+     * Get the channel stream context
+     *
+     * @param channel the channel
+     * @return the stream context
+     */
+    public static @Nullable StreamContext get(final @NonNull Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    /**
+     * Attach a stream context to the channel, if
+     * it has none yet
+     *
+     * @param channel the channel
+     * @return the channel stream context
+     */
+    static StreamContext attach(final Channel channel) {
+        StreamContext context = new StreamContext();
+
+        StreamContext current = channel.attr(KEY).setIfAbsent(context);
+        return current == null ? context : current;
+    }
+
+    /**
+     * Detach the stream context of the channel,
+     * releasing its resources
+     *
+     * @param channel the channel
+     */
+    static void detach(final Channel channel) {
+        StreamContext context = channel.attr(KEY).getAndSet(null);
+        if (context != null) context.close();
+    }
+
+    /**
+     * Set the preset dictionary the connection
+     * messages are compressed with
+     *
+     * @param dictionary the dictionary, or null if
+     *                   the connection has no dictionary
+     */
+    public void setDictionary(final @Nullable CompressionDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Get the preset dictionary the connection
+     * messages are compressed with
+     *
+     * @return the connection dictionary
+     */
+    public @Nullable CompressionDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Start compressing the written messages. This
+     * must only be called once the peer is known to
+     * support stream compression
+     *
+     * @param settings the compression settings
+     */
+    public void startCompressing(final @NonNull StreamCompression settings) {
+        if (deflater != null) return;
+        deflater = new EmbeddedChannel(settings.newEncoder());
+    }
+
+    /**
+     * Get if the written messages are being
+     * compressed
+     *
+     * @return if the context is compressing
+     */
+    public boolean isCompressing() {
+        return deflater != null;
+    }
+
+    /**
+     * Compress the data
+     *
+     * @param input the data to compress
+     * @param output the buffer to write the
+     *               compressed data into
+     */
+    public void compress(final ByteBuf input, final ByteBuf output) {
+        if (deflater == null) throw new IllegalStateException("Stream compression has not been started");
+
+        int start = output.writerIndex();
+        deflater.writeOutbound(input.retainedDuplicate());
+
+        ByteBuf chunk;
+        while ((chunk = deflater.readOutbound()) != null) {
+            try {
+                output.writeBytes(chunk);
+            } finally {
+                chunk.release();
+            }
+        }
+
+        int end = output.writerIndex() - FLUSH_TRAILER.length;
+        if (end >= start && output.getInt(end) == 0x0000FFFF) output.writerIndex(end);
+    }
+
+    /**
+     * Decompress the data
+     *
+     * @param input the compressed data
+     * @param output the buffer to write the
+     *               decompressed data into
+     * @param length the expected decompressed data length
+     * @throws DataFormatException if the data is not valid
+     * or its length is not the expected one
+     */
+    public void decompress(final ByteBuf input, final ByteBuf output, final int length) throws DataFormatException {
+        if (inflater == null) inflater = new Inflater(true);
+        if (!output.hasArray()) throw new IllegalArgumentException("Output buffer must be a heap buffer");
+
+        if (input.hasArray()) {
+            inflater.setInput(input.array(), input.arrayOffset() + input.readerIndex(), input.readableBytes());
+        } else {
+            inflater.setInput(ByteBufUtil.getBytes(input));
+        }
+
+        int written = inflate(output, length);
+        inflater.setInput(FLUSH_TRAILER);
+        written += inflate(output, length - written);
+
+        /*
+        The message must end exactly where the flush
+        ends, otherwise the stream is corrupted
+         */
+        if (written != length || inflater.inflate(scratch) != 0 || !inflater.needsInput()) {
+            throw new DataFormatException("Expected " + length + " bytes on the compressed stream");
+        }
+    }
+
+    private int inflate(final ByteBuf output, final int max) throws DataFormatException {
+        int written = 0;
+        while (written < max && !inflater.needsInput() && !inflater.finished()) {
+            /*
+            The output only grows as the data is inflated, so
+            the length the peer claims is never allocated upfront
+             */
+            output.ensureWritable(Math.min(max - written, INFLATE_CHUNK_SIZE));
+
+            int length = Math.min(max - written, output.writableBytes());
+            int read = inflater.inflate(output.array(), output.arrayOffset() + output.writerIndex(), length);
+            if (read == 0) break;
+
+            output.writerIndex(output.writerIndex() + read);
+            written += read;
+        }
+
+        return written;
+    }
+
+    /**
+     * Release the context resources
+     */
+    void close() {
+        if (deflater != null) {
+            deflater.finishAndReleaseAll();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+}
@@ -20,13 +20,22 @@ package es.karmadev.api.netty.message;
  */
 
 import es.karmadev.api.channel.data.BaseMessage;
-import es.karmadev.api.file.serializer.SerializeCompressor;
-import es.karmadev.api.file.util.ByteUtils;
 import es.karmadev.api.kson.JsonInstance;
 import es.karmadev.api.kson.io.JsonReader;
+import es.karmadev.api.netty.handler.StreamContext;
+import es.karmadev.api.netty.message.compress.CompressionCodec;
+import es.karmadev.api.netty.message.compress.CompressionCodecs;
+import es.karmadev.api.netty.message.compress.CompressionDictionary;
 import es.karmadev.api.netty.message.table.DataTable;
 import es.karmadev.api.netty.message.table.DataTypes;
 import es.karmadev.api.netty.message.table.entry.TableEntry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import lombok.AccessLevel;
 import lombok.Getter;
 import org.jetbrains.annotations.Nullable;
 
@@ -34,44 +43,162 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.zip.DataFormatException;
 
+/**
+ * Represents a decoded message. The message data
+ * is decompressed once into a pooled buffer, and all
+ * the reads are performed in place over it. The message
+ * must be released once it's no longer needed, clones
+ * share the reference count of the message they were
+ * created from
+ */
 @Getter
-public class DecMessage implements BaseMessage {
+public class DecMessage implements BaseMessage, ReferenceCounted {
+
+    /**
+     * The default max length of a decompressed
+     * message body (8MB)
+     */
+    public final static int DEFAULT_MAX_DECOMPRESSED_LENGTH = 8 * 1024 * 1024;
+
+    private final static int INITIAL_DECOMPRESSED_CAPACITY = 256;
+
+    /*
+    The decompressed length is sent by the peer, so
+    it's checked against the limit before decompressing
+     */
+    private static volatile int maxDecompressedLength = DEFAULT_MAX_DECOMPRESSED_LENGTH;
 
     private final long id;
-    private final byte[] data;
+    private final ByteBuf encoded;
+    private final ByteBuf data;
 
     private DataTable table;
 
+    @Getter(AccessLevel.NONE)
+    private final Resources resources;
+
+    @Getter(AccessLevel.NONE)
+    private MessageReader reader;
+    @Getter(AccessLevel.NONE)
+    private MessageView view;
+
     public DecMessage(final long id, final byte[] data) throws IOException, DataFormatException {
-        this.id = id;
-        ByteBuffer allocation = ByteBuffer.allocate(4);
-        allocation.clear();
-        allocation.put(data, 0, 4);
-        allocation.flip();
+        this(id, Unpooled.wrappedBuffer(data));
+    }
+
+    public DecMessage(final long id, final byte[] data, final @Nullable StreamContext stream) throws IOException, DataFormatException {
+        this(id, Unpooled.wrappedBuffer(data), stream);
+    }
+
+    /**
+     * Create a decoded message. The message takes
+     * the ownership of the provided buffer, which will
+     * be released with the message
+     *
+     * @param id the message id
+     * @param encoded the encoded message data
+     * @throws IOException if the message is malformed
+     * @throws DataFormatException if the message data is
+     * corrupted
+     */
+    public DecMessage(final long id, final ByteBuf encoded) throws IOException, DataFormatException {
+        this(id, encoded, null);
+    }
+
+    /**
+     * Create a decoded message. The message takes
+     * the ownership of the provided buffer, which will
+     * be released with the message. Messages compressed
+     * on the connection stream are kept decompressed, so
+     * they can be forwarded to other connections
+     *
+     * @param id the message id
+     * @param encoded the encoded message data
+     * @param stream the connection stream context
+     * @throws IOException if the message is malformed
+     * @throws DataFormatException if the message data is
+     * corrupted
+     */
+    public DecMessage(final long id, final ByteBuf encoded, final @Nullable StreamContext stream) throws IOException, DataFormatException {
+        this(id, encoded, stream, stream != null ? stream.getDictionary() : null);
+    }
 
-        int compressedLength = allocation.getInt();
-        byte[] compressed = Arrays.copyOfRange(data, 4, data.length);
+    /**
+     * Create a decoded message. The message takes
+     * the ownership of the provided buffer, which will
+     * be released with the message
+     *
+     * @param id the message id
+     * @param encoded the encoded message data
+     * @param stream the connection stream context
+     * @param dictionary the connection preset dictionary
+     * @throws IOException if the message is malformed
+     * @throws DataFormatException if the message data is
+     * corrupted
+     */
+    public DecMessage(final long id, final ByteBuf encoded, final @Nullable StreamContext stream,
+                      final @Nullable CompressionDictionary dictionary) throws IOException, DataFormatException {
+        this.id = id;
+        if (!encoded.isReadable()) throw new IOException("Message data is too short");
 
-        byte[] decompressed = ByteUtils.decompress(compressed, compressedLength, SerializeCompressor.ZLIB);
+        ByteBuf source = encoded;
+        if ((encoded.getUnsignedByte(encoded.readerIndex()) & (MessageBuilder.BODY_FLAGS_MARKER | MessageBuilder.BODY_FLAG_STREAM))
+                == (MessageBuilder.BODY_FLAGS_MARKER | MessageBuilder.BODY_FLAG_STREAM)) {
+            source = streamBody(encoded, stream);
+        }
 
-        allocation.clear();
-        allocation.put(decompressed, 0, 4);
-        allocation.flip();
+        ByteBuf decompressed = null;
+        try {
+            decompressed = body(source, dictionary);
+            ByteBuf raw = decompressed.duplicate();
+
+            this.table = DataTable.read(raw);
+            this.data = raw.slice();
+        } catch (IOException | DataFormatException | RuntimeException ex) {
+            if (decompressed != null) decompressed.release();
+            if (source != encoded) source.release();
+            throw ex;
+        }
 
-        int tableLength = allocation.getInt();;
-        this.data = split(decompressed, tableLength + 4, decompressed.length);
+        /*
+        The stream body replaces the received data,
+        which is no longer needed
+         */
+        if (source != encoded) encoded.release();
 
-        byte[] tableData = Arrays.copyOfRange(decompressed, 4, tableLength + 4);
-        table = DataTable.unwrap(tableData);
+        this.encoded = source;
+        this.resources = new Resources(source, decompressed);
     }
 
     @Override
     public byte[] readAll() {
-        return data.clone();
+        return ByteBufUtil.getBytes(encoded);
+    }
+
+    /**
+     * Get the primitive reader of the message.
+     * The reader shares the message read cursors
+     *
+     * @return the message reader
+     */
+    public MessageReader reader() {
+        if (reader == null) reader = new MessageReader(table, data);
+        return reader;
+    }
+
+    /**
+     * Get the random access view of the
+     * message. The view does not use the
+     * message read cursors
+     *
+     * @return the message view
+     */
+    public MessageView view() {
+        if (view == null) view = new MessageView(id, table, data);
+        return view;
     }
 
     @Override
@@ -80,13 +207,39 @@ public class DecMessage implements BaseMessage {
         if (entry == null) return null;
 
         int from = entry.getOrigin();
-        int to = entry.getDestination();
+        return ByteBufUtil.getBytes(data, from, entry.getDestination() - from);
+    }
+
+    /**
+     * Get the next bytes of the message as a
+     * read-only view over the message data. The
+     * view is only valid while the message is not
+     * released
+     *
+     * @return the next bytes
+     */
+    public @Nullable ByteBuf sliceBytes() {
+        TableEntry entry = table.getNext(DataTypes.BYTE);
+        if (entry == null) return null;
+
+        int from = entry.getOrigin();
+        return data.slice(from, entry.getDestination() - from).asReadOnly();
+    }
 
-        byte[] array = Arrays.copyOfRange(data, from, to);
-        ByteBuffer buf = ByteBuffer.wrap(array);
-        buf.flip();
+    /**
+     * Get the next bytes of the message as a
+     * read-only nio buffer over the message data.
+     * The buffer is only valid while the message
+     * is not released
+     *
+     * @return the next bytes
+     */
+    public @Nullable ByteBuffer getBytesBuffer() {
+        TableEntry entry = table.getNext(DataTypes.BYTE);
+        if (entry == null) return null;
 
-        return buf.array();
+        int from = entry.getOrigin();
+        return data.nioBuffer(from, entry.getDestination() - from).asReadOnlyBuffer();
     }
 
     @Override
@@ -97,21 +250,10 @@ public class DecMessage implements BaseMessage {
         int from = entry.getOrigin();
         int to = entry.getDestination();
 
-        byte[] string = Arrays.copyOfRange(data, from, to);
-        ByteBuffer buf = ByteBuffer.wrap(string);
-        buf.flip();
-
-        byte[] array = buf.array();
-        int nullByteIndex = array.length;
-        for (int i = 0; i < array.length; i++) {
-            byte b = array[i];
-            if (b == 0) {
-                nullByteIndex = i;
-                break;
-            }
-        }
+        int nullByteIndex = data.indexOf(from, to, (byte) 0);
+        if (nullByteIndex != -1) to = nullByteIndex;
 
-        return new String(Arrays.copyOf(buf.array(), nullByteIndex), StandardCharsets.UTF_8);
+        return data.toString(from, to - from, StandardCharsets.UTF_8);
     }
 
     @Override
@@ -119,19 +261,7 @@ public class DecMessage implements BaseMessage {
         TableEntry entry = table.getNext(DataTypes.INT16);
         if (entry == null) return null;
 
-        int from = entry.getOrigin();
-        int to = entry.getDestination();
-
-        byte[] selection = Arrays.copyOfRange(data, from, to);
-        byte[] minSelection = new byte[2];
-        mapReverse(selection, minSelection);
-
-        ByteBuffer allocation = ByteBuffer.allocate(2);
-        allocation.clear();
-        allocation.put(minSelection);
-        allocation.flip();
-
-        return allocation.getShort();
+        return (short) MessageReader.readNumber(data, entry, 2);
     }
 
     @Override
@@ -139,19 +269,7 @@ public class DecMessage implements BaseMessage {
         TableEntry entry = table.getNext(DataTypes.INT32);
         if (entry == null) return null;
 
-        int from = entry.getOrigin();
-        int to = entry.getDestination();
-
-        byte[] selection = Arrays.copyOfRange(data, from, to);
-        byte[] minSelection = new byte[4];
-        mapReverse(selection, minSelection);
-
-        ByteBuffer allocation = ByteBuffer.allocate(4);
-        allocation.clear();
-        allocation.put(minSelection);
-        allocation.flip();
-
-        return allocation.getInt();
+        return (int) MessageReader.readNumber(data, entry, 4);
     }
 
     @Override
@@ -159,19 +277,7 @@ public class DecMessage implements BaseMessage {
         TableEntry entry = table.getNext(DataTypes.INT64);
         if (entry == null) return null;
 
-        int from = entry.getOrigin();
-        int to = entry.getDestination();
-
-        byte[] selection = Arrays.copyOfRange(data, from, to);
-        byte[] minSelection = new byte[8];
-        mapReverse(selection, minSelection);
-
-        ByteBuffer allocation = ByteBuffer.allocate(8);
-        allocation.clear();
-        allocation.put(minSelection);
-        allocation.flip();
-
-        return allocation.getLong();
+        return MessageReader.readNumber(data, entry, 8);
     }
 
     @Override
@@ -179,19 +285,7 @@ public class DecMessage implements BaseMessage {
         TableEntry entry = table.getNext(DataTypes.FLOAT32);
         if (entry == null) return null;
 
-        int from = entry.getOrigin();
-        int to = entry.getDestination();
-
-        byte[] selection = Arrays.copyOfRange(data, from, to);
-        byte[] minSelection = new byte[4];
-        mapReverse(selection, minSelection);
-
-        ByteBuffer allocation = ByteBuffer.allocate(4);
-        allocation.clear();
-        allocation.put(minSelection);
-        allocation.flip();
-
-        return allocation.getFloat();
+        return Float.intBitsToFloat((int) MessageReader.readNumber(data, entry, 4));
     }
 
     @Override
@@ -199,19 +293,7 @@ public class DecMessage implements BaseMessage {
         TableEntry entry = table.getNext(DataTypes.FLOAT64);
         if (entry == null) return null;
 
-        int from = entry.getOrigin();
-        int to = entry.getDestination();
-
-        byte[] selection = Arrays.copyOfRange(data, from, to);
-        byte[] minSelection = new byte[8];
-        mapReverse(selection, minSelection);
-
-        ByteBuffer allocation = ByteBuffer.allocate(8);
-        allocation.clear();
-        allocation.put(minSelection);
-        allocation.flip();
-
-        return allocation.getDouble();
+        return Double.longBitsToDouble(MessageReader.readNumber(data, entry, 8));
     }
 
     @Override
@@ -219,10 +301,7 @@ public class DecMessage implements BaseMessage {
         TableEntry entry = table.getNext(DataTypes.BOOLEAN);
         if (entry == null) return null;
 
-        int from = entry.getOrigin();
-
-        byte rs = data[from];
-        return rs == 1;
+        return data.getByte(entry.getOrigin()) == 1;
     }
 
     /**
@@ -237,18 +316,15 @@ public class DecMessage implements BaseMessage {
         if (entry == null) return null;
 
         int from = entry.getOrigin();
-        int to = entry.getDestination();
-
-        byte[] array = Arrays.copyOfRange(data, from, to);
-        ByteBuffer buf = ByteBuffer.wrap(array);
-        buf.flip();
-
-        byte[] jsonData = buf.array();
-        return JsonReader.parse(jsonData);
+        return JsonReader.parse(ByteBufUtil.getBytes(data, from, entry.getDestination() - from));
     }
 
     /**
-     * Clone the message
+     * Clone the message. The clone has its own
+     * read cursors, which start from the first value
+     * no matter how much of this message was read, but
+     * shares the data and the reference count with this
+     * message
      *
      * @return the cloned message
      */
@@ -258,11 +334,52 @@ public class DecMessage implements BaseMessage {
         try {
             clone = (DecMessage) super.clone();
             clone.table = table.clone();
+            clone.table.rewind();
+            clone.reader = null;
         } catch (CloneNotSupportedException ignored) {}
 
         return clone;
     }
 
+    @Override
+    public int refCnt() {
+        return resources.refCnt();
+    }
+
+    @Override
+    public DecMessage retain() {
+        resources.retain();
+        return this;
+    }
+
+    @Override
+    public DecMessage retain(final int increment) {
+        resources.retain(increment);
+        return this;
+    }
+
+    @Override
+    public DecMessage touch() {
+        resources.touch();
+        return this;
+    }
+
+    @Override
+    public DecMessage touch(final Object hint) {
+        resources.touch(hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return resources.release();
+    }
+
+    @Override
+    public boolean release(final int decrement) {
+        return resources.release(decrement);
+    }
+
     /**
      * Returns a string representation of the object. In general, the
      * {@code toString} method returns a string that
@@ -332,29 +449,176 @@ public class DecMessage implements BaseMessage {
         return builder.toString();
     }
 
-    private static void mapReverse(final byte[] from, final byte[] to) {
-        int rev = from.length - 1;
-        if (rev < 0) return;
+    /**
+     * Get the message body, decompressing it
+     * if needed. Uncompressed bodies are returned
+     * as a retained slice of the encoded data
+     *
+     * @param encoded the encoded message data
+     * @param dictionary the connection preset dictionary
+     * @return the message body
+     * @throws IOException if the body is malformed
+     * @throws DataFormatException if the body data is
+     * corrupted
+     */
+    private static ByteBuf body(final ByteBuf encoded, final @Nullable CompressionDictionary dictionary) throws IOException, DataFormatException {
+        int index = encoded.readerIndex();
+        int flags = encoded.getUnsignedByte(index);
+
+        if ((flags & MessageBuilder.BODY_FLAGS_MARKER) == 0) {
+            /*
+            Legacy bodies are always compressed, and start
+            with the decompressed length as an int
+             */
+            if (encoded.readableBytes() < 4) throw new IOException("Message data is too short");
+
+            int length = encoded.getInt(index);
+            if (length < 1) throw new IOException("Invalid message data length " + length);
 
-        for (int i = to.length - 1; i >= 0; i--) {
-            if (rev < 0) {
-                to[i] = (byte) 0;
-                continue;
-            }
+            return decompress(CompressionCodecs.DEFLATE, encoded.slice(index + 4, encoded.readableBytes() - 4), length, dictionary);
+        }
 
-            to[i] = from[rev--];
+        ByteBuf body = encoded.slice(index + 1, encoded.readableBytes() - 1);
+        if ((flags & MessageBuilder.BODY_FLAG_COMPRESSED) == 0) {
+            if (flags != MessageBuilder.BODY_FLAGS_MARKER) throw new IOException("Unsupported message flags " + Integer.toHexString(flags));
+            return body.retain();
         }
+
+        int codecId = (flags & MessageBuilder.BODY_CODEC_MASK) >>> MessageBuilder.BODY_CODEC_SHIFT;
+        CompressionCodec codec = CompressionCodecs.get(codecId);
+        if (codec == null) throw new IOException("Unknown compression codec " + codecId);
+
+        int length = VarInt.read(body);
+        if (length < 1) throw new IOException("Invalid message data length " + length);
+
+        return decompress(codec, body, length, dictionary);
     }
 
-    private static byte[] split(final byte[] array, final int from, final int to) {
-        int src = Math.max(0, from);
-        int max = Math.min(array.length, to);
+    /**
+     * Decompress a body compressed on the connection
+     * stream, into an uncompressed body
+     *
+     * @param encoded the encoded message data
+     * @param stream the connection stream context
+     * @return the uncompressed body
+     * @throws IOException if the body is malformed
+     * @throws DataFormatException if the body data is
+     * corrupted
+     */
+    private static ByteBuf streamBody(final ByteBuf encoded, final @Nullable StreamContext stream) throws IOException, DataFormatException {
+        int flags = encoded.getUnsignedByte(encoded.readerIndex());
+        if (flags != (MessageBuilder.BODY_FLAGS_MARKER | MessageBuilder.BODY_FLAG_STREAM))
+            throw new IOException("Unsupported message flags " + Integer.toHexString(flags));
+        if (stream == null) throw new IOException("Received a stream compressed message out of a connection");
+
+        ByteBuf body = encoded.slice(encoded.readerIndex() + 1, encoded.readableBytes() - 1);
+        int length = VarInt.read(body);
+        if (length < 1) throw new IOException("Invalid message data length " + length);
+
+        //The flags byte is not part of the body
+        int max = maxDecompressedLength;
+        if (length > max - 1) throw new IOException("Message data length " + length + " exceeds the max of " + max);
+
+        ByteBuf result = PooledByteBufAllocator.DEFAULT.heapBuffer(Math.min(1 + length, INITIAL_DECOMPRESSED_CAPACITY), 1 + length);
+        try {
+            result.writeByte(MessageBuilder.BODY_FLAGS_MARKER);
+            stream.decompress(body, result, length);
 
-        byte[] newArray = new byte[max - src];
-        for (int i = 0; i < newArray.length; i++) {
-            newArray[i] = array[i + src];
+            return result;
+        } catch (DataFormatException | RuntimeException ex) {
+            result.release();
+            throw ex;
         }
+    }
+
+    /**
+     * Set the max length a decompressed message
+     * body can have. Messages which claim a longer
+     * body are rejected without decompressing them
+     *
+     * @param length the max decompressed length
+     */
+    public static void setMaxDecompressedLength(final int length) {
+        if (length < 1) throw new IllegalArgumentException("Max decompressed length must be positive");
+        maxDecompressedLength = length;
+    }
+
+    /**
+     * Get the max length a decompressed
+     * message body can have
+     *
+     * @return the max decompressed length
+     */
+    public static int getMaxDecompressedLength() {
+        return maxDecompressedLength;
+    }
 
-        return newArray;
+    /**
+     * Allocate the buffer a body is decompressed into.
+     * The buffer starts small and grows up to the length
+     * as the body is decompressed
+     *
+     * @param length the decompressed body length
+     * @return the buffer
+     * @throws IOException if the length exceeds the
+     * max decompressed length
+     */
+    private static ByteBuf allocate(final int length) throws IOException {
+        int max = maxDecompressedLength;
+        if (length > max) throw new IOException("Message data length " + length + " exceeds the max of " + max);
+
+        return PooledByteBufAllocator.DEFAULT.heapBuffer(Math.min(length, INITIAL_DECOMPRESSED_CAPACITY), length);
+    }
+
+    /**
+     * Decompress the data into a pooled buffer
+     *
+     * @param codec the compression codec
+     * @param compressed the compressed data
+     * @param length the decompressed data length
+     * @param dictionary the connection preset dictionary
+     * @return the decompressed data
+     * @throws IOException if the length exceeds the
+     * max decompressed length
+     * @throws DataFormatException if the data is not valid
+     */
+    private static ByteBuf decompress(final CompressionCodec codec, final ByteBuf compressed, final int length,
+                                      final @Nullable CompressionDictionary dictionary) throws IOException, DataFormatException {
+        ByteBuf result = allocate(length);
+        try {
+            codec.decompress(compressed, result, length, dictionary);
+            return result;
+        } catch (DataFormatException | RuntimeException ex) {
+            result.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Message buffers, shared between the
+     * message and its clones
+     */
+    private static class Resources extends AbstractReferenceCounted {
+
+        private final ByteBuf encoded;
+        private final ByteBuf decompressed;
+
+        private Resources(final ByteBuf encoded, final ByteBuf decompressed) {
+            this.encoded = encoded;
+            this.decompressed = decompressed;
+        }
+
+        @Override
+        protected void deallocate() {
+            encoded.release();
+            decompressed.release();
+        }
+
+        @Override
+        public ReferenceCounted touch(final Object hint) {
+            encoded.touch(hint);
+            decompressed.touch(hint);
+            return this;
+        }
     }
 }
@@ -20,32 +20,131 @@ package es.karmadev.api.netty.message;
  */
 
 import es.karmadev.api.channel.data.BaseMessage;
-import es.karmadev.api.file.serializer.SerializeCompressor;
-import es.karmadev.api.file.util.ByteUtils;
 import es.karmadev.api.kson.JsonInstance;
+import es.karmadev.api.netty.handler.DataDecoder;
+import es.karmadev.api.netty.message.compress.CompressionCodec;
+import es.karmadev.api.netty.message.compress.CompressionCodecs;
+import es.karmadev.api.netty.message.compress.CompressionPolicy;
 import es.karmadev.api.netty.message.nat.Messages;
 import es.karmadev.api.netty.message.table.DataTable;
 import es.karmadev.api.netty.message.table.DataTypes;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import lombok.NonNull;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 
 /**
- * Represents a message builder
+ * Represents a message builder. By default, the builder
+ * works over un-pooled heap buffers, so the resulting messages
+ * can be kept and written as many times as wanted. A builder
+ * created through {@link #pooled()} works over pooled buffers
+ * instead, and the built messages must be released once they
+ * are no longer needed
  */
 @SuppressWarnings({"UnusedReturnValue", "unused"})
 public class MessageBuilder {
 
-    private final ByteBuf buf = Unpooled.buffer(0);
-    private final DataTable table = new DataTable();
+    /**
+     * The size of the frame header, which is
+     * composed by the frame length and the message
+     * id
+     */
+    public final static int FRAME_HEADER_SIZE = DataDecoder.LENGTH_FIELD_SIZE + Long.BYTES;
+
+    /**
+     * The body flags marker. Bodies without this bit
+     * are legacy bodies, which always start with the
+     * data length, whose first bit is never set
+     */
+    public final static int BODY_FLAGS_MARKER = 0x80;
+
+    /**
+     * The body flag which tells the body data is
+     * compressed
+     */
+    public final static int BODY_FLAG_COMPRESSED = 0x01;
+
+    /**
+     * The bits of the body flags which hold the
+     * {@link CompressionCodec codec} id, when the body
+     * is compressed
+     */
+    public final static int BODY_CODEC_MASK = CompressionCodecs.MAX_ID << 1;
+    public final static int BODY_CODEC_SHIFT = 1;
+
+    /**
+     * The body flag which tells the body data is
+     * compressed on the connection compression stream
+     */
+    public final static int BODY_FLAG_STREAM = 0x40;
+
+    private final ByteBufAllocator allocator;
+    private CompressionPolicy compression = CompressionPolicy.DEFAULT;
+    private boolean zigzag = true;
+
+    private ByteBuf buf;
+    private DataTable table = new DataTable();
 
     private int currentIndex = 0;
 
+    /**
+     * Create a new message builder
+     */
+    public MessageBuilder() {
+        this(UnpooledByteBufAllocator.DEFAULT);
+    }
+
+    /**
+     * Create a new message builder
+     *
+     * @param allocator the allocator used to
+     *                  allocate the message buffers
+     */
+    public MessageBuilder(final ByteBufAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    /**
+     * Create a new message builder which
+     * uses pooled buffers
+     *
+     * @return the message builder
+     */
+    public static MessageBuilder pooled() {
+        return new MessageBuilder(PooledByteBufAllocator.DEFAULT);
+    }
+
+    /**
+     * Set the compression policy used when
+     * building messages
+     *
+     * @param compression the compression policy
+     * @return the message builder
+     */
+    public MessageBuilder compression(final @NonNull CompressionPolicy compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Set if the integer numbers are zigzag
+     * encoded. Zigzag encoding makes small negative
+     * numbers as short as small positive numbers, which
+     * otherwise always take the whole number size
+     *
+     * @param zigzag if the numbers are zigzag encoded
+     * @return the message builder
+     */
+    public MessageBuilder zigzag(final boolean zigzag) {
+        this.zigzag = zigzag;
+        return this;
+    }
+
     /**
      * Write a set of data
      *
@@ -58,11 +157,22 @@ public class MessageBuilder {
         We cannot apply data compression to bytes, as we
         assume that every single byte its important
          */
-        int targetIndex = currentIndex + data.length;
+        buffer().writeBytes(data);
+        addEntry(DataTypes.BYTE, data.length);
+        return this;
+    }
+
+    /**
+     * Write a set of data
+     *
+     * @param data the data to write
+     * @return the message builder
+     */
+    public MessageBuilder write(final ByteBuf data) {
+        int length = data.readableBytes();
 
-        buf.writeBytes(data);
-        table.addEntry(DataTypes.BYTE, currentIndex, targetIndex);
-        currentIndex += data.length;
+        buffer().writeBytes(data, data.readerIndex(), length);
+        addEntry(DataTypes.BYTE, length);
         return this;
     }
 
@@ -73,10 +183,7 @@ public class MessageBuilder {
      * @return the message builder
      */
     public MessageBuilder writeUTF(final String utf) {
-        byte[] utfData = utf.getBytes(StandardCharsets.UTF_8);
-        ByteBuffer buffer = ByteBuffer.wrap(utfData);
-
-        compressAndWrite(DataTypes.UTF, buffer.array());
+        writeText(DataTypes.UTF, utf);
         return this;
     }
 
@@ -87,9 +194,7 @@ public class MessageBuilder {
      * @return the message builder
      */
     public MessageBuilder writeInt16(final short number) {
-        byte[] numberData = ByteBuffer.allocate(2).putShort(number).array();
-
-        compressAndWrite(DataTypes.INT16, numberData);
+        writeInteger(DataTypes.INT16, number, number & 0xFFFFL);
         return this;
     }
 
@@ -100,9 +205,7 @@ public class MessageBuilder {
      * @return the message builder
      */
     public MessageBuilder writeInt32(final int number) {
-        byte[] numberData = ByteBuffer.allocate(4).putInt(number).array();
-
-        compressAndWrite(DataTypes.INT32, numberData);
+        writeInteger(DataTypes.INT32, number, number & 0xFFFFFFFFL);
         return this;
     }
 
@@ -113,9 +216,7 @@ public class MessageBuilder {
      * @return the message builder
      */
     public MessageBuilder writeInt64(final long number) {
-        byte[] numberData = ByteBuffer.allocate(8).putLong(number).array();
-
-        compressAndWrite(DataTypes.INT64, numberData);
+        writeInteger(DataTypes.INT64, number, number);
         return this;
     }
 
@@ -126,9 +227,7 @@ public class MessageBuilder {
      * @return the message builder
      */
     public MessageBuilder writeFloat32(final float number) {
-        byte[] numberData = ByteBuffer.allocate(4).putFloat(number).array();
-
-        compressAndWrite(DataTypes.FLOAT32, numberData);
+        writeNumber(DataTypes.FLOAT32, Float.floatToIntBits(number) & 0xFFFFFFFFL);
         return this;
     }
 
@@ -139,9 +238,7 @@ public class MessageBuilder {
      * @return the message builder
      */
     public MessageBuilder writeFloat64(final double number) {
-        byte[] numberData = ByteBuffer.allocate(8).putDouble(number).array();
-
-        compressAndWrite(DataTypes.FLOAT64, numberData);
+        writeNumber(DataTypes.FLOAT64, Double.doubleToLongBits(number));
         return this;
     }
 
@@ -152,11 +249,8 @@ public class MessageBuilder {
      * @return the message builder
      */
     public MessageBuilder writeBoolean(final boolean b) {
-        byte value = (byte) (b ? 1 : 0);
-
-        buf.writeBoolean(b);
-        table.addEntry(DataTypes.BOOLEAN, currentIndex, currentIndex + 1);
-        currentIndex++;
+        buffer().writeBoolean(b);
+        addEntry(DataTypes.BOOLEAN, 1);
 
         return this;
     }
@@ -168,53 +262,112 @@ public class MessageBuilder {
      * @return the message builder
      */
     public MessageBuilder writeJson(final JsonInstance json) {
-        String raw = json.toString(false);
-        byte[] jsonBytes = raw.getBytes(StandardCharsets.UTF_8);
-
-        compressAndWrite(DataTypes.JSON, jsonBytes);
+        writeText(DataTypes.JSON, json.toString(false));
         return this;
     }
 
     /**
-     * Write the compressed data
-     * version of the data. Compressed data
-     * is nothing but the array without null
-     * bytes (zeroes).
-     * @param data the data to write
+     * Write the compressed version of the
+     * number. Compressed numbers are nothing
+     * but the number bytes without the leading
+     * null bytes (zeroes).
+     *
+     * @param type the number type
+     * @param bits the number bits
      */
-    private void compressAndWrite(final DataTypes type, final byte[] data) {
-        if (data.length == 0) return;
-        int lastValidIndex = data.length;
-        for (int i = 0; i < data.length; i++) {
-            byte bt = data[i];
-            if (bt != 0) {
-                lastValidIndex = i;
-                break;
-            }
+    private void writeNumber(final DataTypes type, final long bits) {
+        writeNumber(type, bits, false);
+    }
+
+    /**
+     * Write an integer number, zigzag encoded
+     * if the builder is configured to
+     *
+     * @param type the number type
+     * @param number the sign extended number
+     * @param bits the number bits
+     */
+    private void writeInteger(final DataTypes type, final long number, final long bits) {
+        if (zigzag) {
+            writeNumber(type, VarInt.encodeZigZag(number), true);
+            return;
         }
 
-        byte[] clean = Arrays.copyOfRange(data, lastValidIndex, data.length);
-        if (clean.length == 0) {
-            switch (type) {
-                case BOOLEAN:
-                case BYTE:
-                case INT16:
-                case INT32:
-                case INT64:
-                case FLOAT32:
-                case FLOAT64:
-                    clean = new byte[]{0}; //Allow number zero, zero byte and false booleans
-                    break;
-                default:
-                    return;
-            }
+        writeNumber(type, bits, false);
+    }
+
+    private void writeNumber(final DataTypes type, final long bits, final boolean zigzag) {
+        int size = Math.max(1, (Long.SIZE - Long.numberOfLeadingZeros(bits) + 7) >>> 3); //Allow number zero
+
+        ByteBuf buffer = buffer();
+        for (int i = size - 1; i >= 0; i--) {
+            buffer.writeByte((int) (bits >>> (i << 3)));
         }
 
-        int targetIndex = currentIndex + clean.length;
+        addEntry(type, size, zigzag);
+    }
 
-        buf.writeBytes(clean);
-        table.addEntry(type, currentIndex, targetIndex);
-        currentIndex += clean.length;
+    /**
+     * Write a text directly as UTF-8. As with the
+     * rest of the data, leading null characters are
+     * not written, and empty texts are skipped
+     *
+     * @param type the text type
+     * @param text the text
+     */
+    private void writeText(final DataTypes type, final CharSequence text) {
+        int start = 0;
+        int end = text.length();
+        while (start < end && text.charAt(start) == 0) start++;
+        if (start == end) return;
+
+        int written = ByteBufUtil.writeUtf8(buffer(), text, start, end);
+        addEntry(type, written);
+    }
+
+    private void addEntry(final DataTypes type, final int length) {
+        addEntry(type, length, false);
+    }
+
+    private void addEntry(final DataTypes type, final int length, final boolean zigzag) {
+        int targetIndex = currentIndex + length;
+
+        table.addEntry(type, currentIndex, targetIndex, zigzag);
+        currentIndex = targetIndex;
+    }
+
+    private ByteBuf buffer() {
+        if (buf == null) buf = allocator.heapBuffer();
+        return buf;
+    }
+
+    /**
+     * Reset the builder, discarding everything
+     * written since the last build
+     *
+     * @return the message builder
+     */
+    public MessageBuilder reset() {
+        if (buf != null) buf.clear();
+
+        table = new DataTable();
+        currentIndex = 0;
+
+        return this;
+    }
+
+    /**
+     * Release the builder buffer. The builder can
+     * still be used after this, but it will start
+     * from an empty message
+     */
+    public void release() {
+        if (buf != null) {
+            buf.release();
+            buf = null;
+        }
+
+        reset();
     }
 
     /**
@@ -225,38 +378,91 @@ public class MessageBuilder {
      * @throws IOException if there's a problem while
      * compressing data
      */
-    public BaseMessage build(final Messages message) throws IOException {
+    public OutMessage build(final Messages message) throws IOException {
         return build(message.getId());
     }
 
     /**
-     * Build the message
+     * Build the message. The message is written
+     * as a whole frame, ready to be written to the
+     * channel. The written data is handed to the
+     * message, so the builder is left empty and ready
+     * to build another message. Depending on the builder
+     * {@link CompressionPolicy compression policy}, the
+     * message data will be compressed or not:
+     * [
+     *  [frameLength=int32],
+     *  [id=int64],
+     *  [flags=byte, with the codec id if compressed],
+     *  [dataLength=varint, only if compressed],
+     *  [data=[table, data]]
+     * ]
      *
      * @param messageId the message id
      * @return the message data
      * @throws IOException if there's a problem while
      * compressing data
      */
-    public BaseMessage build(final long messageId) throws IOException {
-        byte[] table = this.table.wrap();
-        byte[] tableLength = ByteBuffer.allocate(4).putInt(table.length).array();
+    public OutMessage build(final long messageId) throws IOException {
+        ByteBuf data = buffer();
+        DataTable table = this.table;
+
+        buf = null;
+        reset();
+
+        ByteBuf tableData = allocator.heapBuffer();
+        ByteBuf frame = null;
+        try {
+            table.write(tableData);
+
+            int length = tableData.readableBytes() + data.readableBytes();
+            if (compression.shouldCompress(table, data, length)) {
+                frame = allocator.heapBuffer(FRAME_HEADER_SIZE + 1 + VarInt.size(length) + (length >>> 1) + 64);
+                frame.writerIndex(FRAME_HEADER_SIZE); //Reserve the frame header
+                CompressionCodec codec = compression.getCodec();
+                frame.writeByte(BODY_FLAGS_MARKER | BODY_FLAG_COMPRESSED | codec.getId() << BODY_CODEC_SHIFT);
+                VarInt.write(frame, length);
+
+                ByteBuf raw = Unpooled.wrappedBuffer(tableData.retainedDuplicate(), data.retainedDuplicate());
+                try {
+                    codec.compress(raw, frame);
+                } finally {
+                    raw.release();
+                }
+
+                /*
+                Compression may still make the message bigger, in
+                which case we send it raw instead
+                 */
+                if (frame.readableBytes() > FRAME_HEADER_SIZE + 1 + length) {
+                    frame.clear();
+                    writeRaw(frame, tableData, data);
+                }
+            } else {
+                frame = allocator.heapBuffer(FRAME_HEADER_SIZE + 1 + length);
+                writeRaw(frame, tableData, data);
+            }
 
-        byte[] result = Arrays.copyOf(buf.array(), buf.readableBytes());
+            frame.setInt(0, frame.readableBytes() - DataDecoder.LENGTH_FIELD_SIZE);
+            frame.setLong(DataDecoder.LENGTH_FIELD_SIZE, messageId);
 
-        byte[] baseResult = new byte[table.length + 4 + result.length];
-        System.arraycopy(tableLength, 0, baseResult, 0, tableLength.length);
-        System.arraycopy(table, 0, baseResult, 4, table.length);
-        System.arraycopy(result, 0, baseResult, table.length + 4, result.length);
+            return new OutMessage(messageId, frame, data, table);
+        } catch (RuntimeException ex) {
+            data.release();
+            if (frame != null) frame.release();
 
-        int length = baseResult.length;
-        byte[] rsLength = ByteBuffer.allocate(4).putInt(length).array();
-        byte[] compressed = ByteUtils.compress(baseResult, SerializeCompressor.ZLIB);
+            throw new IOException("Failed to build message", ex);
+        } finally {
+            tableData.release();
+        }
+    }
 
-        byte[] finalResult = new byte[compressed.length + 4];
-        System.arraycopy(rsLength, 0, finalResult, 0, rsLength.length);
-        System.arraycopy(compressed, 0, finalResult, 4, compressed.length);
+    private static void writeRaw(final ByteBuf frame, final ByteBuf tableData, final ByteBuf data) {
+        frame.writerIndex(FRAME_HEADER_SIZE); //Reserve the frame header
+        frame.writeByte(BODY_FLAGS_MARKER);
 
-        return new OutMessage(messageId, finalResult, result, this.table);
+        frame.writeBytes(tableData, tableData.readerIndex(), tableData.readableBytes());
+        frame.writeBytes(data, data.readerIndex(), data.readableBytes());
     }
 
     /**
@@ -0,0 +1,331 @@
+package es.karmadev.api.netty.message;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import es.karmadev.api.netty.message.table.DataTable;
+import es.karmadev.api.netty.message.table.DataTypes;
+import es.karmadev.api.netty.message.table.entry.TableEntry;
+import io.netty.buffer.ByteBuf;
+import lombok.NonNull;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Primitive read cursor over a message. The
+ * reader shares the read cursors of the message it
+ * was obtained from, and reads the data in place,
+ * so none of its reads box or copy the values.
+ * The reader is only valid while the message is
+ * not released
+ */
+public final class MessageReader {
+
+    private final static char REPLACEMENT = '\uFFFD';
+
+    private final DataTable table;
+    private final ByteBuf data;
+
+    /**
+     * Create a message reader
+     *
+     * @param table the message data table
+     * @param data the message data
+     */
+    MessageReader(final DataTable table, final ByteBuf data) {
+        this.table = table;
+        this.data = data;
+    }
+
+    /**
+     * Get if there are values left
+     * to read of the type
+     *
+     * @param type the value type
+     * @return if there's a next value
+     */
+    public boolean hasNext(final @NonNull DataTypes type) {
+        return table.hasNext(type);
+    }
+
+    /**
+     * Skip the next value of the type
+     *
+     * @param type the value type
+     * @return if a value was skipped
+     */
+    public boolean skip(final @NonNull DataTypes type) {
+        return table.getNext(type) != null;
+    }
+
+    /**
+     * Read the next short number
+     *
+     * @return the number
+     * @throws NoSuchElementException if there
+     * are no more short numbers
+     */
+    public short readInt16() {
+        return (short) readNumber(data, next(DataTypes.INT16), 2);
+    }
+
+    /**
+     * Read the next int number
+     *
+     * @return the number
+     * @throws NoSuchElementException if there
+     * are no more int numbers
+     */
+    public int readInt32() {
+        return (int) readNumber(data, next(DataTypes.INT32), 4);
+    }
+
+    /**
+     * Read the next long number
+     *
+     * @return the number
+     * @throws NoSuchElementException if there
+     * are no more long numbers
+     */
+    public long readInt64() {
+        return readNumber(data, next(DataTypes.INT64), 8);
+    }
+
+    /**
+     * Read the next float number
+     *
+     * @return the number
+     * @throws NoSuchElementException if there
+     * are no more float numbers
+     */
+    public float readFloat32() {
+        return Float.intBitsToFloat((int) readNumber(data, next(DataTypes.FLOAT32), 4));
+    }
+
+    /**
+     * Read the next double number
+     *
+     * @return the number
+     * @throws NoSuchElementException if there
+     * are no more double numbers
+     */
+    public double readFloat64() {
+        return Double.longBitsToDouble(readNumber(data, next(DataTypes.FLOAT64), 8));
+    }
+
+    /**
+     * Read the next boolean
+     *
+     * @return the boolean
+     * @throws NoSuchElementException if there
+     * are no more booleans
+     */
+    public boolean readBoolean() {
+        return data.getByte(next(DataTypes.BOOLEAN).getOrigin()) == 1;
+    }
+
+    /**
+     * Read the next text into the sink. The text is
+     * decoded directly from the message data, so no
+     * intermediate string is created
+     *
+     * @param sink the text sink
+     * @return the amount of characters appended
+     * to the sink
+     * @throws NoSuchElementException if there
+     * are no more texts
+     */
+    public int readUTF(final @NonNull StringBuilder sink) {
+        TableEntry entry = next(DataTypes.UTF);
+        return decodeUTF(data, entry.getOrigin(), textEnd(data, entry), sink);
+    }
+
+    /**
+     * Read the next text and compare it with the
+     * provided one, without decoding the text
+     *
+     * @param expected the expected text
+     * @return if the text matches the expected text
+     * @throws NoSuchElementException if there
+     * are no more texts
+     */
+    public boolean matchUTF(final @NonNull CharSequence expected) {
+        return matchUTF(data, next(DataTypes.UTF), expected);
+    }
+
+    /**
+     * Read the next bytes into the target
+     * buffer
+     *
+     * @param target the target buffer
+     * @return the amount of bytes written
+     * @throws NoSuchElementException if there
+     * are no more bytes
+     */
+    public int readBytes(final @NonNull ByteBuf target) {
+        TableEntry entry = next(DataTypes.BYTE);
+
+        int from = entry.getOrigin();
+        int length = entry.getDestination() - from;
+
+        target.writeBytes(data, from, length);
+        return length;
+    }
+
+    private TableEntry next(final DataTypes type) {
+        TableEntry entry = table.getNext(type);
+        if (entry == null) throw new NoSuchElementException("No " + type.name() + " values left to read");
+
+        return entry;
+    }
+
+    /**
+     * Compare a text entry with the provided
+     * text. ASCII texts are compared in place, non
+     * ASCII texts are not worth the effort, and are
+     * decoded first
+     *
+     * @param data the message data
+     * @param entry the text entry
+     * @param expected the expected text
+     * @return if the text matches
+     */
+    static boolean matchUTF(final ByteBuf data, final TableEntry entry, final CharSequence expected) {
+        int from = entry.getOrigin();
+        int to = textEnd(data, entry);
+
+        int index = from;
+        int length = expected.length();
+        for (int i = 0; i < length; i++) {
+            char c = expected.charAt(i);
+            if (c >= 0x80) {
+                StringBuilder builder = new StringBuilder(to - from);
+                decodeUTF(data, from, to, builder);
+
+                return builder.toString().contentEquals(expected);
+            }
+
+            if (index >= to || data.getByte(index++) != c) return false;
+        }
+
+        return index == to;
+    }
+
+    /**
+     * Get the end of a text entry. Texts
+     * end at their first null character
+     *
+     * @param data the message data
+     * @param entry the text entry
+     * @return the text end
+     */
+    static int textEnd(final ByteBuf data, final TableEntry entry) {
+        int to = entry.getDestination();
+
+        int nullByteIndex = data.indexOf(entry.getOrigin(), to, (byte) 0);
+        return nullByteIndex != -1 ? nullByteIndex : to;
+    }
+
+    /**
+     * Read a number whose leading zero
+     * bytes were stripped when written. Zigzag
+     * encoded numbers are decoded
+     *
+     * @param data the message data
+     * @param entry the number entry
+     * @param width the max number width
+     * @return the number
+     */
+    static long readNumber(final ByteBuf data, final TableEntry entry, final int width) {
+        int to = entry.getDestination();
+        int from = Math.max(entry.getOrigin(), to - width);
+
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = (value << 8) | (data.getByte(i) & 0xFF);
+        }
+
+        return entry.isZigzag() ? VarInt.decodeZigZag(value) : value;
+    }
+
+    /**
+     * Decode UTF-8 text into the sink. Malformed
+     * sequences are replaced with the replacement
+     * character
+     *
+     * @param data the data
+     * @param from the text start
+     * @param to the text end
+     * @param sink the text sink
+     * @return the amount of characters appended
+     */
+    static int decodeUTF(final ByteBuf data, final int from, final int to, final StringBuilder sink) {
+        int start = sink.length();
+        sink.ensureCapacity(start + to - from);
+
+        int index = from;
+        while (index < to) {
+            int b = data.getByte(index++);
+            if (b >= 0) {
+                sink.append((char) b);
+                continue;
+            }
+
+            int extra;
+            int min;
+            int codePoint;
+            if ((b & 0xE0) == 0xC0) {
+                extra = 1;
+                min = 0x80;
+                codePoint = b & 0x1F;
+            } else if ((b & 0xF0) == 0xE0) {
+                extra = 2;
+                min = 0x800;
+                codePoint = b & 0x0F;
+            } else if ((b & 0xF8) == 0xF0) {
+                extra = 3;
+                min = 0x10000;
+                codePoint = b & 0x07;
+            } else {
+                sink.append(REPLACEMENT);
+                continue;
+            }
+
+            int read = 0;
+            while (read < extra && index < to) {
+                int continuation = data.getByte(index);
+                if ((continuation & 0xC0) != 0x80) break;
+
+                codePoint = (codePoint << 6) | (continuation & 0x3F);
+                index++;
+                read++;
+            }
+
+            if (read != extra || codePoint < min || codePoint > Character.MAX_CODE_POINT ||
+                    (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                sink.append(REPLACEMENT);
+                continue;
+            }
+
+            sink.appendCodePoint(codePoint);
+        }
+
+        return sink.length() - start;
+    }
+}
@@ -0,0 +1,283 @@
+package es.karmadev.api.netty.message;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import es.karmadev.api.channel.data.BaseMessage;
+import es.karmadev.api.kson.JsonInstance;
+import es.karmadev.api.kson.io.JsonReader;
+import es.karmadev.api.netty.message.table.DataTable;
+import es.karmadev.api.netty.message.table.DataTypes;
+import es.karmadev.api.netty.message.table.entry.TableEntry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import lombok.Getter;
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only, random access view over a message.
+ * Values are accessed by their position among the
+ * values of the same type, so the view does not hold
+ * any read cursor, and can be shared across threads
+ * and subscribers without cloning the message. The view
+ * is only valid while the message is not released
+ */
+public final class MessageView {
+
+    @Getter
+    private final long id;
+    private final DataTable table;
+    private final ByteBuf data;
+
+    /**
+     * Create a message view
+     *
+     * @param id the message id
+     * @param table the message data table
+     * @param data the message data
+     */
+    MessageView(final long id, final DataTable table, final ByteBuf data) {
+        this.id = id;
+        this.table = table;
+        this.data = data;
+    }
+
+    /**
+     * Get the view of a message
+     *
+     * @param message the message
+     * @return the message view, or null if the
+     * message is not a channeling message
+     */
+    public static @Nullable MessageView of(final @NonNull BaseMessage message) {
+        if (message instanceof DecMessage) return ((DecMessage) message).view();
+        if (message instanceof OutMessage) return ((OutMessage) message).view();
+
+        return null;
+    }
+
+    /**
+     * Get the amount of fields
+     *
+     * @return the amount of fields
+     */
+    public int size() {
+        return table.size();
+    }
+
+    /**
+     * Get the amount of fields
+     * of the type
+     *
+     * @param type the field type
+     * @return the amount of type fields
+     */
+    public int count(final @NonNull DataTypes type) {
+        return table.count(type);
+    }
+
+    /**
+     * Get a field by its position
+     * on the message
+     *
+     * @param index the field position
+     * @return the field
+     * @throws IndexOutOfBoundsException if there's
+     * no field at the position
+     */
+    public TableEntry field(final int index) {
+        return table.get(index);
+    }
+
+    /**
+     * Get a short number
+     *
+     * @param index the number position among
+     *              the short numbers
+     * @return the number
+     * @throws IndexOutOfBoundsException if there's
+     * no short number at the position
+     */
+    public short getInt16(final int index) {
+        return (short) MessageReader.readNumber(data, table.get(DataTypes.INT16, index), 2);
+    }
+
+    /**
+     * Get an int number
+     *
+     * @param index the number position among
+     *              the int numbers
+     * @return the number
+     * @throws IndexOutOfBoundsException if there's
+     * no int number at the position
+     */
+    public int getInt32(final int index) {
+        return (int) MessageReader.readNumber(data, table.get(DataTypes.INT32, index), 4);
+    }
+
+    /**
+     * Get a long number
+     *
+     * @param index the number position among
+     *              the long numbers
+     * @return the number
+     * @throws IndexOutOfBoundsException if there's
+     * no long number at the position
+     */
+    public long getInt64(final int index) {
+        return MessageReader.readNumber(data, table.get(DataTypes.INT64, index), 8);
+    }
+
+    /**
+     * Get a float number
+     *
+     * @param index the number position among
+     *              the float numbers
+     * @return the number
+     * @throws IndexOutOfBoundsException if there's
+     * no float number at the position
+     */
+    public float getFloat32(final int index) {
+        return Float.intBitsToFloat((int) MessageReader.readNumber(data, table.get(DataTypes.FLOAT32, index), 4));
+    }
+
+    /**
+     * Get a double number
+     *
+     * @param index the number position among
+     *              the double numbers
+     * @return the number
+     * @throws IndexOutOfBoundsException if there's
+     * no double number at the position
+     */
+    public double getFloat64(final int index) {
+        return Double.longBitsToDouble(MessageReader.readNumber(data, table.get(DataTypes.FLOAT64, index), 8));
+    }
+
+    /**
+     * Get a boolean
+     *
+     * @param index the boolean position among
+     *              the booleans
+     * @return the boolean
+     * @throws IndexOutOfBoundsException if there's
+     * no boolean at the position
+     */
+    public boolean getBoolean(final int index) {
+        return data.getByte(table.get(DataTypes.BOOLEAN, index).getOrigin()) == 1;
+    }
+
+    /**
+     * Get a text
+     *
+     * @param index the text position among
+     *              the texts
+     * @return the text
+     * @throws IndexOutOfBoundsException if there's
+     * no text at the position
+     */
+    public String getUTF(final int index) {
+        TableEntry entry = table.get(DataTypes.UTF, index);
+
+        int from = entry.getOrigin();
+        return data.toString(from, MessageReader.textEnd(data, entry) - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get a text into the sink
+     *
+     * @param index the text position among
+     *              the texts
+     * @param sink the text sink
+     * @return the amount of characters appended
+     * to the sink
+     * @throws IndexOutOfBoundsException if there's
+     * no text at the position
+     */
+    public int getUTF(final int index, final @NonNull StringBuilder sink) {
+        TableEntry entry = table.get(DataTypes.UTF, index);
+        return MessageReader.decodeUTF(data, entry.getOrigin(), MessageReader.textEnd(data, entry), sink);
+    }
+
+    /**
+     * Compare a text with the provided one
+     *
+     * @param index the text position among
+     *              the texts
+     * @param expected the expected text
+     * @return if the text matches the expected text
+     * @throws IndexOutOfBoundsException if there's
+     * no text at the position
+     */
+    public boolean matchUTF(final int index, final @NonNull CharSequence expected) {
+        return MessageReader.matchUTF(data, table.get(DataTypes.UTF, index), expected);
+    }
+
+    /**
+     * Get a set of bytes
+     *
+     * @param index the bytes position among
+     *              the bytes
+     * @return the bytes
+     * @throws IndexOutOfBoundsException if there
+     * are no bytes at the position
+     */
+    public byte[] getBytes(final int index) {
+        TableEntry entry = table.get(DataTypes.BYTE, index);
+
+        int from = entry.getOrigin();
+        return ByteBufUtil.getBytes(data, from, entry.getDestination() - from);
+    }
+
+    /**
+     * Get a set of bytes as a read-only
+     * view over the message data
+     *
+     * @param index the bytes position among
+     *              the bytes
+     * @return the bytes
+     * @throws IndexOutOfBoundsException if there
+     * are no bytes at the position
+     */
+    public ByteBuf sliceBytes(final int index) {
+        TableEntry entry = table.get(DataTypes.BYTE, index);
+
+        int from = entry.getOrigin();
+        return data.slice(from, entry.getDestination() - from).asReadOnly();
+    }
+
+    /**
+     * Get a json
+     *
+     * @param index the json position among
+     *              the jsons
+     * @return the json
+     * @throws IndexOutOfBoundsException if there's
+     * no json at the position
+     */
+    public JsonInstance getJson(final int index) {
+        TableEntry entry = table.get(DataTypes.JSON, index);
+
+        int from = entry.getOrigin();
+        return JsonReader.parse(ByteBufUtil.getBytes(data, from, entry.getDestination() - from));
+    }
+}
@@ -25,34 +25,87 @@ import es.karmadev.api.kson.io.JsonReader;
 import es.karmadev.api.netty.message.table.DataTable;
 import es.karmadev.api.netty.message.table.DataTypes;
 import es.karmadev.api.netty.message.table.entry.TableEntry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import lombok.AccessLevel;
 import lombok.Getter;
 import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Represents an output message. The message
+ * holds its whole frame, so it can be written to
+ * the channel as is. Clones share the reference
+ * count of the message they were created from
+ */
 @Getter
-public class OutMessage implements BaseMessage {
+public class OutMessage implements BaseMessage, ReferenceCounted {
 
     private final long id;
-    private final byte[] original;
-    private final byte[] data;
+    private final ByteBuf frame;
+    private final ByteBuf data;
 
     private DataTable table;
 
-    public OutMessage(final long id, final byte[] original, final byte[] data, final DataTable table) {
+    @Getter(AccessLevel.NONE)
+    private final Resources resources;
+
+    @Getter(AccessLevel.NONE)
+    private MessageReader reader;
+    @Getter(AccessLevel.NONE)
+    private MessageView view;
+
+    /**
+     * Create an output message. The message takes
+     * the ownership of the provided buffers, which will
+     * be released with the message
+     *
+     * @param id the message id
+     * @param frame the message frame
+     * @param data the message raw data
+     * @param table the message data table
+     */
+    public OutMessage(final long id, final ByteBuf frame, final ByteBuf data, final DataTable table) {
         this.id = id;
-        this.original = original;
+        this.frame = frame;
         this.data = data;
         this.table = table;
+        this.resources = new Resources(frame, data);
     }
 
     @Override
     public byte[] readAll() {
-        return original.clone();
+        int offset = frame.readerIndex() + MessageBuilder.FRAME_HEADER_SIZE;
+        return ByteBufUtil.getBytes(frame, offset, frame.writerIndex() - offset);
+    }
+
+    /**
+     * Get the primitive reader of the message.
+     * The reader shares the message read cursors
+     *
+     * @return the message reader
+     */
+    public MessageReader reader() {
+        if (reader == null) reader = new MessageReader(table, data);
+        return reader;
+    }
+
+    /**
+     * Get the random access view of the
+     * message. The view does not use the
+     * message read cursors
+     *
+     * @return the message view
+     */
+    public MessageView view() {
+        if (view == null) view = new MessageView(id, table, data);
+        return view;
     }
 
     @Override
@@ -61,13 +114,39 @@ public class OutMessage implements BaseMessage {
         if (entry == null) return null;
 
         int from = entry.getOrigin();
-        int to = entry.getDestination();
+        return ByteBufUtil.getBytes(data, from, entry.getDestination() - from);
+    }
 
-        byte[] array = Arrays.copyOfRange(data, from, to);
-        ByteBuffer buf = ByteBuffer.wrap(array);
-        buf.flip();
+    /**
+     * Get the next bytes of the message as a
+     * read-only view over the message data. The
+     * view is only valid while the message is not
+     * released
+     *
+     * @return the next bytes
+     */
+    public @Nullable ByteBuf sliceBytes() {
+        TableEntry entry = table.getNext(DataTypes.BYTE);
+        if (entry == null) return null;
 
-        return buf.array();
+        int from = entry.getOrigin();
+        return data.slice(from, entry.getDestination() - from).asReadOnly();
+    }
+
+    /**
+     * Get the next bytes of the message as a
+     * read-only nio buffer over the message data.
+     * The buffer is only valid while the message
+     * is not released
+     *
+     * @return the next bytes
+     */
+    public @Nullable ByteBuffer getBytesBuffer() {
+        TableEntry entry = table.getNext(DataTypes.BYTE);
+        if (entry == null) return null;
+
+        int from = entry.getOrigin();
+        return data.nioBuffer(from, entry.getDestination() - from).asReadOnlyBuffer();
     }
 
     @Override
@@ -78,21 +157,10 @@ public class OutMessage implements BaseMessage {
         int from = entry.getOrigin();
         int to = entry.getDestination();
 
-        byte[] string = Arrays.copyOfRange(data, from, to);
-        ByteBuffer buf = ByteBuffer.wrap(string);
-        buf.flip();
-
-        byte[] array = buf.array();
-        int nullByteIndex = array.length;
-        for (int i = 0; i < array.length; i++) {
-            byte b = array[i];
-            if (b == 0) {
-                nullByteIndex = i;
-                break;
-            }
-        }
+        int nullByteIndex = data.indexOf(from, to, (byte) 0);
+        if (nullByteIndex != -1) to = nullByteIndex;
 
-        return new String(Arrays.copyOf(buf.array(), nullByteIndex), StandardCharsets.UTF_8);
+        return data.toString(from, to - from, StandardCharsets.UTF_8);
     }
 
     @Override
@@ -100,19 +168,7 @@ public class OutMessage implements BaseMessage {
         TableEntry entry = table.getNext(DataTypes.INT16);
         if (entry == null) return null;
 
-        int from = entry.getOrigin();
-        int to = entry.getDestination();
-
-        byte[] selection = Arrays.copyOfRange(data, from, to);
-        byte[] minSelection = new byte[2];
-        mapReverse(selection, minSelection);
-
-        ByteBuffer allocation = ByteBuffer.allocate(2);
-        allocation.clear();
-        allocation.put(minSelection);
-        allocation.flip();
-
-        return allocation.getShort();
+        return (short) MessageReader.readNumber(data, entry, 2);
     }
 
     @Override
@@ -120,19 +176,7 @@ public class OutMessage implements BaseMessage {
         TableEntry entry = table.getNext(DataTypes.INT32);
         if (entry == null) return null;
 
-        int from = entry.getOrigin();
-        int to = entry.getDestination();
-
-        byte[] selection = Arrays.copyOfRange(data, from, to);
-        byte[] minSelection = new byte[4];
-        mapReverse(selection, minSelection);
-
-        ByteBuffer allocation = ByteBuffer.allocate(4);
-        allocation.clear();
-        allocation.put(minSelection);
-        allocation.flip();
-
-        return allocation.getInt();
+        return (int) MessageReader.readNumber(data, entry, 4);
     }
 
     @Override
@@ -140,19 +184,7 @@ public class OutMessage implements BaseMessage {
         TableEntry entry = table.getNext(DataTypes.INT64);
         if (entry == null) return null;
 
-        int from = entry.getOrigin();
-        int to = entry.getDestination();
-
-        byte[] selection = Arrays.copyOfRange(data, from, to);
-        byte[] minSelection = new byte[8];
-        mapReverse(selection, minSelection);
-
-        ByteBuffer allocation = ByteBuffer.allocate(8);
-        allocation.clear();
-        allocation.put(minSelection);
-        allocation.flip();
-
-        return allocation.getLong();
+        return MessageReader.readNumber(data, entry, 8);
     }
 
     @Override
@@ -160,19 +192,7 @@ public class OutMessage implements BaseMessage {
         TableEntry entry = table.getNext(DataTypes.FLOAT32);
         if (entry == null) return null;
 
-        int from = entry.getOrigin();
-        int to = entry.getDestination();
-
-        byte[] selection = Arrays.copyOfRange(data, from, to);
-        byte[] minSelection = new byte[4];
-        mapReverse(selection, minSelection);
-
-        ByteBuffer allocation = ByteBuffer.allocate(4);
-        allocation.clear();
-        allocation.put(minSelection);
-        allocation.flip();
-
-        return allocation.getFloat();
+        return Float.intBitsToFloat((int) MessageReader.readNumber(data, entry, 4));
     }
 
     @Override
@@ -180,19 +200,7 @@ public class OutMessage implements BaseMessage {
         TableEntry entry = table.getNext(DataTypes.FLOAT64);
         if (entry == null) return null;
 
-        int from = entry.getOrigin();
-        int to = entry.getDestination();
-
-        byte[] selection = Arrays.copyOfRange(data, from, to);
-        byte[] minSelection = new byte[8];
-        mapReverse(selection, minSelection);
-
-        ByteBuffer allocation = ByteBuffer.allocate(8);
-        allocation.clear();
-        allocation.put(minSelection);
-        allocation.flip();
-
-        return allocation.getDouble();
+        return Double.longBitsToDouble(MessageReader.readNumber(data, entry, 8));
     }
 
     @Override
@@ -200,10 +208,7 @@ public class OutMessage implements BaseMessage {
         TableEntry entry = table.getNext(DataTypes.BOOLEAN);
         if (entry == null) return null;
 
-        int from = entry.getOrigin();
-
-        byte rs = data[from];
-        return rs == 1;
+        return data.getByte(entry.getOrigin()) == 1;
     }
 
     /**
@@ -218,18 +223,13 @@ public class OutMessage implements BaseMessage {
         if (entry == null) return null;
 
         int from = entry.getOrigin();
-        int to = entry.getDestination();
-
-        byte[] array = Arrays.copyOfRange(data, from, to);
-        ByteBuffer buf = ByteBuffer.wrap(array);
-        buf.flip();
-
-        byte[] jsonData = buf.array();
-        return JsonReader.parse(jsonData);
+        return JsonReader.parse(ByteBufUtil.getBytes(data, from, entry.getDestination() - from));
     }
 
     /**
-     * Clone the message
+     * Clone the message. The clone has its own
+     * read cursors, but shares the data and the
+     * reference count with this message
      *
      * @return the cloned message
      */
@@ -239,11 +239,51 @@ public class OutMessage implements BaseMessage {
         try {
             clone = (OutMessage) super.clone();
             clone.table = table.clone();
+            clone.reader = null;
         } catch (CloneNotSupportedException ignored) {}
 
         return clone;
     }
 
+    @Override
+    public int refCnt() {
+        return resources.refCnt();
+    }
+
+    @Override
+    public OutMessage retain() {
+        resources.retain();
+        return this;
+    }
+
+    @Override
+    public OutMessage retain(final int increment) {
+        resources.retain(increment);
+        return this;
+    }
+
+    @Override
+    public OutMessage touch() {
+        resources.touch();
+        return this;
+    }
+
+    @Override
+    public OutMessage touch(final Object hint) {
+        resources.touch(hint);
+        return this;
+    }
+
+    @Override
+    public boolean release() {
+        return resources.release();
+    }
+
+    @Override
+    public boolean release(final int decrement) {
+        return resources.release(decrement);
+    }
+
     /**
      * Returns a string representation of the object. In general, the
      * {@code toString} method returns a string that
@@ -313,29 +353,31 @@ public class OutMessage implements BaseMessage {
         return builder.toString();
     }
 
-    private static void mapReverse(final byte[] from, final byte[] to) {
-        int rev = from.length - 1;
-        if (rev < 0) return;
+    /**
+     * Message buffers, shared between the
+     * message and its clones
+     */
+    private static class Resources extends AbstractReferenceCounted {
 
-        for (int i = to.length - 1; i >= 0; i--) {
-            if (rev < 0) {
-                to[i] = (byte) 0;
-                continue;
-            }
+        private final ByteBuf frame;
+        private final ByteBuf data;
 
-            to[i] = from[rev--];
+        private Resources(final ByteBuf frame, final ByteBuf data) {
+            this.frame = frame;
+            this.data = data;
         }
-    }
 
-    private static byte[] split(final byte[] array, final int from, final int to) {
-        int src = Math.max(0, from);
-        int max = Math.min(array.length, to);
-
-        byte[] newArray = new byte[max - src];
-        for (int i = 0; i < newArray.length; i++) {
-            newArray[i] = array[i + src];
+        @Override
+        protected void deallocate() {
+            frame.release();
+            data.release();
         }
 
-        return newArray;
+        @Override
+        public ReferenceCounted touch(final Object hint) {
+            frame.touch(hint);
+            data.touch(hint);
+            return this;
+        }
     }
 }
@@ -0,0 +1,100 @@
+package es.karmadev.api.netty.message;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * Variable length integer utilities. Numbers are
+ * written in groups of 7 bits, least significant
+ * group first, with the high bit of each byte telling
+ * if there are more bytes to read
+ */
+public final class VarInt {
+
+    private VarInt() {}
+
+    /**
+     * Get the amount of bytes an unsigned
+     * number takes once written
+     *
+     * @param value the number
+     * @return the number size
+     */
+    public static int size(final int value) {
+        return (Integer.SIZE - Integer.numberOfLeadingZeros(value | 1) + 6) / 7;
+    }
+
+    /**
+     * Write an unsigned number
+     *
+     * @param target the buffer to write to
+     * @param value the number
+     */
+    public static void write(final ByteBuf target, int value) {
+        while ((value & ~0x7F) != 0) {
+            target.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        target.writeByte(value);
+    }
+
+    /**
+     * Read an unsigned number
+     *
+     * @param source the buffer to read from
+     * @return the number
+     */
+    public static int read(final ByteBuf source) {
+        int value = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            byte b = source.readByte();
+            value |= (b & 0x7F) << shift;
+
+            if (b >= 0) return value;
+        }
+
+        throw new CorruptedFrameException("Malformed variable length number");
+    }
+
+    /**
+     * Zigzag encode a number, so numbers close
+     * to zero, no matter their sign, have their high
+     * bits unset
+     *
+     * @param value the number
+     * @return the encoded number
+     */
+    public static long encodeZigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Decode a zigzag encoded number
+     *
+     * @param value the encoded number
+     * @return the number
+     */
+    public static long decodeZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,92 @@
+package es.karmadev.api.netty.message.compress;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import io.netty.buffer.ByteBuf;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.zip.DataFormatException;
+
+/**
+ * Represents a message compression codec. Codecs
+ * are identified by their id, which is written on each
+ * compressed message, so the peer knows how to decompress
+ * it. Codec instances are shared, so they must be thread
+ * safe
+ */
+public interface CompressionCodec {
+
+    /**
+     * Get the codec id. The id must be between
+     * 0 and {@link CompressionCodecs#MAX_ID}
+     *
+     * @return the codec id
+     */
+    int getId();
+
+    /**
+     * Get the codec name
+     *
+     * @return the codec name
+     */
+    String getName();
+
+    /**
+     * Compress the data. The input buffer
+     * indexes are not modified
+     *
+     * @param input the data to compress
+     * @param output the buffer to write the
+     *               compressed data into
+     */
+    void compress(final ByteBuf input, final ByteBuf output);
+
+    /**
+     * Decompress the data. The input buffer
+     * indexes are not modified
+     *
+     * @param input the compressed data
+     * @param output the buffer to write the
+     *               decompressed data into
+     * @param length the expected decompressed
+     *               data length
+     * @throws DataFormatException if the data is not
+     * valid or its length is not the expected one
+     */
+    void decompress(final ByteBuf input, final ByteBuf output, final int length) throws DataFormatException;
+
+    /**
+     * Decompress the data, using the connection
+     * preset dictionary if the data requires it. Codecs
+     * without dictionary support ignore it
+     *
+     * @param input the compressed data
+     * @param output the buffer to write the
+     *               decompressed data into
+     * @param length the expected decompressed
+     *               data length
+     * @param dictionary the connection preset dictionary
+     * @throws DataFormatException if the data is not
+     * valid or its length is not the expected one
+     */
+    default void decompress(final ByteBuf input, final ByteBuf output, final int length, final @Nullable CompressionDictionary dictionary) throws DataFormatException {
+        decompress(input, output, length);
+    }
+}
@@ -0,0 +1,89 @@
+package es.karmadev.api.netty.message.compress;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Compression codecs registry. Peers must have
+ * the same codecs registered under the same ids to
+ * understand each other
+ */
+public final class CompressionCodecs {
+
+    /**
+     * The max codec id
+     */
+    public final static int MAX_ID = 0x0F;
+
+    /**
+     * The deflate (zlib) codec, with the default
+     * compression level
+     */
+    public final static DeflateCodec DEFLATE = new DeflateCodec(java.util.zip.Deflater.DEFAULT_COMPRESSION);
+
+    /**
+     * The fast codec, intended for latency sensitive
+     * traffic, which trades compression ratio for speed
+     */
+    public final static SnappyCodec FAST = new SnappyCodec();
+
+    private final static AtomicReferenceArray<CompressionCodec> codecs = new AtomicReferenceArray<>(MAX_ID + 1);
+
+    static {
+        register(DEFLATE);
+        register(FAST);
+    }
+
+    private CompressionCodecs() {}
+
+    /**
+     * Register a codec
+     *
+     * @param codec the codec to register
+     * @throws IllegalArgumentException if the codec id
+     * is not valid, or another codec is already using it
+     */
+    public static void register(final @NonNull CompressionCodec codec) throws IllegalArgumentException {
+        int id = codec.getId();
+        if (id < 0 || id > MAX_ID) throw new IllegalArgumentException("Invalid codec id " + id + " for " + codec.getName());
+
+        if (!codecs.compareAndSet(id, null, codec)) {
+            CompressionCodec current = codecs.get(id);
+            if (current.getId() == codec.getId() && current.getClass().equals(codec.getClass())) return;
+
+            throw new IllegalArgumentException("Codec id " + id + " is already used by " + current.getName());
+        }
+    }
+
+    /**
+     * Get a codec
+     *
+     * @param id the codec id
+     * @return the codec
+     */
+    public static @Nullable CompressionCodec get(final int id) {
+        if (id < 0 || id > MAX_ID) return null;
+        return codecs.get(id);
+    }
+}
@@ -0,0 +1,308 @@
+package es.karmadev.api.netty.message.compress;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import es.karmadev.api.netty.message.MessageBuilder;
+import es.karmadev.api.netty.message.OutMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Adler32;
+
+/**
+ * Represents a preset compression dictionary. Small
+ * messages have almost no redundancy on their own, but
+ * thousands of them share most of their bytes (the table
+ * shape, the channel names...). Preloading those bytes
+ * lets the compressor reference them from the very first
+ * message byte.
+ * Dictionaries are identified by the adler32 of their
+ * data, which is the same id zlib writes on the compressed
+ * data, so the decompressing side can check the data was
+ * compressed with the dictionary of its connection
+ */
+@Getter
+public final class CompressionDictionary {
+
+    /**
+     * The max dictionary size. Deflate cannot reference
+     * data further than its 32KB window
+     */
+    public final static int MAX_SIZE = 32768;
+
+    private final static int GRAM_SIZE = 8;
+    private final static int SEGMENT_SIZE = 32;
+
+    private final int id;
+    @Getter(AccessLevel.NONE)
+    private final byte[] data;
+
+    private CompressionDictionary(final byte[] data) {
+        this.data = data;
+
+        Adler32 adler = new Adler32();
+        adler.update(data, 0, data.length);
+        this.id = (int) adler.getValue();
+    }
+
+    /**
+     * Create a dictionary
+     *
+     * @param data the dictionary data
+     * @return the dictionary
+     */
+    public static CompressionDictionary of(final @NonNull byte[] data) {
+        if (data.length == 0 || data.length > MAX_SIZE) throw new IllegalArgumentException("Dictionary size must be between 1 and " + MAX_SIZE);
+        return new CompressionDictionary(data.clone());
+    }
+
+    /**
+     * Train a dictionary from captured messages. The
+     * most common segments of the samples are kept, the
+     * most common being the last ones, as deflate encodes
+     * the closest matches with fewer bits
+     *
+     * @param samples the raw message samples
+     * @param maxSize the max dictionary size
+     * @return the dictionary
+     */
+    public static CompressionDictionary train(final @NonNull Collection<byte[]> samples, final int maxSize) {
+        int size = Math.min(maxSize, MAX_SIZE);
+        if (size < 1) throw new IllegalArgumentException("Invalid dictionary size " + maxSize);
+
+        /*
+        Count in how many samples each gram appears, grams
+        which only appear in one sample are not worth being
+        in the dictionary
+         */
+        Map<Long, Integer> frequencies = new HashMap<>();
+        for (byte[] sample : samples) {
+            Set<Long> seen = new HashSet<>();
+            for (int i = 0; i + GRAM_SIZE <= sample.length; i++) {
+                long gram = gram(sample, i);
+                if (seen.add(gram)) frequencies.merge(gram, 1, Integer::sum);
+            }
+        }
+
+        List<Segment> segments = new ArrayList<>();
+        for (byte[] sample : samples) {
+            for (int start = 0; start < sample.length; start += SEGMENT_SIZE / 2) {
+                int end = Math.min(sample.length, start + SEGMENT_SIZE);
+
+                long score = score(sample, start, end, frequencies, null);
+                if (score > 0) segments.add(new Segment(sample, start, end, score));
+
+                if (end == sample.length) break;
+            }
+        }
+        segments.sort((a, b) -> Long.compare(b.score, a.score));
+
+        Set<Long> covered = new HashSet<>();
+        List<Segment> selected = new ArrayList<>();
+        int length = 0;
+        for (Segment segment : segments) {
+            if (length >= size) break;
+
+            /*
+            Segments whose grams are already in the dictionary
+            would only waste space
+             */
+            long score = score(segment.sample, segment.start, segment.end, frequencies, covered);
+            if (score * 2 < segment.score) continue;
+
+            int segmentLength = Math.min(segment.end - segment.start, size - length);
+            for (int i = segment.start; i + GRAM_SIZE <= segment.start + segmentLength; i++) {
+                covered.add(gram(segment.sample, i));
+            }
+
+            selected.add(new Segment(segment.sample, segment.start, segment.start + segmentLength, score));
+            length += segmentLength;
+        }
+
+        if (length == 0) {
+            /*
+            Samples have nothing in common, so the best
+            we can do is using the samples themselves
+             */
+            ByteBuf fallback = Unpooled.buffer();
+            for (byte[] sample : samples) {
+                fallback.writeBytes(sample, 0, Math.min(sample.length, size - fallback.readableBytes()));
+                if (fallback.readableBytes() >= size) break;
+            }
+
+            return of(ByteBufUtil.getBytes(fallback));
+        }
+
+        byte[] dictionary = new byte[length];
+        int index = length;
+        for (Segment segment : selected) {
+            int segmentLength = segment.end - segment.start;
+            index -= segmentLength;
+
+            System.arraycopy(segment.sample, segment.start, dictionary, index, segmentLength);
+        }
+
+        return new CompressionDictionary(dictionary);
+    }
+
+    /**
+     * Train a dictionary from built messages
+     *
+     * @param messages the messages
+     * @param maxSize the max dictionary size
+     * @return the dictionary
+     */
+    public static CompressionDictionary fromMessages(final @NonNull Collection<OutMessage> messages, final int maxSize) {
+        List<byte[]> samples = new ArrayList<>();
+        for (OutMessage message : messages) {
+            samples.add(raw(message));
+        }
+
+        return train(samples, maxSize);
+    }
+
+    /**
+     * Create a dictionary from the channel names. The
+     * dictionary contains the shape of the channel messages
+     * of each channel
+     *
+     * @param channels the channel names
+     * @return the dictionary
+     * @throws IOException if the channel messages fail to build
+     */
+    public static CompressionDictionary forChannels(final @NonNull Collection<String> channels) throws IOException {
+        ByteBuf dictionary = Unpooled.buffer();
+        MessageBuilder builder = new MessageBuilder().compression(CompressionPolicy.NEVER);
+
+        for (String channel : channels) {
+            builder.writeUTF(channel);
+            builder.writeInt64(0);
+            builder.write(new byte[0]);
+
+            OutMessage message = builder.build(0);
+            byte[] sample = raw(message);
+            message.release();
+
+            if (dictionary.readableBytes() + sample.length > MAX_SIZE) break;
+
+            dictionary.writeBytes(sample);
+        }
+
+        if (!dictionary.isReadable()) throw new IllegalArgumentException("Cannot create a dictionary without channels");
+        return new CompressionDictionary(ByteBufUtil.getBytes(dictionary));
+    }
+
+    /**
+     * Get the dictionary data
+     *
+     * @return the dictionary data
+     */
+    public byte[] getData() {
+        return data.clone();
+    }
+
+    /**
+     * Get the dictionary size
+     *
+     * @return the dictionary size
+     */
+    public int size() {
+        return data.length;
+    }
+
+    byte[] array() {
+        return data;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (this == other) return true;
+        if (!(other instanceof CompressionDictionary)) return false;
+
+        return Arrays.equals(data, ((CompressionDictionary) other).data);
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+    private static byte[] raw(final OutMessage message) {
+        ByteBuf raw = Unpooled.buffer();
+        try {
+            message.getTable().write(raw);
+            raw.writeBytes(message.getData(), message.getData().readerIndex(), message.getData().readableBytes());
+
+            return ByteBufUtil.getBytes(raw);
+        } finally {
+            raw.release();
+        }
+    }
+
+    private static long gram(final byte[] data, final int index) {
+        long gram = 0;
+        for (int i = index; i < index + GRAM_SIZE; i++) {
+            gram = (gram << 8) | (data[i] & 0xFF);
+        }
+
+        return gram;
+    }
+
+    private static long score(final byte[] sample, final int start, final int end, final Map<Long, Integer> frequencies, final Set<Long> exclude) {
+        long score = 0;
+        for (int i = start; i + GRAM_SIZE <= end; i++) {
+            long gram = gram(sample, i);
+            if (exclude != null && exclude.contains(gram)) continue;
+
+            int frequency = frequencies.getOrDefault(gram, 1);
+            score += frequency - 1;
+        }
+
+        return score;
+    }
+
+    private static class Segment {
+
+        private final byte[] sample;
+        private final int start;
+        private final int end;
+        private final long score;
+
+        private Segment(final byte[] sample, final int start, final int end, final long score) {
+            this.sample = sample;
+            this.start = start;
+            this.end = end;
+            this.score = score;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package es.karmadev.api.netty.message.compress;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import es.karmadev.api.netty.message.table.DataTable;
+import es.karmadev.api.netty.message.table.DataTypes;
+import es.karmadev.api.netty.message.table.entry.TableEntry;
+import io.netty.buffer.ByteBuf;
+import lombok.Getter;
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Decides if a message is worth compressing. Messages
+ * smaller than the threshold are sent raw, as the compression
+ * header and checksum would only make them bigger, and so are
+ * messages mostly made of high entropy bytes, such as encrypted
+ * or already compressed data. Messages worth compressing
+ * are compressed with the policy {@link CompressionCodec codec}
+ */
+@Getter
+public final class CompressionPolicy {
+
+    /**
+     * The default compression threshold
+     */
+    public final static int DEFAULT_THRESHOLD = 128;
+
+    /**
+     * The max threshold when using a dictionary. With
+     * a dictionary, even the smallest messages are worth
+     * compressing
+     */
+    public final static int DICTIONARY_THRESHOLD = 32;
+
+    /**
+     * The default compression policy
+     */
+    public final static CompressionPolicy DEFAULT = new CompressionPolicy(DEFAULT_THRESHOLD, true, CompressionCodecs.DEFLATE);
+
+    /**
+     * A policy which never compresses
+     */
+    public final static CompressionPolicy NEVER = new CompressionPolicy(Integer.MAX_VALUE, false, CompressionCodecs.DEFLATE);
+
+    private final static int ENTROPY_SAMPLE_SIZE = 1024;
+    private final static double ENTROPY_RATIO = 0.9;
+
+    private final int threshold;
+    private final boolean entropyCheck;
+    private final CompressionCodec codec;
+
+    private CompressionPolicy(final int threshold, final boolean entropyCheck, final CompressionCodec codec) {
+        this.threshold = threshold;
+        this.entropyCheck = entropyCheck;
+        this.codec = codec;
+    }
+
+    /**
+     * Create a new compression policy
+     *
+     * @param threshold the min size a message must
+     *                  have to be compressed
+     * @return the compression policy
+     */
+    public static CompressionPolicy of(final int threshold) {
+        return new CompressionPolicy(Math.max(0, threshold), true, CompressionCodecs.DEFLATE);
+    }
+
+    /**
+     * Get a copy of the policy with the
+     * specified threshold
+     *
+     * @param threshold the new threshold
+     * @return the compression policy
+     */
+    public CompressionPolicy withThreshold(final int threshold) {
+        return new CompressionPolicy(Math.max(0, threshold), entropyCheck, codec);
+    }
+
+    /**
+     * Get a copy of the policy with the
+     * entropy check enabled or disabled
+     *
+     * @param entropyCheck if byte data should be
+     *                     checked before compressing it
+     * @return the compression policy
+     */
+    public CompressionPolicy withEntropyCheck(final boolean entropyCheck) {
+        return new CompressionPolicy(threshold, entropyCheck, codec);
+    }
+
+    /**
+     * Get a copy of the policy with the
+     * specified codec. The codec must be
+     * {@link CompressionCodecs#register(CompressionCodec) registered}
+     * on the peer too
+     *
+     * @param codec the compression codec
+     * @return the compression policy
+     */
+    public CompressionPolicy withCodec(final @NonNull CompressionCodec codec) {
+        return new CompressionPolicy(threshold, entropyCheck, codec);
+    }
+
+    /**
+     * Get a copy of the policy with the
+     * specified preset dictionary. Dictionaries are
+     * only supported by the {@link DeflateCodec deflate codec},
+     * so the policy will use it. The threshold is lowered
+     * to {@link #DICTIONARY_THRESHOLD} if it was higher
+     *
+     * @param dictionary the dictionary, or null to
+     *                   remove the current one
+     * @return the compression policy
+     */
+    public CompressionPolicy withDictionary(final @Nullable CompressionDictionary dictionary) {
+        DeflateCodec deflate = codec instanceof DeflateCodec ? (DeflateCodec) codec : CompressionCodecs.DEFLATE;
+        if (dictionary == null) {
+            if (deflate.getDictionary() == null) return this;
+            return new CompressionPolicy(threshold, entropyCheck, deflate.withDictionary(null));
+        }
+
+        return new CompressionPolicy(Math.min(threshold, DICTIONARY_THRESHOLD), entropyCheck, deflate.withDictionary(dictionary));
+    }
+
+    /**
+     * Get the policy preset dictionary
+     *
+     * @return the dictionary
+     */
+    public @Nullable CompressionDictionary getDictionary() {
+        return codec instanceof DeflateCodec ? ((DeflateCodec) codec).getDictionary() : null;
+    }
+
+    /**
+     * Get if the message should be compressed
+     *
+     * @param table the message table
+     * @param data the message data
+     * @param length the message length, including
+     *               the table
+     * @return if the message should be compressed
+     */
+    public boolean shouldCompress(final DataTable table, final ByteBuf data, final int length) {
+        if (length < threshold) return false;
+        if (!entropyCheck) return true;
+
+        List<TableEntry> blobs = table.getEntries(DataTypes.BYTE);
+        if (blobs.isEmpty()) return true;
+
+        int blobsLength = 0;
+        for (TableEntry entry : blobs) {
+            blobsLength += entry.getDestination() - entry.getOrigin();
+        }
+
+        /*
+        Only byte data can be encrypted or already compressed,
+        and if it's not most of the message, the rest is still
+        worth compressing
+         */
+        if ((long) blobsLength * 4 < (long) data.readableBytes() * 3) return true;
+        return !isHighEntropy(blobs, data);
+    }
+
+    /**
+     * Estimate the entropy of the byte data, from
+     * a sample of it
+     *
+     * @param blobs the byte entries
+     * @param data the message data
+     * @return if the data is high entropy
+     */
+    private static boolean isHighEntropy(final List<TableEntry> blobs, final ByteBuf data) {
+        int[] frequencies = new int[256];
+        int sampled = 0;
+
+        int base = data.readerIndex();
+        for (TableEntry entry : blobs) {
+            int from = base + entry.getOrigin();
+            int to = Math.min(base + entry.getDestination(), from + ENTROPY_SAMPLE_SIZE - sampled);
+
+            for (int i = from; i < to; i++) {
+                frequencies[data.getByte(i) & 0xFF]++;
+            }
+
+            sampled += to - from;
+            if (sampled >= ENTROPY_SAMPLE_SIZE) break;
+        }
+
+        if (sampled == 0) return false;
+
+        double entropy = 0;
+        for (int frequency : frequencies) {
+            if (frequency == 0) continue;
+
+            double probability = (double) frequency / sampled;
+            entropy -= probability * Math.log(probability);
+        }
+
+        /*
+        A small sample cannot reach the 8 bits of entropy
+        of random data, so we compare it with the max the
+        sample could have
+         */
+        double maxEntropy = Math.log(Math.min(sampled, 256));
+        return entropy >= maxEntropy * ENTROPY_RATIO;
+    }
+}
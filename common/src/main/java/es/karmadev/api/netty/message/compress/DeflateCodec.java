@@ -0,0 +1,301 @@
+package es.karmadev.api.netty.message.compress;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.concurrent.FastThreadLocal;
+import lombok.Getter;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate (zlib) compression codec. The level only
+ * affects compression, so every deflate codec shares
+ * the same id and can decompress data from any other.
+ * Deflaters and inflaters are kept per thread and reset
+ * after each use, instead of being created for each
+ * message. A codec may have a preset {@link CompressionDictionary dictionary},
+ * which is matched on decompression by its id against the
+ * connection dictionary and the codec own dictionary
+ */
+@Getter
+public final class DeflateCodec implements CompressionCodec {
+
+    /**
+     * The deflate codec id
+     */
+    public final static int ID = 0;
+
+    private final static int CHUNK_SIZE = 8192;
+    private final static FastThreadLocal<byte[]> INPUT_CHUNK = new FastThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+    private final static FastThreadLocal<byte[]> OUTPUT_CHUNK = new FastThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+    /*
+    Deflaters are shared by every codec with the same
+    level, as the dictionary is set for each message and
+    cleared by the reset after it
+     */
+    private final static FastThreadLocal<Deflater[]> DEFLATERS = new FastThreadLocal<Deflater[]>() {
+        @Override
+        protected Deflater[] initialValue() {
+            return new Deflater[Deflater.BEST_COMPRESSION + 2];
+        }
+
+        @Override
+        protected void onRemoval(final Deflater[] value) {
+            for (Deflater deflater : value) {
+                if (deflater != null) deflater.end();
+            }
+        }
+    };
+    private final static FastThreadLocal<Inflater> INFLATER = new FastThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+
+        @Override
+        protected void onRemoval(final Inflater value) {
+            value.end();
+        }
+    };
+
+    private final int level;
+    private final @Nullable CompressionDictionary dictionary;
+
+    /**
+     * Create a new deflate codec
+     *
+     * @param level the compression level, from
+     *              {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION},
+     *              or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public DeflateCodec(final int level) {
+        this(level, null);
+    }
+
+    /**
+     * Create a new deflate codec
+     *
+     * @param level the compression level
+     * @param dictionary the preset dictionary
+     */
+    public DeflateCodec(final int level, final @Nullable CompressionDictionary dictionary) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+            throw new IllegalArgumentException("Invalid deflate level " + level);
+
+        this.level = level;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Get a copy of the codec with the
+     * specified dictionary
+     *
+     * @param dictionary the dictionary
+     * @return the codec
+     */
+    public DeflateCodec withDictionary(final @Nullable CompressionDictionary dictionary) {
+        return new DeflateCodec(level, dictionary);
+    }
+
+    @Override
+    public int getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+
+    @Override
+    public void compress(final ByteBuf input, final ByteBuf output) {
+        Deflater deflater = deflater(level);
+        try {
+            if (dictionary != null) deflater.setDictionary(dictionary.array());
+
+            if (input.hasArray()) {
+                deflate(deflater, input.array(), input.arrayOffset() + input.readerIndex(), input.readableBytes(), output);
+            } else {
+                for (ByteBuffer buffer : input.nioBuffers()) {
+                    deflate(deflater, buffer, output);
+                }
+            }
+
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflateInto(deflater, output);
+            }
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    @Override
+    public void decompress(final ByteBuf input, final ByteBuf output, final int length) throws DataFormatException {
+        decompress(input, output, length, null);
+    }
+
+    @Override
+    public void decompress(final ByteBuf input, final ByteBuf output, final int length, final @Nullable CompressionDictionary dictionary) throws DataFormatException {
+        Inflater inflater = INFLATER.get();
+        try {
+            byte[] chunk = null;
+            int inputIndex = input.readerIndex();
+            int inputEnd = input.writerIndex();
+            if (input.hasArray()) {
+                inflater.setInput(input.array(), input.arrayOffset() + inputIndex, inputEnd - inputIndex);
+                inputIndex = inputEnd;
+            } else {
+                /*
+                Direct buffers cannot be handled to the inflater,
+                so we feed it in small chunks instead of copying
+                the whole data
+                 */
+                chunk = INPUT_CHUNK.get();
+            }
+
+            int written = 0;
+            while (written < length && !inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (chunk == null || inputIndex >= inputEnd) break;
+
+                    int read = Math.min(chunk.length, inputEnd - inputIndex);
+                    input.getBytes(inputIndex, chunk, 0, read);
+                    inflater.setInput(chunk, 0, read);
+                    inputIndex += read;
+                }
+                written += inflate(inflater, output, length - written);
+                if (inflater.needsDictionary()) {
+                    CompressionDictionary preset = resolve(inflater.getAdler(), dictionary);
+                    if (preset == null) throw new DataFormatException("Message data requires an unknown dictionary");
+
+                    inflater.setDictionary(preset.array());
+                }
+            }
+
+            if (written != length) throw new DataFormatException("Expected " + length + " bytes but got " + written);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * Find the dictionary the data was
+     * compressed with
+     *
+     * @param id the dictionary id
+     * @param connection the connection dictionary
+     * @return the dictionary, or null if neither
+     * dictionary matches
+     */
+    private @Nullable CompressionDictionary resolve(final int id, final @Nullable CompressionDictionary connection) {
+        if (connection != null && connection.getId() == id) return connection;
+        if (dictionary != null && dictionary.getId() == id) return dictionary;
+
+        return null;
+    }
+
+    private static Deflater deflater(final int level) {
+        Deflater[] deflaters = DEFLATERS.get();
+
+        int index = level + 1; //The default level is -1
+        Deflater deflater = deflaters[index];
+        if (deflater == null) {
+            deflater = new Deflater(level);
+            deflaters[index] = deflater;
+        }
+
+        return deflater;
+    }
+
+    private static void deflate(final Deflater deflater, final ByteBuffer input, final ByteBuf output) {
+        if (input.hasArray()) {
+            deflate(deflater, input.array(), input.arrayOffset() + input.position(), input.remaining(), output);
+            return;
+        }
+
+        byte[] chunk = INPUT_CHUNK.get();
+        ByteBuffer source = input.duplicate();
+        while (source.hasRemaining()) {
+            int read = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, read);
+
+            deflate(deflater, chunk, 0, read, output);
+        }
+    }
+
+    private static void deflate(final Deflater deflater, final byte[] input, final int offset, final int length, final ByteBuf output) {
+        if (length == 0) return;
+
+        deflater.setInput(input, offset, length);
+        while (!deflater.needsInput()) {
+            deflateInto(deflater, output);
+        }
+    }
+
+    private static void deflateInto(final Deflater deflater, final ByteBuf output) {
+        output.ensureWritable(256);
+
+        if (output.hasArray()) {
+            int written = deflater.deflate(output.array(), output.arrayOffset() + output.writerIndex(), output.writableBytes());
+            output.writerIndex(output.writerIndex() + written);
+            return;
+        }
+
+        byte[] chunk = OUTPUT_CHUNK.get();
+        int written = deflater.deflate(chunk, 0, chunk.length);
+        output.writeBytes(chunk, 0, written);
+    }
+
+    private static int inflate(final Inflater inflater, final ByteBuf output, final int remaining) throws DataFormatException {
+        /*
+        The output only grows as the data is inflated, so
+        the length the peer claims is never allocated upfront
+         */
+        output.ensureWritable(Math.min(remaining, CHUNK_SIZE));
+        int max = Math.min(remaining, output.writableBytes());
+
+        if (output.hasArray()) {
+            int written = inflater.inflate(output.array(), output.arrayOffset() + output.writerIndex(), max);
+            output.writerIndex(output.writerIndex() + written);
+            return written;
+        }
+
+        byte[] chunk = OUTPUT_CHUNK.get();
+        int written = inflater.inflate(chunk, 0, Math.min(chunk.length, max));
+        output.writeBytes(chunk, 0, written);
+        return written;
+    }
+}
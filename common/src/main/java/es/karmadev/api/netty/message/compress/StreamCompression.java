@@ -0,0 +1,125 @@
+package es.karmadev.api.netty.message.compress;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibEncoder;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import lombok.Getter;
+
+import java.util.zip.Deflater;
+
+/**
+ * Stream compression settings. When both peers agree
+ * on using stream compression, each connection keeps a
+ * deflate context during its whole life, so each message
+ * can reference the data of the previous ones, which per
+ * message compression cannot do. Each message is flushed
+ * on its own, so no message waits for the next one.
+ * The deflate context takes about
+ * {@code (1 << (windowBits + 2)) + (1 << (memLevel + 9))}
+ * bytes per connection (256KB with the defaults). Other
+ * window sizes and memory levels require jzlib to be in
+ * the classpath, as the JDK deflater does not support them
+ */
+@Getter
+public final class StreamCompression {
+
+    /**
+     * The default window bits
+     */
+    public final static int DEFAULT_WINDOW_BITS = 15;
+
+    /**
+     * The default memory level
+     */
+    public final static int DEFAULT_MEM_LEVEL = 8;
+
+    /**
+     * The default compression level
+     */
+    public final static int DEFAULT_LEVEL = 6;
+
+    /**
+     * The default stream compression settings
+     */
+    public final static StreamCompression DEFAULT = new StreamCompression(DEFAULT_LEVEL, DEFAULT_WINDOW_BITS, DEFAULT_MEM_LEVEL);
+
+    private final int level;
+    private final int windowBits;
+    private final int memLevel;
+
+    private StreamCompression(final int level, final int windowBits, final int memLevel) {
+        this.level = level;
+        this.windowBits = windowBits;
+        this.memLevel = memLevel;
+    }
+
+    /**
+     * Create stream compression settings
+     *
+     * @param level the compression level
+     * @param windowBits the window size, as a power of
+     *                   two, from 9 to 15
+     * @param memLevel the memory used by the compression
+     *                 state, from 1 to 9
+     * @return the stream compression settings
+     * @throws IllegalArgumentException if any setting is not valid
+     * @throws IllegalStateException if the window bits or the
+     * memory level are not the default ones and jzlib is not
+     * available
+     */
+    public static StreamCompression of(final int level, final int windowBits, final int memLevel) throws IllegalArgumentException, IllegalStateException {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+            throw new IllegalArgumentException("Invalid deflate level " + level);
+        if (windowBits < 9 || windowBits > 15) throw new IllegalArgumentException("Invalid window bits " + windowBits);
+        if (memLevel < 1 || memLevel > 9) throw new IllegalArgumentException("Invalid memory level " + memLevel);
+
+        if ((windowBits != DEFAULT_WINDOW_BITS || memLevel != DEFAULT_MEM_LEVEL) && !isWindowConfigurable())
+            throw new IllegalStateException("Custom window bits and memory levels require jzlib");
+
+        return new StreamCompression(level == Deflater.DEFAULT_COMPRESSION ? DEFAULT_LEVEL : level, windowBits, memLevel);
+    }
+
+    /**
+     * Get if the window size and memory level
+     * can be configured
+     *
+     * @return if the window is configurable
+     */
+    public static boolean isWindowConfigurable() {
+        try {
+            Class.forName("com.jcraft.jzlib.Deflater", false, StreamCompression.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Create a new raw deflate encoder
+     * with the settings
+     *
+     * @return the encoder
+     */
+    public ZlibEncoder newEncoder() {
+        return ZlibCodecFactory.newZlibEncoder(ZlibWrapper.NONE, level, windowBits, memLevel);
+    }
+}
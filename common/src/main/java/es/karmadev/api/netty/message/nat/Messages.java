@@ -36,7 +36,19 @@ public enum Messages {
     //Encoded message, always contains only bytes
     ENCODED(7),
     ACCESS_KEY(8),
-    DISCONNECTION(9);
+    DISCONNECTION(9),
+    //Channel key of a channel member
+    CHANNEL_KEY(10),
+    //Channel message encrypted with the channel key
+    CHANNEL_ENCODED(11),
+    //Message sealed with the connection cipher suite, its frame is a sealed record
+    SEALED(12),
+    //Ephemeral key share of the server, sent before the key exchange
+    KEY_SHARE(13),
+    //Session resumption with a ticket, answered with the server nonce
+    RESUME(14),
+    //Session resumption ticket
+    TICKET(15);
 
     private final long id;
     private final MessageCache cache = MessageCache.getInstance();
@@ -19,12 +19,14 @@ package es.karmadev.api.netty.message.table;
  * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
  */
 
+import es.karmadev.api.netty.message.VarInt;
 import es.karmadev.api.netty.message.table.entry.TableEntry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 
-import java.nio.ByteBuffer;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.EnumMap;
 import java.util.List;
 
 /**
@@ -36,11 +38,53 @@ import java.util.List;
  *  [type=DataTypes.UTF, rangeArrayStart=0, rangeArrayEnd=14],
  *  [type=DataTypes.BYTE, rangeArrayStart=15, rangeArrayEnd=29]
  * ]
+ * The table is written in one of two formats. The
+ * legacy format is prefixed by the table length and
+ * takes 9 bytes per entry:
+ * [
+ *  [tableLength=int32],
+ *  [[type=int8, origin=int32, destination=int32]...]
+ * ]
+ * The compact format is used when the entries are
+ * contiguous, so the origin of each entry is the end
+ * of the previous one, and consecutive entries of the
+ * same type are grouped:
+ * [
+ *  [format=int8],
+ *  [runs=varint],
+ *  [[type=int8, count=varint, [length=varint]...]...]
+ * ]
+ * On both formats, the type of zigzag encoded numbers
+ * has the {@link #TYPE_FLAG_ZIGZAG} bit set
  */
 public class DataTable implements Cloneable {
 
+    /**
+     * Compact table format marker. The legacy format
+     * starts with the table length, so its first byte
+     * never has the high bit set
+     */
+    public final static byte FORMAT_COMPACT = (byte) 0x82;
+
+    /**
+     * Entry type flag of zigzag encoded numbers
+     */
+    public final static byte TYPE_FLAG_ZIGZAG = 0x40;
+
+    private final static DataTypes[] TYPES = DataTypes.values();
+
     private List<TableEntry> entries = new ArrayList<>();
-    private EnumMap<DataTypes, Integer> specificCursor = new EnumMap<>(DataTypes.class);
+
+    /*
+    Entry indexes per data type (by ordinal), so each
+    type can be iterated without scanning the whole table.
+    The indexes are shared with the clones until one of them
+    adds a new entry
+     */
+    private int[][] typeIndexes = new int[TYPES.length][];
+    private int[] typeCounts = new int[TYPES.length];
+    private int[] cursors = new int[TYPES.length];
+    private boolean shared = false;
 
     private int length = 0;
 
@@ -55,7 +99,12 @@ public class DataTable implements Cloneable {
      * @param defaultEntries the entries
      */
     private DataTable(final List<TableEntry> defaultEntries) {
-        this.entries.addAll(defaultEntries);
+        this.entries = defaultEntries;
+        this.length = defaultEntries.size() * 9;
+
+        for (int i = 0; i < defaultEntries.size(); i++) {
+            index(defaultEntries.get(i).getType(), i);
+        }
     }
 
     /**
@@ -66,8 +115,24 @@ public class DataTable implements Cloneable {
      * @param end the end position
      */
     public void addEntry(final DataTypes type, final int position, final int end) {
-        TableEntry range = new TableEntry(type, position, end);
+        addEntry(type, position, end, false);
+    }
+
+    /**
+     * Add an entry to the table
+     *
+     * @param type the data type
+     * @param position the start position
+     * @param end the end position
+     * @param zigzag if the entry is a zigzag
+     *               encoded number
+     */
+    public void addEntry(final DataTypes type, final int position, final int end, final boolean zigzag) {
+        if (shared) unshare();
+
+        TableEntry range = new TableEntry(type, position, end, zigzag);
         entries.add(range);
+        index(type, entries.size() - 1);
         length += 9;
     }
 
@@ -80,10 +145,11 @@ public class DataTable implements Cloneable {
     public List<TableEntry> getEntries(final DataTypes... types) {
         List<TableEntry> matches = new ArrayList<>();
         for (DataTypes type : types) {
-            for (TableEntry entry : entries) {
-                if (entry.getType().equals(type)) {
-                    matches.add(entry);
-                }
+            int ordinal = type.ordinal();
+            int[] indexes = typeIndexes[ordinal];
+
+            for (int i = 0; i < typeCounts[ordinal]; i++) {
+                matches.add(entries.get(indexes[i]));
             }
         }
 
@@ -97,17 +163,137 @@ public class DataTable implements Cloneable {
      * @return the next type entry
      */
     public TableEntry getNext(final DataTypes type) {
-        int cursor = this.specificCursor.computeIfAbsent(type, (c) -> 0);
-        List<TableEntry> matches = getEntries(type);
+        int ordinal = type.ordinal();
 
-        if (matches.size() <= cursor) {
+        int cursor = cursors[ordinal];
+        if (cursor >= typeCounts[ordinal]) {
             return null;
         }
 
-        TableEntry entry = matches.get(cursor++);
-        this.specificCursor.put(type, cursor);
+        cursors[ordinal] = cursor + 1;
+        return entries.get(typeIndexes[ordinal][cursor]);
+    }
+
+    /**
+     * Get an entry by its position on
+     * the table
+     *
+     * @param index the entry position
+     * @return the entry
+     * @throws IndexOutOfBoundsException if there's
+     * no entry at the position
+     */
+    public TableEntry get(final int index) {
+        return entries.get(index);
+    }
+
+    /**
+     * Get an entry of the type by its
+     * position among the type entries. This
+     * does not move the type cursor
+     *
+     * @param type the data type
+     * @param index the entry position
+     * @return the entry
+     * @throws IndexOutOfBoundsException if there's
+     * no entry at the position
+     */
+    public TableEntry get(final DataTypes type, final int index) {
+        int ordinal = type.ordinal();
+        if (index < 0 || index >= typeCounts[ordinal]) {
+            throw new IndexOutOfBoundsException("No " + type.name() + " entry at " + index + ", size " + typeCounts[ordinal]);
+        }
+
+        return entries.get(typeIndexes[ordinal][index]);
+    }
+
+    /**
+     * Get the amount of entries
+     *
+     * @return the amount of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Get the amount of entries
+     * of the type
+     *
+     * @param type the data type
+     * @return the amount of type entries
+     */
+    public int count(final DataTypes type) {
+        return typeCounts[type.ordinal()];
+    }
+
+    /**
+     * Get if there are entries left to
+     * read of the type
+     *
+     * @param type the data type
+     * @return if there's a next type entry
+     */
+    public boolean hasNext(final DataTypes type) {
+        int ordinal = type.ordinal();
+        return cursors[ordinal] < typeCounts[ordinal];
+    }
+
+    /**
+     * Move the read cursors back to
+     * the first entry of each type
+     */
+    public void rewind() {
+        Arrays.fill(cursors, 0);
+    }
+
+    /**
+     * Index an entry
+     *
+     * @param type the entry type
+     * @param entryIndex the entry index
+     */
+    private void index(final DataTypes type, final int entryIndex) {
+        if (type == null) return; //Invalid entries cannot be read
+
+        int ordinal = type.ordinal();
+        int[] indexes = typeIndexes[ordinal];
+        int count = typeCounts[ordinal];
+
+        if (indexes == null) {
+            indexes = typeIndexes[ordinal] = new int[4];
+        } else if (count == indexes.length) {
+            indexes = typeIndexes[ordinal] = Arrays.copyOf(indexes, count << 1);
+        }
+
+        indexes[count] = entryIndex;
+        typeCounts[ordinal] = count + 1;
+    }
+
+    /**
+     * Copy the table entries and indexes, so
+     * they are no longer shared with clones
+     */
+    private void unshare() {
+        entries = new ArrayList<>(entries);
+        typeCounts = typeCounts.clone();
+
+        int[][] indexes = new int[TYPES.length][];
+        for (int i = 0; i < indexes.length; i++) {
+            if (typeIndexes[i] != null) indexes[i] = typeIndexes[i].clone();
+        }
+        typeIndexes = indexes;
+
+        shared = false;
+    }
 
-        return entry;
+    /**
+     * Get the wrapped table length
+     *
+     * @return the table length
+     */
+    public int getLength() {
+        return length;
     }
 
     /**
@@ -117,17 +303,74 @@ public class DataTable implements Cloneable {
      * @return the wrapped table
      */
     public byte[] wrap() {
-        byte[] result = new byte[length];
+        ByteBuf result = Unpooled.buffer(length, length);
+        wrap(result);
+
+        return result.array();
+    }
+
+    /**
+     * Wrap the table into the
+     * buffer
+     *
+     * @param target the buffer to write
+     *               the table into
+     */
+    public void wrap(final ByteBuf target) {
+        target.ensureWritable(length);
+        for (TableEntry entry : entries) {
+            target.writeByte(typeId(entry));
+            target.writeInt(entry.getOrigin());
+            target.writeInt(entry.getDestination());
+        }
+    }
 
-        int writeIndex = 0;
+    /**
+     * Write the table into the buffer,
+     * using the compact format when possible
+     *
+     * @param target the buffer to write
+     *               the table into
+     */
+    public void write(final ByteBuf target) {
+        int runs = 0;
+        int expectedOrigin = 0;
+        int previous = -1;
         for (TableEntry entry : entries) {
-            byte[] wrap = entry.wrap();
-            for (byte b : wrap) {
-                result[writeIndex++] = b;
+            if (entry.getType() == null || entry.getOrigin() != expectedOrigin) {
+                //Entries which cannot be represented in the compact format
+                target.writeInt(length);
+                wrap(target);
+                return;
+            }
+
+            int type = typeId(entry);
+            if (type != previous) runs++;
+
+            previous = type;
+            expectedOrigin = entry.getDestination();
+        }
+
+        target.writeByte(FORMAT_COMPACT);
+        VarInt.write(target, runs);
+
+        for (int i = 0; i < entries.size();) {
+            int type = typeId(entries.get(i));
+
+            int end = i + 1;
+            while (end < entries.size() && typeId(entries.get(end)) == type) end++;
+
+            target.writeByte(type);
+            VarInt.write(target, end - i);
+            for (; i < end; i++) {
+                TableEntry entry = entries.get(i);
+                VarInt.write(target, entry.getDestination() - entry.getOrigin());
             }
         }
+    }
 
-        return result;
+    private static int typeId(final TableEntry entry) {
+        return entry.getType().getId() | (entry.isZigzag() ? TYPE_FLAG_ZIGZAG : 0);
     }
 
     @Override
@@ -172,22 +415,30 @@ public class DataTable implements Cloneable {
      * @return the unwrapped table
      */
     public static DataTable unwrap(final byte[] table) {
-        if (table.length % 9 != 0) return new DataTable();
-
-        List<TableEntry> entries = new ArrayList<>();
-        for (int i = 0; i < table.length; i += 9) {
-            byte dataType = table[i];
-
-            ByteBuffer originAllocator = ByteBuffer.allocate(4);
-            ByteBuffer destAllocator = ByteBuffer.allocate(4);
-
-            resolveInt(table, i + 1, originAllocator);
-            resolveInt(table, i + 5, destAllocator);
+        return unwrap(Unpooled.wrappedBuffer(table));
+    }
 
+    /**
+     * Unwrap a table. The table is read
+     * in place, without modifying the buffer
+     * indexes
+     *
+     * @param table the table
+     * @return the unwrapped table
+     */
+    public static DataTable unwrap(final ByteBuf table) {
+        int length = table.readableBytes();
+        if (length % 9 != 0) return new DataTable();
+
+        int base = table.readerIndex();
+        List<TableEntry> entries = new ArrayList<>(length / 9);
+        for (int i = base; i < base + length; i += 9) {
+            byte type = table.getByte(i);
             TableEntry entry = new TableEntry(
-                    DataTypes.byId(dataType),
-                    originAllocator.getInt(),
-                    destAllocator.getInt()
+                    DataTypes.byId((byte) (type & ~TYPE_FLAG_ZIGZAG)),
+                    table.getInt(i + 1),
+                    table.getInt(i + 5),
+                    (type & TYPE_FLAG_ZIGZAG) != 0
             );
             entries.add(entry);
         }
@@ -195,10 +446,58 @@ public class DataTable implements Cloneable {
         return new DataTable(entries);
     }
 
-    private static void resolveInt(final byte[] array, final int from, final ByteBuffer target) {
-        target.clear();
-        target.put(array, from, 4);
-        target.flip();
+    /**
+     * Read a table written by {@link #write(ByteBuf)}.
+     * The buffer reader index is left at the end of
+     * the table
+     *
+     * @param source the buffer to read from
+     * @return the table
+     * @throws IOException if the table is malformed
+     */
+    public static DataTable read(final ByteBuf source) throws IOException {
+        if (!source.isReadable()) throw new IOException("Missing message table");
+        if (source.getByte(source.readerIndex()) != FORMAT_COMPACT) {
+            if (source.readableBytes() < 4) throw new IOException("Missing message table");
+
+            int tableLength = source.readInt();
+            if (tableLength < 0 || tableLength > source.readableBytes()) throw new IOException("Invalid message table length " + tableLength);
+
+            return unwrap(source.readSlice(tableLength));
+        }
+
+        source.skipBytes(1);
+        int runs = VarInt.read(source);
+
+        List<TableEntry> entries = new ArrayList<>();
+        int origin = 0;
+        for (int run = 0; run < runs; run++) {
+            byte typeId = source.readByte();
+            DataTypes type = DataTypes.byId((byte) (typeId & ~TYPE_FLAG_ZIGZAG));
+            if (type == null) throw new IOException("Unknown message table entry type " + typeId);
+            boolean zigzag = (typeId & TYPE_FLAG_ZIGZAG) != 0;
+
+            int count = VarInt.read(source);
+            if (count < 0) throw new IOException("Invalid message table run length " + count);
+
+            for (int i = 0; i < count; i++) {
+                /*
+                The data follows the table, so no entry can
+                end past the readable bytes, which also keeps
+                the origin from overflowing
+                 */
+                int length = VarInt.read(source);
+                if (length < 0 || length > source.readableBytes() - origin) {
+                    throw new IOException("Invalid message table entry length " + length);
+                }
+
+                entries.add(new TableEntry(type, origin, origin + length, zigzag));
+                origin += length;
+            }
+        }
+
+        if (origin > source.readableBytes()) throw new IOException("Message table exceeds the message data");
+        return new DataTable(entries);
     }
 
     @Override
@@ -207,8 +506,10 @@ public class DataTable implements Cloneable {
         try {
             table = (DataTable) super.clone();
             table.length = length;
-            table.entries = new ArrayList<>(table.entries);
-            table.specificCursor = new EnumMap<>(table.specificCursor);
+            table.cursors = cursors.clone();
+
+            shared = true;
+            table.shared = true;
         } catch (CloneNotSupportedException ignored) {}
 
         return table;
@@ -19,6 +19,7 @@ package es.karmadev.api.netty.message.table.entry;
  * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
  */
 
+import es.karmadev.api.netty.message.table.DataTable;
 import es.karmadev.api.netty.message.table.DataTypes;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
@@ -31,9 +32,14 @@ public class TableEntry {
     protected final DataTypes type;
     protected final int origin;
     protected final int destination;
+    protected final boolean zigzag;
+
+    public TableEntry(final DataTypes type, final int origin, final int destination) {
+        this(type, origin, destination, false);
+    }
 
     public byte[] wrap() {
-        byte dataType = type.getId();
+        byte dataType = (byte) (type.getId() | (zigzag ? DataTable.TYPE_FLAG_ZIGZAG : 0));
         byte[] originAlloc = ByteBuffer.allocate(4).putInt(origin).array();
         byte[] destAlloc = ByteBuffer.allocate(4).putInt(destination).array();
 
@@ -0,0 +1,211 @@
+package es.karmadev.api.netty.secure;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Authenticated cipher for a single key and
+ * direction. Sealed data is prefixed by its nonce,
+ * and followed by its tag
+ * [
+ *  [nonce=12 bytes],
+ *  [encrypted data],
+ *  [tag=16 bytes]
+ * ]
+ * Nonces are a sequence, which is unique as long as
+ * a key is only used by a single sealing cipher. Opened
+ * nonces must always increase, so sealed data cannot be
+ * replayed. The cipher is not thread safe
+ */
+final class AeadCipher {
+
+    private final CipherSuite suite;
+    private final SecretKey key;
+    private final int mode;
+    private final Cipher cipher;
+
+    private final byte[] nonce = new byte[CipherSuite.NONCE_SIZE];
+    private final ByteBuffer prefix = ByteBuffer.allocate(Long.BYTES);
+
+    private long sequence;
+
+    /**
+     * Create an authenticated cipher
+     *
+     * @param suite the cipher suite
+     * @param key the cipher key
+     * @param mode the cipher mode
+     */
+    AeadCipher(final CipherSuite suite, final SecretKey key, final int mode) {
+        this.suite = suite;
+        this.key = key;
+        this.mode = mode;
+
+        try {
+            this.cipher = suite.newCipher();
+        } catch (GeneralSecurityException ex) {
+            throw new SecurityException("Cipher suite " + suite + " is not supported", ex);
+        }
+    }
+
+    /**
+     * Get the size of the sealed data
+     *
+     * @param length the data length
+     * @return the sealed data length
+     */
+    static int sealedSize(final int length) {
+        return CipherSuite.NONCE_SIZE + length + CipherSuite.TAG_SIZE;
+    }
+
+    /**
+     * Seal the readable bytes of the data
+     *
+     * @param out the buffer to write the sealed
+     *            data to
+     * @param data the data
+     */
+    void seal(final ByteBuf out, final ByteBuf data) {
+        seal(out, null, data);
+    }
+
+    /**
+     * Seal the prefix followed by the
+     * readable bytes of the data
+     *
+     * @param out the buffer to write the sealed
+     *            data to
+     * @param prefix the prefix
+     * @param data the data
+     */
+    void seal(final ByteBuf out, final long prefix, final ByteBuf data) {
+        this.prefix.clear();
+        this.prefix.putLong(prefix).flip();
+
+        seal(out, this.prefix, data);
+    }
+
+    private void seal(final ByteBuf out, final @Nullable ByteBuffer prefix, final ByteBuf data) {
+        if (mode != Cipher.ENCRYPT_MODE) throw new IllegalStateException("Cannot seal with an opening cipher");
+        if (sequence == Long.MAX_VALUE) throw new SecurityException("Cipher nonces are exhausted");
+
+        try {
+            init(sequence++);
+
+            int length = data.readableBytes();
+            out.ensureWritable(sealedSize((prefix != null ? prefix.remaining() : 0) + length));
+            out.writeBytes(nonce);
+
+            ByteBuffer target = out.nioBuffer(out.writerIndex(), out.writableBytes());
+            if (prefix != null) cipher.update(prefix, target);
+            cipher.doFinal(data.nioBuffer(data.readerIndex(), length), target);
+
+            out.writerIndex(out.writerIndex() + target.position());
+        } catch (GeneralSecurityException ex) {
+            throw new SecurityException("Failed to seal data", ex);
+        }
+    }
+
+    /**
+     * Get if the sealed data can be
+     * opened in place
+     *
+     * @param sealed the sealed data
+     * @return if the data can be opened
+     * in place
+     */
+    static boolean canOpenInPlace(final ByteBuf sealed) {
+        return !sealed.isReadOnly() && sealed.nioBufferCount() == 1;
+    }
+
+    /**
+     * Open the readable bytes of the sealed data
+     * into a new buffer. The sealed data is not
+     * modified
+     *
+     * @param allocator the allocator
+     * @param sealed the sealed data
+     * @return the opened data
+     */
+    ByteBuf open(final ByteBufAllocator allocator, final ByteBuf sealed) {
+        ByteBuf opened = allocator.buffer(Math.max(0, sealed.readableBytes() - sealedSize(0)));
+        try {
+            int written = open(sealed, opened.nioBuffer(0, opened.capacity()));
+            return opened.writerIndex(written);
+        } catch (RuntimeException ex) {
+            opened.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Open the readable bytes of the sealed data
+     * in place. The returned buffer is a slice of
+     * the sealed data
+     *
+     * @param sealed the sealed data
+     * @return the opened data
+     */
+    ByteBuf openInPlace(final ByteBuf sealed) {
+        if (!canOpenInPlace(sealed)) throw new IllegalArgumentException("Sealed data cannot be opened in place");
+
+        int from = sealed.readerIndex() + CipherSuite.NONCE_SIZE;
+        int written = open(sealed, sealed.nioBuffer(from, Math.max(0, sealed.writerIndex() - from)));
+
+        return sealed.slice(from, written);
+    }
+
+    private int open(final ByteBuf sealed, final ByteBuffer output) {
+        if (mode != Cipher.DECRYPT_MODE) throw new IllegalStateException("Cannot open with a sealing cipher");
+        if (sealed.readableBytes() < sealedSize(0)) throw new SecurityException("Sealed data is too short");
+
+        int from = sealed.readerIndex();
+        sealed.getBytes(from, nonce);
+
+        long received = sealed.getLong(from + CipherSuite.NONCE_SIZE - Long.BYTES);
+        if (received < sequence) throw new SecurityException("Sealed data has been replayed");
+
+        try {
+            cipher.init(mode, key, suite.parameters(nonce));
+            int written = cipher.doFinal(sealed.nioBuffer(from + CipherSuite.NONCE_SIZE, sealed.readableBytes() - CipherSuite.NONCE_SIZE), output);
+
+            sequence = received + 1;
+            return written;
+        } catch (GeneralSecurityException ex) {
+            throw new SecurityException("Failed to open sealed data", ex);
+        }
+    }
+
+    private void init(final long sequence) throws GeneralSecurityException {
+        for (int i = 0; i < Long.BYTES; i++) {
+            nonce[nonce.length - 1 - i] = (byte) (sequence >>> (i * Byte.SIZE));
+        }
+
+        cipher.init(mode, key, suite.parameters(nonce));
+    }
+}
@@ -0,0 +1,124 @@
+package es.karmadev.api.netty.secure;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Channel group key. Channel messages are
+ * encrypted once with the channel key, instead
+ * of once per channel member with the member
+ * session key. Each key has an epoch, which
+ * increases every time the key is rotated. Channel
+ * messages are sealed with {@link CipherSuite#AES_256_GCM},
+ * as channel members might not share any other suite
+ */
+@Getter
+public final class ChannelKey {
+
+    private final static CipherSuite SUITE = CipherSuite.AES_256_GCM;
+
+    private final int epoch;
+    private final SecretKey key;
+
+    @Getter(AccessLevel.NONE)
+    private AeadCipher sealer;
+    @Getter(AccessLevel.NONE)
+    private AeadCipher opener;
+
+    private ChannelKey(final int epoch, final SecretKey key) {
+        this.epoch = epoch;
+        this.key = key;
+    }
+
+    /**
+     * Generate a channel key
+     *
+     * @param epoch the key epoch
+     * @return the channel key
+     */
+    public static ChannelKey generate(final int epoch) {
+        return new ChannelKey(epoch, SecureGen.generateSecret());
+    }
+
+    /**
+     * Create a channel key from its
+     * encoded data
+     *
+     * @param epoch the key epoch
+     * @param key the encoded key
+     * @return the channel key
+     */
+    public static ChannelKey of(final int epoch, final @NonNull byte[] key) {
+        return new ChannelKey(epoch, new SecretKeySpec(key, SecureGen.SECRET_ALGORITHM));
+    }
+
+    /**
+     * Seal the readable bytes of the data
+     * with the key
+     *
+     * @param allocator the sealed data allocator
+     * @param data the data to seal
+     * @return the sealed data
+     */
+    public synchronized ByteBuf seal(final ByteBufAllocator allocator, final ByteBuf data) {
+        if (sealer == null) sealer = new AeadCipher(SUITE, key, Cipher.ENCRYPT_MODE);
+
+        ByteBuf sealed = allocator.buffer(AeadCipher.sealedSize(data.readableBytes()));
+        try {
+            sealer.seal(sealed, data);
+            return sealed;
+        } catch (RuntimeException ex) {
+            sealed.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Open the readable bytes of data sealed
+     * with the key. The sealed data is not
+     * modified
+     *
+     * @param allocator the opened data allocator
+     * @param sealed the sealed data
+     * @return the opened data
+     */
+    public synchronized ByteBuf open(final ByteBufAllocator allocator, final ByteBuf sealed) {
+        if (opener == null) opener = new AeadCipher(SUITE, key, Cipher.DECRYPT_MODE);
+        return opener.open(allocator, sealed);
+    }
+
+    /**
+     * Get the encoded key
+     *
+     * @return the encoded key
+     */
+    public byte[] getEncoded() {
+        return key.getEncoded();
+    }
+}
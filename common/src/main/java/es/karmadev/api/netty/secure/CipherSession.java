@@ -0,0 +1,323 @@
+package es.karmadev.api.netty.secure;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+/**
+ * Per connection cipher session. The session keeps
+ * the initialized ciphers of the connection, so the
+ * cipher provider lookup and initialization is only
+ * performed when a key is set, instead of once per
+ * message. The session is attached to the channel, and
+ * is only accessed from the channel event loop.
+ * <p>
+ * Connections which negotiated a {@link CipherSuite} are
+ * sealed, and every message is sent as a sealed record,
+ * which carries the suite, the nonce and the tag next to
+ * the encrypted message id and body. Each direction has its
+ * own key, derived from the client secret. Connections which
+ * didn't negotiate a suite encrypt the messages with the key
+ * of the peer, and decrypt them with our own key
+ * [
+ *  [suite=byte],
+ *  [nonce=12 bytes],
+ *  [encrypted id=int64, encrypted body],
+ *  [tag=16 bytes]
+ * ]
+ */
+public final class CipherSession {
+
+    private final static AttributeKey<CipherSession> KEY = AttributeKey.valueOf("channeling_cipher_session");
+    private final static String CLIENT_WRITE = "channeling client write";
+    private final static String SERVER_WRITE = "channeling server write";
+
+    private final CipherState encryption = new CipherState(Cipher.ENCRYPT_MODE);
+    private final CipherState decryption = new CipherState(Cipher.DECRYPT_MODE);
+
+    private volatile CipherSuite suite;
+    private AeadCipher sealer;
+    private AeadCipher opener;
+
+    private SecretKey offeredSecret;
+    private List<CipherSuite> offeredSuites;
+
+    private CipherSession() {}
+
+    /**
+     * Get the channel cipher session
+     *
+     * @param channel the channel
+     * @return the cipher session
+     */
+    public static @Nullable CipherSession get(final @NonNull Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    /**
+     * Attach a cipher session to the channel, if
+     * it has none yet
+     *
+     * @param channel the channel
+     * @return the channel cipher session
+     */
+    public static CipherSession attach(final @NonNull Channel channel) {
+        CipherSession session = new CipherSession();
+
+        CipherSession current = channel.attr(KEY).setIfAbsent(session);
+        return current == null ? session : current;
+    }
+
+    /**
+     * Offer the supported cipher suites to the
+     * server. The connection is sealed once the server
+     * answers with a record sealed with any of the
+     * offered suites
+     *
+     * @param secret the client secret
+     * @return the offered suites
+     */
+    public List<CipherSuite> offer(final @NonNull SecretKey secret) {
+        offeredSecret = secret;
+        offeredSuites = CipherSuite.supported();
+
+        return offeredSuites;
+    }
+
+    /**
+     * Accept the cipher suite selected from the
+     * client offer, sealing the connection. Every
+     * message written from now on is sealed
+     *
+     * @param secret the client secret
+     * @param suite the selected suite
+     */
+    public void accept(final @NonNull SecretKey secret, final @NonNull CipherSuite suite) {
+        if (this.suite != null) throw new IllegalStateException("Cipher session is already sealed");
+        upgrade(suite, secret, false);
+    }
+
+    /**
+     * Get if the connection is sealed
+     *
+     * @return if the connection messages
+     * are sealed
+     */
+    public boolean isSealed() {
+        return suite != null;
+    }
+
+    /**
+     * Get the negotiated cipher suite
+     *
+     * @return the cipher suite
+     */
+    public @Nullable CipherSuite getSuite() {
+        return suite;
+    }
+
+    /**
+     * Get the size of a sealed record
+     *
+     * @param length the message body length
+     * @return the record size
+     */
+    public static int sealedSize(final int length) {
+        return 1 + AeadCipher.sealedSize(Long.BYTES + length);
+    }
+
+    /**
+     * Seal a message into a record
+     *
+     * @param out the buffer to write the record to
+     * @param id the message id
+     * @param body the message body
+     */
+    public void seal(final ByteBuf out, final long id, final ByteBuf body) {
+        if (suite == null) throw new IllegalStateException("Cipher session is not sealed");
+
+        out.writeByte(suite.getId());
+        sealer.seal(out, id, body);
+    }
+
+    /**
+     * Open a sealed record. The record is opened in
+     * place when possible, and the returned buffer, which
+     * starts with the message id followed by the message
+     * body, takes the ownership of the record. The record
+     * is not released if it fails to open
+     *
+     * @param allocator the allocator
+     * @param record the sealed record
+     * @return the opened record
+     */
+    public ByteBuf open(final ByteBufAllocator allocator, final ByteBuf record) {
+        if (!record.isReadable()) throw new SecurityException("Sealed record is too short");
+        CipherSuite received = CipherSuite.byId(record.readUnsignedByte());
+
+        if (suite == null) {
+            /*
+            The first sealed record tells which of
+            our offered suites the server selected
+             */
+            if (received == null || offeredSuites == null || !offeredSuites.contains(received)) {
+                throw new SecurityException("Received a sealed record with a suite we didn't offer");
+            }
+
+            upgrade(received, offeredSecret, true);
+            offeredSecret = null;
+            offeredSuites = null;
+        } else if (received != suite) {
+            throw new SecurityException("Received a sealed record with another suite");
+        }
+
+        if (AeadCipher.canOpenInPlace(record)) return opener.openInPlace(record);
+
+        ByteBuf opened = opener.open(allocator, record);
+        record.release();
+        return opened;
+    }
+
+    private void upgrade(final CipherSuite suite, final SecretKey secret, final boolean client) {
+        byte[] material = secret.getEncoded();
+
+        SecretKey clientWrite = suite.key(derive(material, CLIENT_WRITE));
+        SecretKey serverWrite = suite.key(derive(material, SERVER_WRITE));
+
+        sealer = new AeadCipher(suite, client ? clientWrite : serverWrite, Cipher.ENCRYPT_MODE);
+        opener = new AeadCipher(suite, client ? serverWrite : clientWrite, Cipher.DECRYPT_MODE);
+        this.suite = suite;
+    }
+
+    /*
+    The client secret is random, so a single
+    keyed hash per direction is enough to get
+    independent keys for both directions
+     */
+    private static byte[] derive(final byte[] secret, final String label) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+
+            return mac.doFinal(label.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException ex) {
+            throw new SecurityException("Failed to derive the session keys", ex);
+        }
+    }
+
+    /**
+     * Set the key used to encrypt the
+     * messages sent to the peer
+     *
+     * @param key the encryption key
+     */
+    public void setEncryptKey(final @Nullable SecretKey key) {
+        encryption.setKey(key);
+    }
+
+    /**
+     * Set the key used to decrypt the
+     * messages sent by the peer
+     *
+     * @param key the decryption key
+     */
+    public void setDecryptKey(final @Nullable SecretKey key) {
+        decryption.setKey(key);
+    }
+
+    /**
+     * Get if the session can encrypt
+     *
+     * @return if the session has an
+     * encryption key
+     */
+    public boolean canEncrypt() {
+        return encryption.hasKey();
+    }
+
+    /**
+     * Get if the session can decrypt
+     *
+     * @return if the session has a
+     * decryption key
+     */
+    public boolean canDecrypt() {
+        return decryption.hasKey();
+    }
+
+    /**
+     * Encrypt the data
+     *
+     * @param data the data to encrypt
+     * @return the encrypted data
+     */
+    public byte[] encrypt(final byte[] data) {
+        return encryption.apply(data);
+    }
+
+    /**
+     * Encrypt the readable bytes of the data
+     * into a new buffer. The data indexes are
+     * not modified
+     *
+     * @param allocator the buffer allocator
+     * @param data the data to encrypt
+     * @return the encrypted data
+     */
+    public ByteBuf encrypt(final ByteBufAllocator allocator, final ByteBuf data) {
+        return encryption.apply(allocator, data);
+    }
+
+    /**
+     * Decrypt the data
+     *
+     * @param data the data to decrypt
+     * @return the decrypted data
+     */
+    public byte[] decrypt(final byte[] data) {
+        return decryption.apply(data);
+    }
+
+    /**
+     * Decrypt the readable bytes of the data
+     * into a new buffer. The data indexes are
+     * not modified
+     *
+     * @param allocator the buffer allocator
+     * @param data the data to decrypt
+     * @return the decrypted data
+     */
+    public ByteBuf decrypt(final ByteBufAllocator allocator, final ByteBuf data) {
+        return decryption.apply(allocator, data);
+    }
+}
@@ -0,0 +1,129 @@
+package es.karmadev.api.netty.secure;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+
+/**
+ * Reusable cipher for a single key and
+ * direction. The cipher is created and initialized
+ * once, and reused for every operation, as a cipher
+ * is reset to its initialized state after each
+ * final operation. The state is not thread safe
+ */
+final class CipherState {
+
+    private final int mode;
+
+    private SecretKey key;
+    private Cipher cipher;
+
+    /**
+     * Create a cipher state
+     *
+     * @param mode the cipher mode
+     */
+    CipherState(final int mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Set the state key
+     *
+     * @param key the key, or null to
+     *            clear the state
+     */
+    void setKey(final @Nullable SecretKey key) {
+        this.key = key;
+        this.cipher = null;
+    }
+
+    /**
+     * Get if the state has a key
+     *
+     * @return if the state has a key
+     */
+    boolean hasKey() {
+        return key != null;
+    }
+
+    /**
+     * Apply the cipher to the data
+     *
+     * @param data the data
+     * @return the resulting data
+     */
+    byte[] apply(final byte[] data) {
+        try {
+            return cipher().doFinal(data);
+        } catch (GeneralSecurityException ex) {
+            cipher = null; //A failed cipher must be initialized again
+            throw new SecurityException("Failed to " + operation() + " data", ex);
+        }
+    }
+
+    /**
+     * Apply the cipher to the readable bytes of
+     * the data. The data indexes are not modified
+     *
+     * @param allocator the result allocator
+     * @param data the data
+     * @return the resulting data
+     */
+    ByteBuf apply(final ByteBufAllocator allocator, final ByteBuf data) {
+        ByteBuf result = null;
+        try {
+            Cipher cipher = cipher();
+
+            int length = data.readableBytes();
+            result = allocator.buffer(cipher.getOutputSize(length));
+
+            int written = cipher.doFinal(data.nioBuffer(data.readerIndex(), length), result.nioBuffer(0, result.capacity()));
+            return result.writerIndex(written);
+        } catch (GeneralSecurityException ex) {
+            if (result != null) result.release();
+
+            cipher = null; //A failed cipher must be initialized again
+            throw new SecurityException("Failed to " + operation() + " data", ex);
+        }
+    }
+
+    private Cipher cipher() throws GeneralSecurityException {
+        if (key == null) throw new IllegalStateException("Cannot " + operation() + " without a key");
+        if (cipher == null) {
+            Cipher created = Cipher.getInstance(key.getAlgorithm());
+            created.init(mode, key);
+
+            cipher = created;
+        }
+
+        return cipher;
+    }
+
+    private String operation() {
+        return mode == Cipher.ENCRYPT_MODE ? "encrypt" : "decrypt";
+    }
+}
@@ -0,0 +1,171 @@
+package es.karmadev.api.netty.secure;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Authenticated cipher suites a connection
+ * can seal its messages with. The client offers
+ * the suites it supports, in preference order, and
+ * the server picks the first one it supports as well.
+ * Every suite uses a 12 bytes nonce and a 16 bytes tag
+ */
+@Getter
+public enum CipherSuite {
+    AES_256_GCM(1, "AES/GCM/NoPadding", "AES"),
+    //Only available since java 11
+    CHACHA20_POLY1305(2, "ChaCha20-Poly1305", "ChaCha20");
+
+    /**
+     * The size of the suites nonce
+     */
+    public final static int NONCE_SIZE = 12;
+
+    /**
+     * The size of the suites tag
+     */
+    public final static int TAG_SIZE = 16;
+
+    private final int id;
+    private final String transformation;
+    private final String keyAlgorithm;
+
+    @Getter(AccessLevel.NONE)
+    private final boolean supported;
+
+    CipherSuite(final int id, final String transformation, final String keyAlgorithm) {
+        this.id = id;
+        this.transformation = transformation;
+        this.keyAlgorithm = keyAlgorithm;
+        this.supported = probe(transformation);
+    }
+
+    /**
+     * Get if the suite is supported
+     * by the running java version
+     *
+     * @return if the suite is supported
+     */
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Get the supported suites, in
+     * preference order
+     *
+     * @return the supported suites
+     */
+    public static List<CipherSuite> supported() {
+        List<CipherSuite> suites = new ArrayList<>();
+        for (CipherSuite suite : values()) {
+            if (suite.supported) suites.add(suite);
+        }
+
+        return Collections.unmodifiableList(suites);
+    }
+
+    /**
+     * Get a suite by its id
+     *
+     * @param id the suite id
+     * @return the suite
+     */
+    public static @Nullable CipherSuite byId(final int id) {
+        for (CipherSuite suite : values()) {
+            if (suite.id == id) return suite;
+        }
+
+        return null;
+    }
+
+    /**
+     * Select the first offered suite which
+     * is supported
+     *
+     * @param offered the offered suite ids
+     * @return the selected suite, or null if
+     * none of the offered suites is supported
+     */
+    public static @Nullable CipherSuite select(final int[] offered) {
+        for (int id : offered) {
+            CipherSuite suite = byId(id);
+            if (suite != null && suite.supported) return suite;
+        }
+
+        return null;
+    }
+
+    /**
+     * Create a key for the suite
+     *
+     * @param material the key material
+     * @return the suite key
+     */
+    SecretKey key(final byte[] material) {
+        return new SecretKeySpec(material, keyAlgorithm);
+    }
+
+    /**
+     * Create a cipher for the suite
+     *
+     * @return the suite cipher
+     * @throws GeneralSecurityException if the suite
+     * is not supported
+     */
+    Cipher newCipher() throws GeneralSecurityException {
+        return Cipher.getInstance(transformation);
+    }
+
+    /**
+     * Get the cipher parameters for
+     * the nonce
+     *
+     * @param nonce the nonce
+     * @return the cipher parameters
+     */
+    AlgorithmParameterSpec parameters(final byte[] nonce) {
+        if (this == AES_256_GCM) return new GCMParameterSpec(TAG_SIZE * Byte.SIZE, nonce);
+        return new IvParameterSpec(nonce);
+    }
+
+    private static boolean probe(final String transformation) {
+        try {
+            Cipher.getInstance(transformation);
+            return true;
+        } catch (GeneralSecurityException ex) {
+            return false;
+        }
+    }
+}
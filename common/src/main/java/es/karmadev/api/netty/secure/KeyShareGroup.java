@@ -0,0 +1,171 @@
+package es.karmadev.api.netty.secure;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.KeyAgreement;
+import java.security.*;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Elliptic curve groups a connection can agree
+ * its secret on. The server sends an ephemeral key
+ * share of its preferred group, and the client answers
+ * with its own share of the same group, so none of them
+ * needs to perform any private key operation with the
+ * server key pair. The shares are sent X.509 encoded
+ */
+@Getter
+public enum KeyShareGroup {
+    //Only available since java 11
+    X25519(1, "X25519", "XDH", null),
+    SECP256R1(2, "EC", "ECDH", "secp256r1");
+
+    private final int id;
+    private final String keyAlgorithm;
+    private final String agreement;
+
+    @Getter(AccessLevel.NONE)
+    private final String curve;
+    @Getter(AccessLevel.NONE)
+    private final boolean supported;
+
+    KeyShareGroup(final int id, final String keyAlgorithm, final String agreement, final String curve) {
+        this.id = id;
+        this.keyAlgorithm = keyAlgorithm;
+        this.agreement = agreement;
+        this.curve = curve;
+        this.supported = probe(keyAlgorithm, agreement);
+    }
+
+    /**
+     * Get if the group is supported
+     * by the running java version
+     *
+     * @return if the group is supported
+     */
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Get the supported groups, in
+     * preference order
+     *
+     * @return the supported groups
+     */
+    public static List<KeyShareGroup> supported() {
+        List<KeyShareGroup> groups = new ArrayList<>();
+        for (KeyShareGroup group : values()) {
+            if (group.supported) groups.add(group);
+        }
+
+        return Collections.unmodifiableList(groups);
+    }
+
+    /**
+     * Get the preferred supported group
+     *
+     * @return the preferred group, or null if
+     * none of the groups is supported
+     */
+    public static @Nullable KeyShareGroup preferred() {
+        for (KeyShareGroup group : values()) {
+            if (group.supported) return group;
+        }
+
+        return null;
+    }
+
+    /**
+     * Get a group by its id
+     *
+     * @param id the group id
+     * @return the group
+     */
+    public static @Nullable KeyShareGroup byId(final int id) {
+        for (KeyShareGroup group : values()) {
+            if (group.id == id) return group;
+        }
+
+        return null;
+    }
+
+    /**
+     * Generate an ephemeral key pair
+     * of the group
+     *
+     * @return the key pair
+     * @throws SecurityException if the group is
+     * not supported
+     */
+    public KeyPair generate() throws SecurityException {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(keyAlgorithm);
+            if (curve != null) generator.initialize(new ECGenParameterSpec(curve));
+
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException ex) {
+            throw new SecurityException("Failed to generate " + name() + " key share", ex);
+        }
+    }
+
+    /**
+     * Agree the shared secret with the
+     * peer key share
+     *
+     * @param own our private key
+     * @param share the peer key share
+     * @return the shared secret
+     * @throws SecurityException if the peer key
+     * share is not a valid key of the group
+     */
+    public byte[] agree(final PrivateKey own, final byte[] share) throws SecurityException {
+        try {
+            KeyFactory factory = KeyFactory.getInstance(keyAlgorithm);
+            PublicKey peer = factory.generatePublic(new X509EncodedKeySpec(share));
+
+            KeyAgreement agreement = KeyAgreement.getInstance(this.agreement);
+            agreement.init(own);
+            agreement.doPhase(peer, true);
+
+            return agreement.generateSecret();
+        } catch (GeneralSecurityException | IllegalStateException ex) {
+            throw new SecurityException("Invalid " + name() + " key share", ex);
+        }
+    }
+
+    private static boolean probe(final String keyAlgorithm, final String agreement) {
+        try {
+            KeyPairGenerator.getInstance(keyAlgorithm);
+            KeyAgreement.getInstance(agreement);
+            return true;
+        } catch (GeneralSecurityException ex) {
+            return false;
+        }
+    }
+}
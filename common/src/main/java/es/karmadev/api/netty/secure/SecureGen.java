@@ -24,6 +24,7 @@ import es.karmadev.api.core.ExceptionCollector;
 
 import javax.crypto.*;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 
 /**
@@ -33,10 +34,23 @@ public class SecureGen {
 
     public final static String PAIR_ALGORITHM = "RSA";
     public final static String SECRET_ALGORITHM = "AES";
+    private final static String DERIVE_ALGORITHM = "HmacSHA256";
+    private final static byte[] SHARE_LABEL = "channeling key share".getBytes(StandardCharsets.UTF_8);
+    private final static byte[] RESUMPTION_LABEL = "channeling resumption".getBytes(StandardCharsets.UTF_8);
+    private final static byte[] RESUMED_LABEL = "channeling resumed".getBytes(StandardCharsets.UTF_8);
+    private final static int NONCE_SIZE = 32;
+    private final static SecureRandom RANDOM = new SecureRandom();
 
     public final static SecurityProvider PAIR_PROVIDER = SecurityProvider.getInstance(PAIR_ALGORITHM);
     public final static SecurityProvider SECRET_PROVIDER = SecurityProvider.getInstance(SECRET_ALGORITHM);
 
+    /*
+    Looking up the cipher provider is more expensive than
+    initializing the cipher with another key, so each thread
+    keeps its key pair cipher
+     */
+    private final static ThreadLocal<Cipher> PAIR_CIPHER = new ThreadLocal<>();
+
     /**
      * Generate key pairs
      *
@@ -82,7 +96,7 @@ public class SecureGen {
      */
     public static byte[] protectKey(final SecretKey key, final PublicKey encoder) {
         try {
-            Cipher cipher = Cipher.getInstance(PAIR_ALGORITHM);
+            Cipher cipher = pairCipher();
             cipher.init(Cipher.ENCRYPT_MODE, encoder);
 
             return cipher.doFinal(key.getEncoded());
@@ -103,7 +117,7 @@ public class SecureGen {
      */
     public static SecretKey decodeKey(final byte[] encoded, final PrivateKey decoder) {
         try {
-            Cipher cipher = Cipher.getInstance(PAIR_ALGORITHM);
+            Cipher cipher = pairCipher();
             cipher.init(Cipher.DECRYPT_MODE, decoder);
 
             byte[] decoded = cipher.doFinal(encoded);
@@ -115,4 +129,98 @@ public class SecureGen {
 
         return null;
     }
+
+    /**
+     * Derive the connection secret from a key
+     * share agreement, with HKDF-SHA256. Both key
+     * shares are part of the derivation, so the secret
+     * is bound to the exchange it was agreed on
+     *
+     * @param shared the agreed secret
+     * @param serverShare the server key share
+     * @param clientShare the client key share
+     * @return the connection secret
+     */
+    public static SecretKey deriveSecret(final byte[] shared, final byte[] serverShare, final byte[] clientShare) {
+        return derive(shared, SHARE_LABEL, serverShare, clientShare);
+    }
+
+    /**
+     * Derive the resumption secret of a
+     * connection, which resumed connections
+     * derive their secret from
+     *
+     * @param secret the connection secret
+     * @return the resumption secret
+     */
+    public static SecretKey deriveResumption(final SecretKey secret) {
+        return derive(secret.getEncoded(), RESUMPTION_LABEL);
+    }
+
+    /**
+     * Derive the secret of a resumed connection.
+     * Both nonces are part of the derivation, so each
+     * resumed connection gets its own secret
+     *
+     * @param resumption the resumption secret
+     * @param clientNonce the client nonce
+     * @param serverNonce the server nonce
+     * @return the connection secret
+     */
+    public static SecretKey deriveResumed(final SecretKey resumption, final byte[] clientNonce, final byte[] serverNonce) {
+        return derive(resumption.getEncoded(), RESUMED_LABEL, clientNonce, serverNonce);
+    }
+
+    /**
+     * Generate a random nonce
+     *
+     * @return the nonce
+     */
+    public static byte[] generateNonce() {
+        byte[] nonce = new byte[NONCE_SIZE];
+        RANDOM.nextBytes(nonce);
+
+        return nonce;
+    }
+
+    /**
+     * HKDF-SHA256, the derived secret
+     * fits in a single block
+     *
+     * @param material the input key material
+     * @param label the derivation label
+     * @param context the derivation context
+     * @return the derived secret
+     */
+    private static SecretKey derive(final byte[] material, final byte[] label, final byte[]... context) {
+        try {
+            Mac mac = Mac.getInstance(DERIVE_ALGORITHM);
+
+            //Extract, without salt
+            mac.init(new SecretKeySpec(new byte[mac.getMacLength()], DERIVE_ALGORITHM));
+            byte[] pseudoRandom = mac.doFinal(material);
+
+            //Expand
+            mac.init(new SecretKeySpec(pseudoRandom, DERIVE_ALGORITHM));
+            mac.update(label);
+            for (byte[] data : context) mac.update(data);
+            mac.update((byte) 1);
+
+            return new SecretKeySpec(mac.doFinal(), SECRET_ALGORITHM);
+        } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+            ExceptionCollector.catchException(SecureGen.class, ex);
+        }
+
+        return null;
+    }
+
+    private static Cipher pairCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher cipher = PAIR_CIPHER.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(PAIR_ALGORITHM);
+            PAIR_CIPHER.set(cipher);
+        }
+
+        return cipher;
+    }
 }
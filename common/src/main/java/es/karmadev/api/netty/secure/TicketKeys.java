@@ -0,0 +1,224 @@
+package es.karmadev.api.netty.secure;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import lombok.Getter;
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keys the session resumption tickets are sealed with.
+ * Tickets are opaque to the clients, and contain everything
+ * needed to resume the session, so no state is kept per ticket.
+ * The key is rotated once per ticket lifetime, and only the current
+ * and the previous keys are kept, as a ticket sealed with an older
+ * key would already be expired. Tickets are sealed with
+ * {@link CipherSuite#AES_256_GCM}, using a random nonce
+ * [
+ *  [key id=int32],
+ *  [nonce=12 bytes],
+ *  [encrypted issue time=int64, client id=int64, resumption secret=32 bytes],
+ *  [tag=16 bytes]
+ * ]
+ */
+public final class TicketKeys {
+
+    private final static CipherSuite SUITE = CipherSuite.AES_256_GCM;
+    private final static int SECRET_SIZE = 32;
+    private final static int CONTENT_SIZE = Long.BYTES * 2 + SECRET_SIZE;
+    private final static int TICKET_SIZE = Integer.BYTES + CipherSuite.NONCE_SIZE + CONTENT_SIZE + CipherSuite.TAG_SIZE;
+    private final static SecureRandom RANDOM = new SecureRandom();
+
+    /*
+    Tickets are sealed and opened once per connection,
+    so each thread keeps its cipher instead of looking up
+    the provider every time
+     */
+    private final static ThreadLocal<Cipher> TICKET_CIPHER = new ThreadLocal<>();
+
+    /**
+     * The time a ticket is valid
+     * for, in milliseconds
+     */
+    @Getter
+    private final long lifetime;
+
+    private int nextId;
+    private volatile Entry current;
+    private volatile Entry previous;
+
+    /**
+     * Create the ticket keys
+     *
+     * @param lifetime the tickets lifetime
+     * @param unit the lifetime unit
+     */
+    public TicketKeys(final long lifetime, final @NonNull TimeUnit unit) {
+        if (lifetime <= 0) throw new IllegalArgumentException("Ticket lifetime must be positive");
+        this.lifetime = unit.toMillis(lifetime);
+    }
+
+    /**
+     * Issue a ticket
+     *
+     * @param clientId the client id
+     * @param resumption the client resumption secret
+     * @return the ticket
+     * @throws SecurityException if the ticket fails to seal
+     */
+    public byte[] issue(final long clientId, final @NonNull SecretKey resumption) throws SecurityException {
+        long now = System.currentTimeMillis();
+        Entry entry = current(now);
+
+        byte[] nonce = new byte[CipherSuite.NONCE_SIZE];
+        RANDOM.nextBytes(nonce);
+
+        ByteBuffer content = ByteBuffer.allocate(CONTENT_SIZE);
+        content.putLong(now).putLong(clientId).put(resumption.getEncoded(), 0, SECRET_SIZE);
+
+        ByteBuffer ticket = ByteBuffer.allocate(TICKET_SIZE);
+        ticket.putInt(entry.id).put(nonce);
+        try {
+            Cipher cipher = cipher();
+            cipher.init(Cipher.ENCRYPT_MODE, entry.key, SUITE.parameters(nonce));
+            cipher.updateAAD(ticket.array(), 0, Integer.BYTES);
+            cipher.doFinal(content.array(), 0, CONTENT_SIZE, ticket.array(), ticket.position());
+        } catch (GeneralSecurityException ex) {
+            throw new SecurityException("Failed to seal resumption ticket", ex);
+        }
+
+        return ticket.array();
+    }
+
+    /**
+     * Open a ticket
+     *
+     * @param ticket the ticket
+     * @return the ticket contents, or null if
+     * the ticket is not valid or expired
+     */
+    public @Nullable Ticket open(final byte[] ticket) {
+        if (ticket == null || ticket.length != TICKET_SIZE) return null;
+
+        long now = System.currentTimeMillis();
+        current(now);
+
+        ByteBuffer data = ByteBuffer.wrap(ticket);
+        int id = data.getInt();
+
+        Entry entry = current;
+        if (entry.id != id) entry = previous;
+        if (entry == null || entry.id != id) return null;
+
+        byte[] content = new byte[CONTENT_SIZE];
+        try {
+            Cipher cipher = cipher();
+            cipher.init(Cipher.DECRYPT_MODE, entry.key, SUITE.parameters(slice(ticket, Integer.BYTES, CipherSuite.NONCE_SIZE)));
+            cipher.updateAAD(ticket, 0, Integer.BYTES);
+
+            int offset = Integer.BYTES + CipherSuite.NONCE_SIZE;
+            cipher.doFinal(ticket, offset, ticket.length - offset, content, 0);
+        } catch (GeneralSecurityException ex) {
+            return null; //Forged or tampered
+        }
+
+        ByteBuffer opened = ByteBuffer.wrap(content);
+        long issued = opened.getLong();
+        long clientId = opened.getLong();
+        if (issued > now || now - issued >= lifetime) return null;
+
+        return new Ticket(clientId, new SecretKeySpec(content, Long.BYTES * 2, SECRET_SIZE, SecureGen.SECRET_ALGORITHM));
+    }
+
+    /**
+     * Get the current key, rotating it
+     * if its lifetime is over
+     *
+     * @param now the current time
+     * @return the current key
+     */
+    private Entry current(final long now) {
+        Entry entry = current;
+        if (entry != null && now - entry.created < lifetime) return entry;
+
+        synchronized (this) {
+            entry = current;
+            if (entry == null || now - entry.created >= lifetime) {
+                previous = entry;
+                current = entry = new Entry(nextId++, SecureGen.generateSecret(), now);
+            }
+
+            return entry;
+        }
+    }
+
+    private static Cipher cipher() throws GeneralSecurityException {
+        Cipher cipher = TICKET_CIPHER.get();
+        if (cipher == null) {
+            cipher = SUITE.newCipher();
+            TICKET_CIPHER.set(cipher);
+        }
+
+        return cipher;
+    }
+
+    private static byte[] slice(final byte[] data, final int offset, final int length) {
+        byte[] slice = new byte[length];
+        System.arraycopy(data, offset, slice, 0, length);
+
+        return slice;
+    }
+
+    /**
+     * The contents of an opened ticket
+     */
+    @Getter
+    public static final class Ticket {
+
+        private final long clientId;
+        private final SecretKey resumption;
+
+        private Ticket(final long clientId, final SecretKey resumption) {
+            this.clientId = clientId;
+            this.resumption = resumption;
+        }
+    }
+
+    private static final class Entry {
+
+        private final int id;
+        private final SecretKey key;
+        private final long created;
+
+        private Entry(final int id, final SecretKey key, final long created) {
+            this.id = id;
+            this.key = key;
+            this.created = created;
+        }
+    }
+}
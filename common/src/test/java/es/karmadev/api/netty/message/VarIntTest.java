@@ -0,0 +1,116 @@
+package es.karmadev.api.netty.message;
+
+import es.karmadev.api.netty.message.compress.CompressionPolicy;
+import es.karmadev.api.netty.message.table.DataTypes;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.CorruptedFrameException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+public class VarIntTest {
+
+    private final static long[] LONGS = {0, 1, -1, 63, -64, 64, -65, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1};
+
+    @Test
+    public void zigzagRoundTrip() {
+        for (long value : LONGS) {
+            assertEquals(value, VarInt.decodeZigZag(VarInt.encodeZigZag(value)));
+        }
+    }
+
+    @Test
+    public void zigzagKeepsSmallNumbersSmall() {
+        assertEquals(0, VarInt.encodeZigZag(0));
+        assertEquals(1, VarInt.encodeZigZag(-1));
+        assertEquals(2, VarInt.encodeZigZag(1));
+        assertEquals(-1, VarInt.encodeZigZag(Long.MIN_VALUE));
+        assertEquals(-2, VarInt.encodeZigZag(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void varIntRoundTrip() {
+        int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        for (int value : values) {
+            ByteBuf buffer = Unpooled.buffer();
+            VarInt.write(buffer, value);
+
+            assertEquals(VarInt.size(value), buffer.readableBytes());
+            assertEquals(value, VarInt.read(buffer));
+            assertFalse(buffer.isReadable());
+        }
+    }
+
+    @Test(expected = CorruptedFrameException.class)
+    public void rejectsOverlongVarInt() {
+        VarInt.read(Unpooled.wrappedBuffer(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01}));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsTruncatedVarInt() {
+        VarInt.read(Unpooled.wrappedBuffer(new byte[]{(byte) 0x80}));
+    }
+
+    @Test
+    public void zigzagMessageRoundTrip() throws IOException, DataFormatException {
+        assertNumbersRoundTrip(true);
+    }
+
+    @Test
+    public void plainMessageRoundTrip() throws IOException, DataFormatException {
+        assertNumbersRoundTrip(false);
+    }
+
+    @Test
+    public void zigzagShrinksNegativeNumbers() throws IOException {
+        OutMessage zigzag = new MessageBuilder().compression(CompressionPolicy.NEVER).writeInt64(-1).build(1);
+        OutMessage plain = new MessageBuilder().compression(CompressionPolicy.NEVER).zigzag(false).writeInt64(-1).build(1);
+        try {
+            assertEquals(1, length(zigzag, DataTypes.INT64));
+            assertEquals(8, length(plain, DataTypes.INT64));
+        } finally {
+            zigzag.release();
+            plain.release();
+        }
+    }
+
+    private static void assertNumbersRoundTrip(final boolean zigzag) throws IOException, DataFormatException {
+        short[] shorts = {0, -1, 1, Short.MIN_VALUE, Short.MAX_VALUE};
+        int[] ints = {0, -1, 1, Integer.MIN_VALUE, Integer.MAX_VALUE};
+
+        MessageBuilder builder = new MessageBuilder().compression(CompressionPolicy.NEVER).zigzag(zigzag);
+        for (short value : shorts) builder.writeInt16(value);
+        for (int value : ints) builder.writeInt32(value);
+        for (long value : LONGS) builder.writeInt64(value);
+
+        OutMessage out = builder.build(1);
+        DecMessage message = new DecMessage(1, Unpooled.wrappedBuffer(out.readAll()));
+        try {
+            MessageView view = message.view();
+            for (int i = 0; i < shorts.length; i++) assertEquals(shorts[i], view.getInt16(i));
+            for (int i = 0; i < ints.length; i++) assertEquals(ints[i], view.getInt32(i));
+            for (int i = 0; i < LONGS.length; i++) assertEquals(LONGS[i], view.getInt64(i));
+
+            for (short value : shorts) assertEquals(Short.valueOf(value), message.getInt16());
+            for (int value : ints) assertEquals(Integer.valueOf(value), message.getInt32());
+            for (long value : LONGS) assertEquals(Long.valueOf(value), message.getInt64());
+            assertNull(message.getInt64());
+        } finally {
+            message.release();
+            out.release();
+        }
+    }
+
+    private static int length(final OutMessage message, final DataTypes type) {
+        MessageView view = message.view();
+        for (int i = 0; i < view.size(); i++) {
+            if (view.field(i).getType() == type) return view.field(i).getDestination() - view.field(i).getOrigin();
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,162 @@
+package es.karmadev.api.netty.message.table;
+
+import es.karmadev.api.netty.message.DecMessage;
+import es.karmadev.api.netty.message.MessageBuilder;
+import es.karmadev.api.netty.message.MessageView;
+import es.karmadev.api.netty.message.OutMessage;
+import es.karmadev.api.netty.message.compress.CompressionPolicy;
+import es.karmadev.api.netty.message.table.entry.TableEntry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+public class DataTableTest {
+
+    @Test
+    public void compactTableRoundTrip() throws IOException {
+        DataTable table = new DataTable();
+        table.addEntry(DataTypes.UTF, 0, 5);
+        table.addEntry(DataTypes.UTF, 5, 7);
+        table.addEntry(DataTypes.INT64, 7, 15, true);
+        table.addEntry(DataTypes.BYTE, 15, 315);
+
+        ByteBuf buffer = withData(table, 315);
+        assertEquals(DataTable.FORMAT_COMPACT, buffer.getByte(0));
+
+        DataTable read = DataTable.read(buffer);
+        assertSameEntries(table, read);
+        assertEquals(315, buffer.readableBytes());
+    }
+
+    @Test
+    public void compactTableIsSmallerThanLegacy() {
+        DataTable table = new DataTable();
+        table.addEntry(DataTypes.UTF, 0, 4);
+        table.addEntry(DataTypes.INT64, 4, 12);
+        table.addEntry(DataTypes.BYTE, 12, 44);
+
+        ByteBuf buffer = Unpooled.buffer();
+        table.write(buffer);
+
+        assertTrue(buffer.readableBytes() < 4 + table.getLength());
+    }
+
+    @Test
+    public void nonContiguousTableFallsBackToLegacy() throws IOException {
+        DataTable table = new DataTable();
+        table.addEntry(DataTypes.INT32, 0, 4);
+        table.addEntry(DataTypes.INT32, 8, 12);
+
+        ByteBuf buffer = withData(table, 12);
+        assertNotEquals(DataTable.FORMAT_COMPACT, buffer.getByte(0));
+
+        assertSameEntries(table, DataTable.read(buffer));
+    }
+
+    @Test
+    public void messageRoundTrip() throws IOException, DataFormatException {
+        OutMessage out = new MessageBuilder()
+                .compression(CompressionPolicy.NEVER)
+                .writeUTF("channel")
+                .writeUTF("other")
+                .writeInt64(42)
+                .write(new byte[]{1, 2, 3})
+                .writeBoolean(true)
+                .build(7);
+
+        DecMessage message = new DecMessage(7, Unpooled.wrappedBuffer(out.readAll()));
+        try {
+            MessageView view = message.view();
+            assertEquals(5, view.size());
+            assertEquals("channel", view.getUTF(0));
+            assertEquals("other", view.getUTF(1));
+            assertEquals(42, view.getInt64(0));
+            assertArrayEquals(new byte[]{1, 2, 3}, view.getBytes(0));
+            assertTrue(view.getBoolean(0));
+        } finally {
+            message.release();
+            out.release();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnknownEntryType() throws IOException {
+        DataTable.read(Unpooled.wrappedBuffer(new byte[]{DataTable.FORMAT_COMPACT, 1, 0x3F, 1, 1, 0}));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEntryPastTheData() throws IOException {
+        DataTable.read(Unpooled.wrappedBuffer(new byte[]{DataTable.FORMAT_COMPACT, 1, 0, 1, 4, 0, 0}));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEntriesAddingPastTheData() throws IOException {
+        DataTable.read(Unpooled.wrappedBuffer(new byte[]{DataTable.FORMAT_COMPACT, 1, 0, 2, 2, 2, 0, 0, 0}));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOverflowingEntryLength() throws IOException {
+        //Two entries of Integer.MAX_VALUE would overflow the origin
+        ByteBuf buffer = Unpooled.buffer();
+        buffer.writeByte(DataTable.FORMAT_COMPACT);
+        buffer.writeByte(1);
+        buffer.writeByte(DataTypes.BYTE.getId());
+        buffer.writeByte(2);
+        buffer.writeBytes(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07});
+        buffer.writeBytes(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07});
+
+        DataTable.read(buffer);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNegativeLegacyLength() throws IOException {
+        DataTable.read(Unpooled.wrappedBuffer(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0}));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsLegacyLengthPastTheData() throws IOException {
+        DataTable.read(Unpooled.wrappedBuffer(new byte[]{0, 0, 0, 18, 0, 0, 0, 0, 0, 0, 0, 0, 4}));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMissingTable() throws IOException {
+        DataTable.read(Unpooled.EMPTY_BUFFER);
+    }
+
+    @Test
+    public void rejectsTruncatedTable() {
+        ByteBuf buffer = Unpooled.wrappedBuffer(new byte[]{DataTable.FORMAT_COMPACT, 3, 0, 1});
+        assertThrows(Exception.class, () -> DataTable.read(buffer));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMalformedMessage() throws Exception {
+        new DecMessage(1, Unpooled.wrappedBuffer(new byte[]{(byte) 0x80, DataTable.FORMAT_COMPACT, 1, 0x3F, 1, 1, 0}));
+    }
+
+    private static ByteBuf withData(final DataTable table, final int dataLength) {
+        ByteBuf buffer = Unpooled.buffer();
+        table.write(buffer);
+        buffer.writeZero(dataLength);
+
+        return buffer;
+    }
+
+    private static void assertSameEntries(final DataTable expected, final DataTable actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            TableEntry entry = expected.get(i);
+            TableEntry read = actual.get(i);
+
+            assertEquals(entry.getType(), read.getType());
+            assertEquals(entry.getOrigin(), read.getOrigin());
+            assertEquals(entry.getDestination(), read.getDestination());
+            assertEquals(entry.isZigzag(), read.isZigzag());
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package es.karmadev.api.netty.secure;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class AeadCipherTest {
+
+    private final static CipherSuite SUITE = CipherSuite.AES_256_GCM;
+    private final static byte[] DATA = "sealed message".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void sealAndOpen() {
+        SecretKey key = key(1);
+        AeadCipher sealer = new AeadCipher(SUITE, key, Cipher.ENCRYPT_MODE);
+        AeadCipher opener = new AeadCipher(SUITE, key, Cipher.DECRYPT_MODE);
+
+        for (int i = 0; i < 3; i++) {
+            ByteBuf sealed = seal(sealer);
+            assertEquals(AeadCipher.sealedSize(DATA.length), sealed.readableBytes());
+
+            assertArrayEquals(DATA, ByteBufUtil.getBytes(opener.open(ByteBufAllocator.DEFAULT, sealed)));
+        }
+    }
+
+    @Test
+    public void sealAndOpenInPlace() {
+        SecretKey key = key(1);
+        AeadCipher opener = new AeadCipher(SUITE, key, Cipher.DECRYPT_MODE);
+
+        ByteBuf sealed = seal(new AeadCipher(SUITE, key, Cipher.ENCRYPT_MODE));
+        assertTrue(AeadCipher.canOpenInPlace(sealed));
+        assertArrayEquals(DATA, ByteBufUtil.getBytes(opener.openInPlace(sealed)));
+    }
+
+    @Test
+    public void rejectsReplayedData() {
+        SecretKey key = key(1);
+        AeadCipher sealer = new AeadCipher(SUITE, key, Cipher.ENCRYPT_MODE);
+        AeadCipher opener = new AeadCipher(SUITE, key, Cipher.DECRYPT_MODE);
+
+        ByteBuf sealed = seal(sealer);
+        opener.open(ByteBufAllocator.DEFAULT, sealed);
+
+        assertThrows(SecurityException.class, () -> opener.open(ByteBufAllocator.DEFAULT, sealed));
+    }
+
+    @Test
+    public void rejectsReorderedData() {
+        SecretKey key = key(1);
+        AeadCipher sealer = new AeadCipher(SUITE, key, Cipher.ENCRYPT_MODE);
+        AeadCipher opener = new AeadCipher(SUITE, key, Cipher.DECRYPT_MODE);
+
+        ByteBuf first = seal(sealer);
+        ByteBuf second = seal(sealer);
+        opener.open(ByteBufAllocator.DEFAULT, second);
+
+        assertThrows(SecurityException.class, () -> opener.open(ByteBufAllocator.DEFAULT, first));
+    }
+
+    @Test
+    public void rejectsForgedSequence() {
+        SecretKey key = key(1);
+        AeadCipher opener = new AeadCipher(SUITE, key, Cipher.DECRYPT_MODE);
+
+        //The nonce is authenticated, so a skipped ahead sequence fails to open
+        ByteBuf sealed = seal(new AeadCipher(SUITE, key, Cipher.ENCRYPT_MODE));
+        int last = sealed.readerIndex() + CipherSuite.NONCE_SIZE - 1;
+        sealed.setByte(last, sealed.getByte(last) + 5);
+
+        assertThrows(SecurityException.class, () -> opener.open(ByteBufAllocator.DEFAULT, sealed));
+
+        //A failed open does not move the sequence
+        ByteBuf valid = seal(new AeadCipher(SUITE, key, Cipher.ENCRYPT_MODE));
+        assertArrayEquals(DATA, ByteBufUtil.getBytes(opener.open(ByteBufAllocator.DEFAULT, valid)));
+    }
+
+    @Test
+    public void rejectsTamperedData() {
+        SecretKey key = key(1);
+        AeadCipher opener = new AeadCipher(SUITE, key, Cipher.DECRYPT_MODE);
+
+        ByteBuf sealed = seal(new AeadCipher(SUITE, key, Cipher.ENCRYPT_MODE));
+        int index = sealed.readerIndex() + CipherSuite.NONCE_SIZE;
+        sealed.setByte(index, ~sealed.getByte(index));
+
+        assertThrows(SecurityException.class, () -> opener.open(ByteBufAllocator.DEFAULT, sealed));
+    }
+
+    @Test
+    public void rejectsAnotherKey() {
+        AeadCipher opener = new AeadCipher(SUITE, key(2), Cipher.DECRYPT_MODE);
+        ByteBuf sealed = seal(new AeadCipher(SUITE, key(1), Cipher.ENCRYPT_MODE));
+
+        assertThrows(SecurityException.class, () -> opener.open(ByteBufAllocator.DEFAULT, sealed));
+    }
+
+    @Test
+    public void rejectsShortData() {
+        AeadCipher opener = new AeadCipher(SUITE, key(1), Cipher.DECRYPT_MODE);
+        ByteBuf sealed = Unpooled.buffer().writeZero(AeadCipher.sealedSize(0) - 1);
+
+        assertThrows(SecurityException.class, () -> opener.open(ByteBufAllocator.DEFAULT, sealed));
+    }
+
+    @Test
+    public void sessionRecordsRoundTrip() {
+        SecretKey secret = SecureGen.generateSecret();
+        CipherSession client = CipherSession.attach(new EmbeddedChannel());
+        CipherSession server = CipherSession.attach(new EmbeddedChannel());
+
+        client.offer(secret);
+        server.accept(secret, SUITE);
+        assertTrue(server.isSealed());
+        assertFalse(client.isSealed());
+
+        ByteBuf record = Unpooled.buffer();
+        server.seal(record, 42, Unpooled.wrappedBuffer(DATA));
+        assertEquals(CipherSession.sealedSize(DATA.length), record.readableBytes());
+
+        ByteBuf opened = client.open(ByteBufAllocator.DEFAULT, record);
+        assertEquals(SUITE, client.getSuite());
+        assertEquals(42, opened.readLong());
+        assertArrayEquals(DATA, ByteBufUtil.getBytes(opened));
+
+        ByteBuf reply = Unpooled.buffer();
+        client.seal(reply, 7, Unpooled.wrappedBuffer(DATA));
+        ByteBuf copy = reply.copy();
+
+        ByteBuf answered = server.open(ByteBufAllocator.DEFAULT, reply);
+        assertEquals(7, answered.readLong());
+        assertArrayEquals(DATA, ByteBufUtil.getBytes(answered));
+
+        assertThrows(SecurityException.class, () -> server.open(ByteBufAllocator.DEFAULT, copy));
+    }
+
+    @Test
+    public void sessionRejectsNotOfferedSuite() {
+        CipherSession client = CipherSession.attach(new EmbeddedChannel());
+        ByteBuf record = Unpooled.buffer().writeByte(0x7F).writeZero(AeadCipher.sealedSize(Long.BYTES));
+
+        client.offer(SecureGen.generateSecret());
+        assertThrows(SecurityException.class, () -> client.open(ByteBufAllocator.DEFAULT, record));
+    }
+
+    private static ByteBuf seal(final AeadCipher sealer) {
+        ByteBuf out = Unpooled.buffer();
+        sealer.seal(out, Unpooled.wrappedBuffer(DATA));
+
+        return out;
+    }
+
+    private static SecretKey key(final int seed) {
+        byte[] material = new byte[32];
+        Arrays.fill(material, (byte) seed);
+
+        return SUITE.key(material);
+    }
+}
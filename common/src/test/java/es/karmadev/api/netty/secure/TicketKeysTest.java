@@ -0,0 +1,81 @@
+package es.karmadev.api.netty.secure;
+
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TicketKeysTest {
+
+    @Test
+    public void issueAndOpen() {
+        TicketKeys keys = new TicketKeys(1, TimeUnit.HOURS);
+        SecretKey resumption = SecureGen.generateSecret();
+
+        TicketKeys.Ticket ticket = keys.open(keys.issue(42, resumption));
+        assertNotNull(ticket);
+        assertEquals(42, ticket.getClientId());
+        assertArrayEquals(resumption.getEncoded(), ticket.getResumption().getEncoded());
+    }
+
+    @Test
+    public void rejectsExpiredTicket() throws InterruptedException {
+        TicketKeys keys = new TicketKeys(200, TimeUnit.MILLISECONDS);
+        byte[] ticket = keys.issue(42, SecureGen.generateSecret());
+
+        Thread.sleep(300);
+        assertNull(keys.open(ticket));
+    }
+
+    @Test
+    public void opensTicketSealedWithThePreviousKey() throws InterruptedException {
+        TicketKeys keys = new TicketKeys(1000, TimeUnit.MILLISECONDS);
+        byte[] first = keys.issue(1, SecureGen.generateSecret());
+
+        Thread.sleep(600);
+        byte[] second = keys.issue(2, SecureGen.generateSecret());
+
+        //The key rotates, the second ticket is still valid, the first one expired
+        Thread.sleep(600);
+        TicketKeys.Ticket ticket = keys.open(second);
+        assertNotNull(ticket);
+        assertEquals(2, ticket.getClientId());
+        assertNull(keys.open(first));
+    }
+
+    @Test
+    public void rejectsTicketOfRotatedKeys() {
+        TicketKeys keys = new TicketKeys(1, TimeUnit.HOURS);
+        TicketKeys rotated = new TicketKeys(1, TimeUnit.HOURS);
+
+        //Both key sets use the same key id, but not the same key
+        assertNull(keys.open(rotated.issue(42, SecureGen.generateSecret())));
+    }
+
+    @Test
+    public void rejectsTamperedTicket() {
+        TicketKeys keys = new TicketKeys(1, TimeUnit.HOURS);
+        byte[] ticket = keys.issue(42, SecureGen.generateSecret());
+
+        for (int i = 0; i < ticket.length; i++) {
+            byte[] tampered = ticket.clone();
+            tampered[i] ^= 1;
+
+            assertNull("Accepted a ticket tampered at " + i, keys.open(tampered));
+        }
+    }
+
+    @Test
+    public void rejectsMalformedTicket() {
+        TicketKeys keys = new TicketKeys(1, TimeUnit.HOURS);
+        byte[] ticket = keys.issue(42, SecureGen.generateSecret());
+
+        assertNull(keys.open(null));
+        assertNull(keys.open(new byte[0]));
+        assertNull(keys.open(new byte[ticket.length]));
+        assertNull(keys.open(Arrays.copyOf(ticket, ticket.length - 1)));
+    }
+}
@@ -0,0 +1,226 @@
+package es.karmadev.api.netty;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import es.karmadev.api.netty.message.MessageBuilder;
+import es.karmadev.api.netty.message.compress.CompressionPolicy;
+import es.karmadev.api.netty.message.nat.Messages;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.AttributeKey;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which connections the server accepts. Each
+ * connection is admitted as its channel is initialized, so
+ * rejected connections never reach the handshake. Connections
+ * are rejected once the max concurrent handshakes is reached,
+ * or once the accept rate is exceeded, with a
+ * {@link Messages#DISCONNECTION} which tells the client
+ * when to retry
+ * [
+ *  [reason=utf],
+ *  [retry after=int64 millis]
+ * ]
+ */
+public final class AdmissionController {
+
+    private final static AttributeKey<Boolean> HANDSHAKING = AttributeKey.valueOf("channeling_admission_handshaking");
+    private final static String BUSY_REASON = "Server is busy";
+
+    private final AtomicInteger handshakes = new AtomicInteger();
+
+    /**
+     * The max handshakes which can run at once,
+     * zero or less for no limit
+     */
+    @Getter
+    @Setter
+    private volatile int maxHandshakes = 1024;
+    /**
+     * The time a connection has to complete its
+     * handshake, in milliseconds. Connections which
+     * don't complete it in time are closed
+     */
+    @Getter
+    private volatile long handshakeTimeout = TimeUnit.SECONDS.toMillis(10);
+    /**
+     * The time rejected clients are told to
+     * wait before retrying, in milliseconds
+     */
+    @Getter
+    private volatile long retryAfter = TimeUnit.SECONDS.toMillis(1);
+
+    private double rate;
+    private double burst;
+    private double tokens;
+    private long refilled;
+
+    /**
+     * Set the time a connection has to
+     * complete its handshake
+     *
+     * @param timeout the handshake timeout
+     * @param unit the timeout unit
+     */
+    public void setHandshakeTimeout(final long timeout, final @NonNull TimeUnit unit) {
+        this.handshakeTimeout = unit.toMillis(timeout);
+    }
+
+    /**
+     * Set the time rejected clients are told
+     * to wait before retrying
+     *
+     * @param retryAfter the time to wait
+     * @param unit the time unit
+     */
+    public void setRetryAfter(final long retryAfter, final @NonNull TimeUnit unit) {
+        this.retryAfter = Math.max(1, unit.toMillis(retryAfter));
+    }
+
+    /**
+     * Set the accept rate. Connections are accepted
+     * while the bucket has tokens, the bucket is refilled
+     * at the accept rate, up to the burst
+     *
+     * @param perSecond the connections accepted each
+     *                  second, zero or less for no limit
+     * @param burst the connections which can be accepted
+     *              at once
+     */
+    public synchronized void setAcceptRate(final double perSecond, final int burst) {
+        this.rate = Math.max(0, perSecond);
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.refilled = System.nanoTime();
+    }
+
+    /**
+     * Get the accept rate
+     *
+     * @return the connections accepted
+     * each second, zero if there's no limit
+     */
+    public synchronized double getAcceptRate() {
+        return rate;
+    }
+
+    /**
+     * Get the handshakes running
+     *
+     * @return the running handshakes
+     */
+    public int getHandshakes() {
+        return handshakes.get();
+    }
+
+    /**
+     * Admit a connection. Admitted connections take
+     * a handshake until the handshake completes, or the
+     * connection is closed
+     *
+     * @param channel the connection
+     * @return zero if the connection was admitted, otherwise
+     * the time the client should wait before retrying, in
+     * milliseconds
+     */
+    public long admit(final @NonNull Channel channel) {
+        int max = maxHandshakes;
+        if (handshakes.incrementAndGet() > max && max > 0) {
+            handshakes.decrementAndGet();
+            return retryAfter;
+        }
+
+        long wait = acquire();
+        if (wait > 0) {
+            handshakes.decrementAndGet();
+            return Math.max(retryAfter, wait);
+        }
+
+        channel.attr(HANDSHAKING).set(true);
+        channel.closeFuture().addListener((ChannelFutureListener) future -> complete(channel));
+
+        long timeout = handshakeTimeout;
+        if (timeout > 0) {
+            channel.eventLoop().schedule(() -> {
+                if (channel.attr(HANDSHAKING).get() != null) channel.close();
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        return 0;
+    }
+
+    /**
+     * Mark the handshake of the connection
+     * as completed, releasing it
+     *
+     * @param channel the connection
+     */
+    public void complete(final @NonNull Channel channel) {
+        if (channel.attr(HANDSHAKING).getAndSet(null) != null) handshakes.decrementAndGet();
+    }
+
+    /**
+     * Reject a connection, telling the client
+     * when to retry
+     *
+     * @param channel the connection
+     * @param policy the compression policy
+     * @param retryAfter the time the client should
+     *                   wait before retrying, in milliseconds
+     */
+    public void reject(final @NonNull Channel channel, final @NonNull CompressionPolicy policy, final long retryAfter) {
+        try {
+            MessageBuilder builder = MessageBuilder.pooled().compression(policy);
+            builder.writeUTF(BUSY_REASON);
+            builder.writeInt64(retryAfter);
+
+            channel.writeAndFlush(builder.build(Messages.DISCONNECTION))
+                    .addListener(ChannelFutureListener.CLOSE);
+        } catch (IOException ex) {
+            channel.close();
+        }
+    }
+
+    /*
+    Takes a token from the bucket, returning the
+    time until the bucket has one otherwise
+     */
+    private synchronized long acquire() {
+        if (rate <= 0) return 0;
+
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilled) / 1e9 * rate);
+        refilled = now;
+
+        if (tokens >= 1) {
+            tokens--;
+            return 0;
+        }
+
+        return (long) Math.ceil((1 - tokens) / rate * 1000);
+    }
+}
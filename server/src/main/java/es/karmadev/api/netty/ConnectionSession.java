@@ -0,0 +1,166 @@
+package es.karmadev.api.netty;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import es.karmadev.api.channel.com.remote.RemoteClient;
+import es.karmadev.api.netty.VirtualChannel;
+import es.karmadev.api.netty.secure.CipherSession;
+import es.karmadev.api.netty.secure.KeyShareGroup;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+import org.jetbrains.annotations.Nullable;
+
+import javax.crypto.SecretKey;
+import java.security.KeyPair;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per connection session state. The session is
+ * attached to the connection when it's accepted, and
+ * detached once it becomes inactive, so the state of
+ * a connection never outlives it
+ */
+@Getter
+public final class ConnectionSession {
+
+    private final static AttributeKey<ConnectionSession> KEY = AttributeKey.valueOf("channeling_connection_session");
+
+    private final Channel channel;
+    private final CipherSession cipher;
+
+    /**
+     * The id the client sent on the
+     * key exchange
+     */
+    @Setter
+    private volatile long clientId;
+    /**
+     * The client secret, known once
+     * the key exchange is performed
+     */
+    @Setter
+    private volatile @Nullable SecretKey clientKey;
+    /**
+     * The algorithm the client
+     * secret is used with
+     */
+    @Setter
+    private volatile @Nullable String clientAlgorithm;
+    /**
+     * The group of our ephemeral key share
+     */
+    private volatile @Nullable KeyShareGroup keyShareGroup;
+    /**
+     * Our ephemeral key share, only kept
+     * until the key exchange is performed
+     */
+    private volatile @Nullable KeyPair keyShare;
+    /**
+     * If the client requested the discover
+     * on the key exchange
+     */
+    @Setter
+    private volatile boolean discoverRequested;
+    /**
+     * If the client supports session
+     * resumption tickets
+     */
+    @Setter
+    private volatile boolean ticketRequested;
+    /**
+     * If a handshake step of the connection is
+     * running at the handshake executor. Connections
+     * only run one step at once
+     */
+    @Setter
+    private volatile boolean handshaking;
+    /**
+     * The channels the client joined
+     */
+    private final Set<VirtualChannel> channels = ConcurrentHashMap.newKeySet();
+    /**
+     * The client, only set once the
+     * connection is completed
+     */
+    @Setter
+    private volatile @Nullable RemoteClient client;
+
+    private ConnectionSession(final Channel channel) {
+        this.channel = channel;
+        this.cipher = CipherSession.attach(channel);
+    }
+
+    /**
+     * Set our ephemeral key share
+     *
+     * @param group the key share group
+     * @param share the key share
+     */
+    public void setKeyShare(final @Nullable KeyShareGroup group, final @Nullable KeyPair share) {
+        this.keyShareGroup = group;
+        this.keyShare = share;
+    }
+
+    /**
+     * Get the connection session
+     *
+     * @param channel the connection
+     * @return the connection session
+     */
+    public static @Nullable ConnectionSession get(final @NonNull Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    /**
+     * Attach a session to the connection, if
+     * it has none yet
+     *
+     * @param channel the connection
+     * @return the connection session
+     */
+    public static ConnectionSession attach(final @NonNull Channel channel) {
+        ConnectionSession session = channel.attr(KEY).get();
+        if (session != null) return session;
+
+        session = new ConnectionSession(channel);
+        ConnectionSession current = channel.attr(KEY).setIfAbsent(session);
+        return current == null ? session : current;
+    }
+
+    /**
+     * Detach the session of the connection,
+     * releasing its state
+     *
+     * @param channel the connection
+     */
+    public static void detach(final @NonNull Channel channel) {
+        ConnectionSession session = channel.attr(KEY).getAndSet(null);
+        if (session == null) return;
+
+        session.clientKey = null;
+        session.keyShare = null;
+        session.clientAlgorithm = null;
+        session.client = null;
+    }
+}
@@ -0,0 +1,137 @@
+package es.karmadev.api.netty;
+
+/*
+ * Copyright 2023 KarmaDev
+ *
+ * This file is part of NettyChanneling.
+ *
+ * NettyChanneling is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * NettyChanneling is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with NettyChanneling. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.NonNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool the handshake crypto runs at. The key
+ * agreements, secret unwraps and access key checks of the
+ * connecting clients run here instead of at the connection
+ * event loop, so a burst of connections doesn't stall the
+ * established connections sharing the loop. The result of
+ * each step is completed back at the connection event loop,
+ * so the connection state is only modified by its loop
+ */
+public final class HandshakeExecutor {
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Create the handshake executor
+     *
+     * @param threads the pool threads
+     * @param backlog the steps which can wait
+     *                for a thread, further steps are
+     *                rejected
+     */
+    public HandshakeExecutor(final int threads, final int backlog) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(backlog), new DefaultThreadFactory("channeling-handshake", true));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a handshake step
+     *
+     * @param channel the connection
+     * @param step the step, which returns the completion
+     *             to run at the connection event loop
+     * @return if the step was accepted, false if the
+     * executor is saturated
+     */
+    public boolean submit(final @NonNull Channel channel, final @NonNull Callable<Completion> step) {
+        try {
+            executor.execute(() -> {
+                Completion completion;
+                try {
+                    completion = step.call();
+                } catch (Throwable ex) {
+                    fail(channel, ex);
+                    return;
+                }
+
+                try {
+                    channel.eventLoop().execute(() -> {
+                        if (!channel.isOpen()) return;
+
+                        try {
+                            completion.complete();
+                        } catch (Throwable ex) {
+                            fail(channel, ex);
+                        }
+                    });
+                } catch (RejectedExecutionException ignored) {} //The event loop is shutting down
+            });
+
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the steps waiting for a thread
+     *
+     * @return the pending steps
+     */
+    public int getPending() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Shutdown the executor
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static void fail(final Channel channel, final Throwable cause) {
+        try {
+            channel.eventLoop().execute(() -> {
+                channel.pipeline().fireExceptionCaught(cause);
+                channel.close();
+            });
+        } catch (RejectedExecutionException ignored) {}
+    }
+
+    /**
+     * The completion of a handshake step
+     */
+    @FunctionalInterface
+    public interface Completion {
+
+        /**
+         * Complete the step, at the
+         * connection event loop
+         *
+         * @throws Exception if the step fails to complete
+         */
+        void complete() throws Exception;
+    }
+}
@@ -24,6 +24,8 @@ import es.karmadev.api.netty.message.MessageBuilder;
 import es.karmadev.api.netty.message.nat.Messages;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.util.ReferenceCountUtil;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 
 import java.io.IOException;
@@ -38,6 +40,7 @@ public class RemoteClient implements es.karmadev.api.channel.com.remote.RemoteCl
 
     private final long id;
     private final Server server;
+    @Getter
     private final Channel channel;
     private final Properties properties = new Properties();
 
@@ -71,7 +74,7 @@ public class RemoteClient implements es.karmadev.api.channel.com.remote.RemoteCl
     @Override
     public void write(final BaseMessage message) {
         if (!channel.isOpen()) return;
-        channel.writeAndFlush(message);
+        channel.writeAndFlush(ReferenceCountUtil.retain(message)); //The pipeline releases the message once written
     }
 
     /**
@@ -85,7 +88,7 @@ public class RemoteClient implements es.karmadev.api.channel.com.remote.RemoteCl
         server.getConnectedClients().remove(this);
 
         try {
-            MessageBuilder builder = new MessageBuilder();
+            MessageBuilder builder = MessageBuilder.pooled().compression(server.getCompression());
             builder.writeUTF(reason);
 
             BaseMessage message = builder.build(Messages.DISCONNECTION);
@@ -21,21 +21,39 @@ package es.karmadev.api.netty;
 
 import es.karmadev.api.channel.com.Bridge;
 import es.karmadev.api.channel.com.remote.RemoteClient;
-import es.karmadev.api.channel.com.security.SecurityProvider;
 import es.karmadev.api.channel.data.BaseMessage;
 import es.karmadev.api.channel.subscription.event.data.server.MessageBroadcastEvent;
 import es.karmadev.api.netty.handler.DataDecoder;
 import es.karmadev.api.netty.handler.DataEncoder;
 import es.karmadev.api.netty.handler.ServerHandler;
+import es.karmadev.api.netty.handler.StreamContext;
 import es.karmadev.api.netty.message.MessageBuilder;
+import es.karmadev.api.netty.message.compress.CompressionDictionary;
+import es.karmadev.api.netty.message.compress.CompressionPolicy;
+import es.karmadev.api.netty.message.compress.StreamCompression;
 import es.karmadev.api.netty.message.nat.Messages;
+import es.karmadev.api.netty.secure.ChannelKey;
+import es.karmadev.api.netty.secure.CipherSession;
+import es.karmadev.api.netty.secure.KeyShareGroup;
+import es.karmadev.api.netty.secure.TicketKeys;
 import es.karmadev.api.netty.secure.SecureGen;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.*;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.ChannelMatcher;
+import io.netty.channel.group.ChannelMatchers;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
 import org.jetbrains.annotations.Nullable;
 
 import javax.annotation.concurrent.ThreadSafe;
@@ -46,7 +64,10 @@ import java.security.KeyPair;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 /**
@@ -58,27 +79,108 @@ public class Server extends SubscriberImpl implements es.karmadev.api.channel.Se
 
     private final EventLoopGroup bossGroup = new NioEventLoopGroup();
     private final EventLoopGroup workerGroup = new NioEventLoopGroup();
+
+    /**
+     * The amount of connections written by each
+     * fan-out task, so large fan-outs are split
+     * into several event loop tasks, and don't
+     * stall the event loop
+     */
+    private final static int FAN_OUT_BATCH = 256;
+
+    /**
+     * Connection attribute set when the connection
+     * reads channel messages encrypted with the
+     * channel key
+     */
+    public final static AttributeKey<Boolean> CHANNEL_KEYS = AttributeKey.valueOf("channeling_channel_keys");
+    private final static ChannelMatcher CHANNEL_KEY_MEMBERS = (channel) -> channel.hasAttr(CHANNEL_KEYS);
+
+    /**
+     * All the accepted connections, closed
+     * connections are removed automatically
+     */
+    @Getter
+    private final ChannelGroup connections = new DefaultChannelGroup("connections", GlobalEventExecutor.INSTANCE);
+    /**
+     * The connected clients, the client of each
+     * connection is kept in its {@link ConnectionSession}
+     */
     @Getter
-    private final Map<String, RemoteClient> connectedClients = new ConcurrentHashMap<>();
-    private final Queue<VirtualChannel> channels = new ArrayDeque<>();
+    private final Set<RemoteClient> connectedClients = ConcurrentHashMap.newKeySet();
+    private final ChannelRegistry channels = new ChannelRegistry();
+    private final AtomicInteger channelIds = new AtomicInteger(VirtualChannel.UNASSIGNED_ID);
     private final AtomicBoolean starting = new AtomicBoolean(false);
 
     private final SocketAddress address;
 
     private ServerChannel server;
 
-    @Getter
-    private final KeyPair pair;
+    private volatile KeyPair pair;
     @Getter
     private final SecretKey secret;
+    /**
+     * If the server offers the RSA key exchange, for
+     * clients which don't support any key share group. Servers
+     * which disable it never generate their RSA key pair
+     */
+    @Getter
+    @Setter
+    private volatile boolean legacyKeyExchange = true;
+    /**
+     * The keys the session resumption tickets are
+     * sealed with, null if resumption is disabled
+     */
+    @Getter
+    private volatile @Nullable TicketKeys tickets = new TicketKeys(1, TimeUnit.HOURS);
+    /**
+     * The threads the handshake crypto runs at,
+     * applied when the server starts
+     */
+    @Getter
+    @Setter
+    private int handshakeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    /**
+     * The handshakes which can wait for a thread,
+     * further connections are rejected. Applied when
+     * the server starts
+     */
+    @Getter
+    @Setter
+    private int handshakeBacklog = 1024;
+    @Getter
+    private HandshakeExecutor handshakes;
+    /**
+     * Decides which connections are accepted, so
+     * a reconnect storm doesn't overload the server
+     */
+    @Getter
+    private final AdmissionController admission = new AdmissionController();
+    /**
+     * The connections the OS queues while we are
+     * not accepting them, applied when the server starts
+     */
+    @Getter
+    @Setter
+    private int acceptBacklog = 128;
 
     @Getter
     private byte[] accessKey;
 
-    private final byte[] encoded;
-
-    private final Map<String, SecretKey> keyMap = new ConcurrentHashMap<>();
-    private final Map<String, String> keyAlgoMap = new ConcurrentHashMap<>();
+    @Getter
+    @Setter
+    private int maxFrameLength = DataDecoder.DEFAULT_MAX_FRAME_LENGTH;
+    @Getter
+    private volatile @NonNull CompressionPolicy compression = CompressionPolicy.DEFAULT;
+    /**
+     * The policy messages sent before the key exchange
+     * are compressed with. The client doesn't know our
+     * dictionary yet, so they are compressed without it
+     */
+    private volatile @NonNull CompressionPolicy handshakeCompression = CompressionPolicy.DEFAULT;
+    @Getter
+    @Setter
+    private @Nullable StreamCompression streamCompression;
 
     public Server() throws SocketException {
         this(findAddress(4653));
@@ -99,15 +201,24 @@ public class Server extends SubscriberImpl implements es.karmadev.api.channel.Se
     public Server(final SocketAddress address) {
         this.address = address;
 
-        this.pair = SecureGen.generateKeyPair();
         this.secret = SecureGen.generateSecret();
+    }
 
-        byte[] encoded = null;
-        if (this.pair != null && this.secret != null) {
-            encoded = SecureGen.protectKey(secret, pair.getPublic());
-        }
+    /**
+     * Get the server RSA key pair. The pair is
+     * only generated once a client needs the legacy
+     * key exchange, as generating it is expensive
+     *
+     * @return the server key pair
+     */
+    public KeyPair getPair() {
+        KeyPair current = pair;
+        if (current != null) return current;
 
-        this.encoded = encoded;
+        synchronized (this) {
+            if (pair == null) pair = SecureGen.generateKeyPair();
+            return pair;
+        }
     }
 
 
@@ -152,6 +263,11 @@ public class Server extends SubscriberImpl implements es.karmadev.api.channel.Se
      */
     public void setKey(final String key) {
         if (this.server != null && server.isOpen()) return;
+
+        //Issued tickets prove the previous access key
+        TicketKeys current = tickets;
+        if (current != null) tickets = new TicketKeys(current.getLifetime(), TimeUnit.MILLISECONDS);
+
         if (key == null) {
             this.accessKey = null;
             return;
@@ -165,6 +281,19 @@ public class Server extends SubscriberImpl implements es.karmadev.api.channel.Se
                 .encodeData(key.getBytes(), secret);
     }
 
+    /**
+     * Set the time the session resumption tickets
+     * are valid for. Changing it invalidates the
+     * issued tickets
+     *
+     * @param lifetime the tickets lifetime, zero
+     *                 or less to disable resumption
+     * @param unit the lifetime unit
+     */
+    public void setTicketLifetime(final long lifetime, final TimeUnit unit) {
+        this.tickets = lifetime > 0 ? new TicketKeys(lifetime, unit) : null;
+    }
+
     /**
      * Get the server ID
      *
@@ -188,12 +317,12 @@ public class Server extends SubscriberImpl implements es.karmadev.api.channel.Se
      */
     @Override
     public Collection<? extends RemoteClient> getClients() {
-        return Collections.unmodifiableCollection(connectedClients.values());
+        return Collections.unmodifiableCollection(connectedClients);
     }
 
     @Override
     public Collection<VirtualChannel> getChannels() {
-        return Collections.unmodifiableCollection(channels);
+        return channels.values();
     }
 
     /**
@@ -204,8 +333,17 @@ public class Server extends SubscriberImpl implements es.karmadev.api.channel.Se
      */
     @Override
     public @Nullable VirtualChannel getChannel(final String name) {
-        return channels.stream().filter((ch) -> ch.getName().equalsIgnoreCase(name))
-                .findAny().orElse(null);
+        return channels.get(name);
+    }
+
+    /**
+     * Get an existing channel
+     *
+     * @param id the channel id
+     * @return the channel
+     */
+    public @Nullable VirtualChannel getChannel(final int id) {
+        return channels.get(id);
     }
 
     /**
@@ -219,12 +357,17 @@ public class Server extends SubscriberImpl implements es.karmadev.api.channel.Se
         return null;
     }
 
+    /**
+     * Create a channel. If there's already a
+     * channel with the name, that channel is
+     * returned instead
+     *
+     * @param name the channel name
+     * @return the channel
+     */
     @Override
     public VirtualChannel createChannel(final String name) {
-        VirtualChannel channel = new VirtualChannel(this, name);
-        channels.add(channel);
-
-        return channel;
+        return channels.getOrCreate(name, (channelName) -> new VirtualChannel(this, channelName, channelIds.incrementAndGet()));
     }
 
     /**
@@ -240,7 +383,15 @@ public class Server extends SubscriberImpl implements es.karmadev.api.channel.Se
         handle(event);
 
         if (event.isCancelled()) return;
-        server.writeAndFlush(message);
+
+        /*
+        Connections which have not completed the key
+        exchange yet must not receive any message
+         */
+        fanOut(connections, (channel) -> {
+            ConnectionSession session = ConnectionSession.get(channel);
+            return session != null && session.getClient() != null;
+        }, message);
     }
 
     @Override
@@ -259,57 +410,72 @@ public class Server extends SubscriberImpl implements es.karmadev.api.channel.Se
         if (starting.get()) throw new RuntimeException("Already starting server!");
         starting.set(true);
 
+        /*
+        Generate the key pair in the background, so neither
+        the start nor the first connection have to wait for it
+         */
+        if (handshakes == null) handshakes = new HandshakeExecutor(handshakeThreads, handshakeBacklog);
+        if (legacyKeyExchange && pair == null) CompletableFuture.runAsync(this::getPair);
+
         ServerBootstrap bootstrap = new ServerBootstrap();
         bootstrap.group(bossGroup, workerGroup)
                 .channel(NioServerSocketChannel.class)
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) {
+                        connections.add(ch);
+
+                        /*
+                        Messages sent by the client are encrypted with our
+                        secret, the ones we send are encrypted with the client
+                        secret, once the key exchange is completed
+                         */
+                        ConnectionSession connection = ConnectionSession.attach(ch);
+                        connection.getCipher().setDecryptKey(secret);
+
                         DataEncoder encoder = new DataEncoder((message, channel) -> {
-                            String channelId = channel.id().asLongText();
-                            if (keyMap.containsKey(channelId)) {
-                                SecretKey key = keyMap.get(channelId);
-                                String algorithm = keyAlgoMap.get(channelId);
+                            CipherSession session = CipherSession.get(channel);
+                            if (session == null || !session.canEncrypt() || message.getId() == Messages.CHANNEL_ENCODED.getId()) {
+                                return message;
+                            }
 
-                                SecurityProvider provider = SecurityProvider.getInstance(algorithm);
-                                byte[] encoded = provider.encodeData(message.readAll(), key);
+                            ByteBuf body = DataEncoder.body(message);
+                            ByteBuf encoded = null;
+                            try {
+                                encoded = session.encrypt(channel.alloc(), body);
 
-                                MessageBuilder encodedBuilder = new MessageBuilder();
+                                /*
+                                The message is already compressed, and the encrypted
+                                data is not compressible
+                                 */
+                                MessageBuilder encodedBuilder = MessageBuilder.pooled().compression(CompressionPolicy.NEVER);
                                 encodedBuilder.writeInt64(message.getId());
                                 encodedBuilder.write(encoded);
                                 encodedBuilder.writeUTF(SecureGen.SECRET_ALGORITHM);
 
-                                try {
-                                    return encodedBuilder.build(Messages.ENCODED);
-                                } catch (IOException ex) {
-                                    throw new RuntimeException(ex);
-                                }
+                                return encodedBuilder.build(Messages.ENCODED);
+                            } catch (IOException ex) {
+                                throw new RuntimeException(ex);
+                            } finally {
+                                body.release();
+                                if (encoded != null) encoded.release();
                             }
-
-                            return message;
                         });
-                        DataDecoder decoder = new DataDecoder();
+                        DataDecoder decoder = new DataDecoder(maxFrameLength);
                         ServerHandler handler = new ServerHandler(Server.this);
 
                         ch.pipeline().addLast(encoder, decoder, handler);
 
-                        if (encoded != null) {
-                            assert pair != null;
-
-                            try {
-                                MessageBuilder builder = new MessageBuilder();
-                                builder.write(pair.getPublic().getEncoded());
-                                builder.writeUTF(SecureGen.PAIR_ALGORITHM);
-
-                                BaseMessage exchange = builder.build(Messages.KEY_EXCHANGE);
-                                ch.writeAndFlush(exchange);
-                            } catch (IOException ex) {
-                                throw new RuntimeException(ex);
-                            }
+                        long retryAfter = admission.admit(ch);
+                        if (retryAfter > 0) {
+                            admission.reject(ch, handshakeCompression, retryAfter);
+                            return;
                         }
+
+                        if (secret != null) offerKeyExchange(ch, connection);
                     }
                 })
-                .option(ChannelOption.SO_BACKLOG, 128)
+                .option(ChannelOption.SO_BACKLOG, acceptBacklog)
                 .option(ChannelOption.SO_KEEPALIVE, true);
 
         bootstrap.bind(address).addListener((ChannelFutureListener) channelFuture -> {
@@ -330,11 +496,113 @@ public class Server extends SubscriberImpl implements es.karmadev.api.channel.Se
         workerGroup.shutdownGracefully();
         bossGroup.shutdownGracefully();
         server.close();
+
+        if (handshakes != null) {
+            handshakes.shutdown();
+            handshakes = null;
+        }
+    }
+
+    /**
+     * Offer the key exchange to a connection. Our
+     * ephemeral key share is sent first, so clients which
+     * support its group agree the secret with it, the rest
+     * wrap their secret with our RSA key as usual. The key
+     * share is generated at the handshake executor
+     *
+     * @param channel the connection
+     * @param session the connection session
+     */
+    private void offerKeyExchange(final Channel channel, final ConnectionSession session) {
+        KeyShareGroup group = KeyShareGroup.preferred();
+        boolean legacy = legacyKeyExchange;
+
+        boolean accepted = handshakes.submit(channel, () -> {
+            KeyPair share = group != null ? group.generate() : null;
+            KeyPair pair = legacy ? getPair() : null;
+
+            return () -> {
+                CompressionPolicy policy = handshakeCompression;
+                CompressionDictionary dictionary = compression.getDictionary();
+
+                /*
+                The client compresses with the dictionary we
+                send it, which may not be the server one anymore
+                by the time its messages arrive
+                 */
+                StreamContext stream = StreamContext.get(channel);
+                if (stream != null) stream.setDictionary(dictionary);
+
+                if (share != null) {
+                    session.setKeyShare(group, share);
+
+                    MessageBuilder builder = MessageBuilder.pooled().compression(policy);
+                    builder.writeInt16((short) group.getId());
+                    builder.write(share.getPublic().getEncoded());
+                    if (dictionary != null) builder.write(dictionary.getData());
+                    builder.writeBoolean(tickets != null); //Clients with a ticket resume instead
+
+                    channel.write(builder.build(Messages.KEY_SHARE));
+                }
+
+                if (pair != null) {
+                    MessageBuilder builder = MessageBuilder.pooled().compression(policy);
+                    builder.write(pair.getPublic().getEncoded());
+                    builder.writeUTF(SecureGen.PAIR_ALGORITHM);
+                    if (dictionary != null) builder.write(dictionary.getData());
+
+                    channel.write(builder.build(Messages.KEY_EXCHANGE));
+                }
+
+                channel.flush();
+            };
+        });
+
+        if (!accepted) admission.reject(channel, handshakeCompression, admission.getRetryAfter());
+    }
+
+    /**
+     * Set the key the messages sent to the
+     * connection are encrypted with
+     *
+     * @param channel the connection
+     * @param key the connection key
+     */
+    public void mapKey(final Channel channel, final SecretKey key) {
+        CipherSession.attach(channel).setEncryptKey(key);
     }
 
-    public void mapKey(final Channel channel, final SecretKey key, final String algorithm) {
-        this.keyMap.put(channel.id().asLongText(), key);
-        this.keyAlgoMap.put(channel.id().asLongText(), algorithm);
+    /**
+     * Set the min size a message must have
+     * to be compressed. Smaller messages are
+     * sent raw
+     *
+     * @param threshold the compression threshold
+     */
+    public void setCompressionThreshold(final int threshold) {
+        setCompression(compression.withThreshold(threshold));
+    }
+
+    /**
+     * Set the preset dictionary used to compress
+     * messages. The dictionary is sent to the clients
+     * on the key exchange, so they can use it too
+     *
+     * @param dictionary the dictionary, or null to
+     *                   stop using a dictionary
+     */
+    public void setCompressionDictionary(final @Nullable CompressionDictionary dictionary) {
+        setCompression(compression.withDictionary(dictionary));
+    }
+
+    /**
+     * Set the policy used to compress messages
+     *
+     * @param compression the compression policy
+     */
+    public void setCompression(final @NonNull CompressionPolicy compression) {
+        this.compression = compression;
+        this.handshakeCompression = compression.withDictionary(null);
     }
 
     /**
@@ -348,6 +616,212 @@ public class Server extends SubscriberImpl implements es.karmadev.api.channel.Se
         broadcast(message);
     }
 
+    /**
+     * Push a channel message to the members
+     * of the channel. Members which read channel
+     * keys get the message encrypted once with the
+     * channel key, so all of them share the same
+     * frame
+     *
+     * @param channel the channel
+     * @param message the message
+     */
+    @Override
+    public void push(final VirtualChannel channel, final BaseMessage message) {
+        /*
+        Key rotations lock the channel too, so members always
+        receive the new key before the messages encrypted with it
+         */
+        synchronized (channel) {
+            boolean keyMembers = hasMatch(channel.getMembers(), CHANNEL_KEY_MEMBERS);
+
+            /*
+            Membership changes only invalidate the key, so it's
+            rotated once for all the changes since the last message
+             */
+            if (keyMembers && channel.isKeyStale()) distributeKey(channel, channel.rotateKey());
+
+            ChannelKey key = channel.getKey();
+            if (key == null || !keyMembers) {
+                fanOut(channel.getMembers(), ChannelMatchers.all(), message);
+                return;
+            }
+
+            MessageBuilder builder = MessageBuilder.pooled().compression(CompressionPolicy.NEVER); //Encrypted data is not compressible
+            builder.writeInt32(channel.getId());
+            builder.writeInt32(key.getEpoch());
+
+            ByteBuf body = DataEncoder.body(message);
+            try {
+                ByteBuf sealedBody = key.seal(ByteBufAllocator.DEFAULT, body);
+                builder.write(sealedBody);
+                sealedBody.release();
+            } finally {
+                body.release();
+            }
+
+            BaseMessage sealed;
+            try {
+                sealed = builder.build(Messages.CHANNEL_ENCODED);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+
+            try {
+                fanOut(channel.getMembers(), CHANNEL_KEY_MEMBERS, sealed);
+            } finally {
+                ReferenceCountUtil.release(sealed);
+            }
+
+            fanOut(channel.getMembers(), ChannelMatchers.invert(CHANNEL_KEY_MEMBERS), message);
+        }
+    }
+
+    /**
+     * Send the channel key to the channel
+     * members which read channel keys. Each member
+     * gets the key encrypted with its own session key
+     *
+     * @param channel the channel
+     * @param key the channel key
+     */
+    private void distributeKey(final VirtualChannel channel, final ChannelKey key) {
+        MessageBuilder builder = MessageBuilder.pooled().compression(compression);
+        builder.writeInt32(channel.getId());
+        builder.writeInt32(key.getEpoch());
+        builder.write(key.getEncoded());
+
+        BaseMessage message;
+        try {
+            message = builder.build(Messages.CHANNEL_KEY);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        try {
+            for (Channel member : channel.getMembers()) {
+                if (!member.hasAttr(CHANNEL_KEYS)) continue;
+                member.writeAndFlush(ReferenceCountUtil.retain(message)); //The pipeline releases the message once written
+            }
+        } finally {
+            ReferenceCountUtil.release(message);
+        }
+    }
+
+    private static boolean hasMatch(final ChannelGroup group, final ChannelMatcher matcher) {
+        for (Channel channel : group) {
+            if (matcher.matches(channel)) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Write a message to a group of connections. The
+     * message frame is built once, and shared by all the
+     * connections which neither encrypt nor stream compress
+     * the messages, the rest get the message encoded by their
+     * own pipeline. The connections are written from their
+     * event loop, in batches, with void promises and a single
+     * flush per connection and batch
+     *
+     * @param group the connections
+     * @param matcher the connections to write to
+     * @param message the message
+     */
+    private void fanOut(final ChannelGroup group, final ChannelMatcher matcher, final BaseMessage message) {
+        Map<EventLoop, List<Channel>> loops = new IdentityHashMap<>();
+        boolean shared = false;
+        for (Channel channel : group) {
+            if (!channel.isActive() || !matcher.matches(channel)) continue;
+            loops.computeIfAbsent(channel.eventLoop(), (loop) -> new ArrayList<>()).add(channel);
+
+            /*
+            Connections only move from raw to encoded, so if
+            none is raw now, none will be once written
+             */
+            shared |= !requiresEncoding(channel, message);
+        }
+        if (loops.isEmpty()) return;
+
+        ByteBuf frame = null;
+        try {
+            if (shared) frame = DataEncoder.frame(ByteBufAllocator.DEFAULT, message);
+
+            for (Map.Entry<EventLoop, List<Channel>> entry : loops.entrySet()) {
+                List<Channel> channels = entry.getValue();
+
+                for (int from = 0; from < channels.size(); from += FAN_OUT_BATCH) {
+                    int to = Math.min(channels.size(), from + FAN_OUT_BATCH);
+                    Channel[] batch = channels.subList(from, to).toArray(new Channel[0]);
+
+                    write(entry.getKey(), batch, message, frame);
+                }
+            }
+        } finally {
+            if (frame != null) frame.release();
+        }
+    }
+
+    /**
+     * Write the message to the connections from their
+     * event loop. Whether each connection gets the shared
+     * frame or encodes the message is decided there, as the
+     * connection might have completed its handshake since
+     *
+     * @param loop the connections event loop
+     * @param batch the connections
+     * @param message the message
+     * @param frame the shared message frame, null if
+     *              no connection takes it
+     */
+    private static void write(final EventLoop loop, final Channel[] batch, final BaseMessage message, final @Nullable ByteBuf frame) {
+        //The batch owns a reference of both until written
+        ReferenceCountUtil.retain(message);
+        if (frame != null) frame.retain();
+
+        try {
+            loop.execute(() -> {
+                try {
+                    for (Channel channel : batch) {
+                        Object payload = frame == null || requiresEncoding(channel, message)
+                                ? ReferenceCountUtil.retain(message) //The pipeline releases the message once written
+                                : frame.retainedDuplicate();
+
+                        channel.write(payload, channel.voidPromise());
+                    }
+                    for (Channel channel : batch) channel.flush();
+                } finally {
+                    ReferenceCountUtil.release(message);
+                    if (frame != null) frame.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            ReferenceCountUtil.release(message);
+            if (frame != null) frame.release();
+        }
+    }
+
+    /**
+     * Get if the message written to the
+     * connection must be encoded specifically
+     * for it. Channel encoded messages are never
+     * encoded again
+     *
+     * @param channel the connection
+     * @param message the message
+     * @return if the connection encodes
+     * the message
+     */
+    private static boolean requiresEncoding(final Channel channel, final BaseMessage message) {
+        if (message.getId() == Messages.CHANNEL_ENCODED.getId()) return false;
+        CipherSession session = CipherSession.get(channel);
+        if (session != null && (session.isSealed() || session.canEncrypt())) return true;
+
+        StreamContext stream = StreamContext.get(channel);
+        return stream != null && stream.isCompressing();
+    }
+
     /**
      * Get if the writeable object
      * is ready to process elements
@@ -25,16 +25,19 @@ import es.karmadev.api.channel.subscription.event.NetworkEvent;
 import es.karmadev.api.channel.subscription.event.data.server.ClientDiscoverEvent;
 import es.karmadev.api.channel.subscription.event.data.server.channel.ClientJoinChannelEvent;
 import es.karmadev.api.channel.subscription.event.data.server.channel.ClientLeaveChannelEvent;
+import es.karmadev.api.netty.ConnectionSession;
 import es.karmadev.api.netty.Server;
 import es.karmadev.api.netty.VirtualChannel;
 import es.karmadev.api.netty.message.MessageBuilder;
+import es.karmadev.api.netty.message.MessageView;
 import es.karmadev.api.netty.message.nat.Messages;
+import es.karmadev.api.netty.message.table.DataTypes;
+import es.karmadev.api.netty.secure.ChannelKey;
 import io.netty.channel.Channel;
+import io.netty.util.ReferenceCountUtil;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
 import java.util.List;
 
 public class BaseServerHandlers {
@@ -50,25 +53,28 @@ public class BaseServerHandlers {
         RemoteClient client = locateClient(channel);
         if (client == null) return false;
 
+        MessageView view = MessageView.of(message);
+        if (view == null) return false;
+
         switch (type) {
             case CHANNEL_JOIN:
-                handleChannelJoin(message.clone(), client);
+                handleChannelJoin(message, view, client, channel);
                 handled = true;
                 break;
             case CHANNEL_LEAVE:
-                handleChannelLeave(message.clone(), client);
+                handleChannelLeave(view, client, channel);
                 handled = true;
                 break;
             case DISCOVER:
-                handleDiscover(client);
+                handleDiscover(client, false);
                 handled = true;
                 break;
             case CHANNEL_MESSAGE:
-                handleChannelMessage(client, message.clone());
+                handleChannelMessage(client, message, view);
                 handled = true;
                 break;
             case DISCONNECTION:
-                handleDisconnect(client);
+                handleDisconnect(client, channel);
                 handled = true;
                 break;
         }
@@ -77,52 +83,114 @@ public class BaseServerHandlers {
     }
 
     private RemoteClient locateClient(final Channel channel) {
-        String id = channel.id().asLongText();
-        return server.getConnectedClients().get(id);
+        ConnectionSession session = ConnectionSession.get(channel);
+        return session != null ? session.getClient() : null;
     }
 
-    private void handleChannelJoin(final BaseMessage message, final RemoteClient client) {
-        String targetChannel = message.getUTF();
-        if (targetChannel == null) return;
+    private void handleChannelJoin(final BaseMessage message, final MessageView view, final RemoteClient client, final Channel connection) {
+        if (view.count(DataTypes.UTF) == 0) return;
+        String targetChannel = view.getUTF(0);
 
         VirtualChannel channel = server.getChannel(targetChannel);
         if (channel == null) return;
 
+        if (view.count(DataTypes.BOOLEAN) != 0 && view.getBoolean(0)) {
+            connection.attr(Server.CHANNEL_KEYS).set(true);
+        }
+
         if (channel.getConnections().contains(client)) {
-            sendChannelJoinSuccess(targetChannel, client); //We won't return silently, instead, we send a "200" response
+            sendChannelJoinSuccess(channel, client, connection); //We won't return silently, instead, we send a "200" response
             return;
         }
 
-        ClientJoinChannelEvent event = new ClientJoinChannelEvent(client, channel, message.clone());
+        /*
+        Subscribers read the event message through its cursors, so
+        they get their own copy, which starts after the channel name
+         */
+        BaseMessage eventMessage = message.clone();
+        eventMessage.getUTF();
+
+        ClientJoinChannelEvent event = new ClientJoinChannelEvent(client, channel, eventMessage);
         channel.handle(event);
         if (event.isCancelled()) {
             return;
         }
 
-        channel.getConnections().add(client);
-        sendChannelJoinSuccess(targetChannel, client);
+        /*
+        The channel key is rotated when the channel members change,
+        so clients can't read the messages sent while they were
+        not members. The rotation is deferred to the next message,
+        so a burst of joins costs a single rotation
+         */
+        synchronized (channel) {
+            if (channel.join(client, connection)) {
+                ConnectionSession session = ConnectionSession.get(connection);
+                if (session != null) session.getChannels().add(channel);
+
+                channel.invalidateKey();
+            }
+
+            sendChannelJoinSuccess(channel, client, connection);
+        }
+    }
+
+    /**
+     * Remove a client from a channel, and
+     * invalidate the channel key
+     *
+     * @param channel the channel
+     * @param client the client
+     * @param connection the client connection
+     * @return if the client was removed
+     */
+    boolean leave(final VirtualChannel channel, final RemoteClient client, final Channel connection) {
+        ConnectionSession session = ConnectionSession.get(connection);
+        if (session != null) session.getChannels().remove(channel);
+
+        synchronized (channel) {
+            if (!channel.leave(client)) return false;
+
+            channel.invalidateKey();
+            return true;
+        }
     }
 
     /**
      * Send a channel join success message to
-     * a client who requested to join a channel
+     * a client who requested to join a channel. The
+     * message carries the channel id, which the client
+     * uses instead of the channel name from now on, and
+     * the channel key, if the client reads channel keys
      *
-     * @param targetChannel the target channel
+     * @param channel the target channel
      * @param client the client
+     * @param connection the client connection
      */
-    private void sendChannelJoinSuccess(final String targetChannel, final RemoteClient client) {
-        MessageBuilder builder = new MessageBuilder();
-        builder.writeUTF(targetChannel);
+    private void sendChannelJoinSuccess(final VirtualChannel channel, final RemoteClient client, final Channel connection) {
+        MessageBuilder builder = MessageBuilder.pooled().compression(server.getCompression());
+        builder.writeUTF(channel.getName());
+        builder.writeInt32(channel.getId());
+
+        /*
+        Stale keys are rotated before sealing another message,
+        the client gets the rotated key then
+         */
+        ChannelKey key = channel.getKey();
+        if (key != null && !channel.isKeyStale() && connection.hasAttr(Server.CHANNEL_KEYS)) {
+            builder.writeInt32(key.getEpoch());
+            builder.write(key.getEncoded());
+        }
 
         try {
             BaseMessage response = builder.build(Messages.CHANNEL_JOIN);
             client.write(response);
+            ReferenceCountUtil.release(response);
         } catch (IOException ignored) {}
     }
 
-    private void handleChannelLeave(final  BaseMessage message, final RemoteClient client) {
-        String targetChannel = message.getUTF();
-        if (targetChannel == null) return;
+    private void handleChannelLeave(final MessageView view, final RemoteClient client, final Channel connection) {
+        if (view.count(DataTypes.UTF) == 0) return;
+        String targetChannel = view.getUTF(0);
 
         VirtualChannel channel = server.getChannel(targetChannel);
         if (channel == null || !channel.getConnections().contains(client)) return;
@@ -130,7 +198,7 @@ public class BaseServerHandlers {
         ClientLeaveChannelEvent event = new ClientLeaveChannelEvent(client, channel);
         channel.handle(event);
 
-        channel.getConnections().remove(client);
+        leave(channel, client, connection);
     }
 
     /**
@@ -141,26 +209,28 @@ public class BaseServerHandlers {
      *
      * @param client the client which wants to discover
      *               the server channels.
+     * @param always if the response must be sent even when
+     *               there are no channels to discover, as clients
+     *               which got the discover pushed wait for it
      */
-    private void handleDiscover(final RemoteClient client) {
+    void handleDiscover(final RemoteClient client, final boolean always) {
         List<String> names = new ArrayList<>();
         for (VirtualChannel channel : server.getChannels()) {
             if (channel.getConnections().contains(client)) continue;
             names.add(channel.getName());
         }
 
+        if (!names.isEmpty()) {
+            ClientDiscoverEvent event = new ClientDiscoverEvent(client);
+            event.getChannels().addAll(names);
 
-        if (names.isEmpty()) return;
-
-        ClientDiscoverEvent event = new ClientDiscoverEvent(client);
-        event.getChannels().addAll(names);
-
-        server.handle(event);
-        names.retainAll(event.getChannels());
+            server.handle(event);
+            names.retainAll(event.getChannels());
+        }
 
-        if (names.isEmpty()) return;
+        if (names.isEmpty() && !always) return;
 
-        MessageBuilder builder = new MessageBuilder();
+        MessageBuilder builder = MessageBuilder.pooled().compression(server.getCompression());
         for (String name : names) {
             builder.writeUTF(name);
         }
@@ -168,6 +238,7 @@ public class BaseServerHandlers {
         try {
             BaseMessage response = builder.build(Messages.DISCOVER);
             client.write(response);
+            ReferenceCountUtil.release(response);
         } catch (IOException ignored) {}
     }
 
@@ -178,18 +249,21 @@ public class BaseServerHandlers {
      *               the message
      * @param message the message that the user wants to send
      *                on the channel
+     * @param view the message view
      */
-    private void handleChannelMessage(final RemoteClient client, final BaseMessage message) {
-        BaseMessage cloned = message.clone();
-
-        System.out.print("Channel message from " + client);
-        String channelName = cloned.getUTF();
-
-        System.out.print(" at channel " + channelName);
-        if (channelName == null) return;
+    private void handleChannelMessage(final RemoteClient client, final BaseMessage message, final MessageView view) {
+        VirtualChannel channel;
+        if (view.count(DataTypes.INT32) != 0) {
+            channel = server.getChannel(view.getInt32(0));
+        } else {
+            /*
+            Clients which were not given the channel id
+            still send the channel name
+             */
+            if (view.count(DataTypes.UTF) == 0) return;
+            channel = server.getChannel(view.getUTF(0));
+        }
 
-        VirtualChannel channel = server.getChannel(channelName);
-        System.out.print(" which is instantiated as " + channel);
         if (channel == null) return;
 
         if (!channel.getConnections().contains(client)) return;
@@ -198,38 +272,27 @@ public class BaseServerHandlers {
         are not connected to
          */
 
-        System.out.println(" and contains the message sender.");
-
-        Long messageId = cloned.getInt64();
-        byte[] realMessage = cloned.getBytes();
-
-        System.out.println("The embedded message id is " + messageId + " and its data is " + Arrays.toString(realMessage));
-        if (messageId == null || realMessage == null) return;
-
-        for (RemoteClient rc : channel.getConnections()) {
-            //if (rc.equals(client)) continue;
-            /*
-            Prevent sending the message to ourselves, most clients should
-            expect the server to handle this
-            */
-
-            rc.write(message);
-            /*
-            The server simply forwards the message, the client is responsible for handling
-            the data
-             */
-        }
+        if (view.count(DataTypes.INT64) == 0 || view.count(DataTypes.BYTE) == 0) return;
+        server.push(channel, message);
+        /*
+        The server simply forwards the message, the client is responsible for handling
+        the data. The sender is a member of the channel too, most clients should
+        expect the server to handle this
+         */
     }
 
     /**
      * Handle client disconnection
      *
      * @param client the client that is disconnecting
+     * @param connection the client connection
      */
-    private void handleDisconnect(final RemoteClient client) {
-        Collection<VirtualChannel> channels = server.getChannels();
-        for (VirtualChannel vc : channels) {
-            vc.getConnections().remove(client); //Remove the client from the channel
+    private void handleDisconnect(final RemoteClient client, final Channel connection) {
+        ConnectionSession session = ConnectionSession.get(connection);
+        if (session == null) return;
+
+        for (VirtualChannel vc : new ArrayList<>(session.getChannels())) {
+            if (!leave(vc, client, connection)) continue; //Remove the client from the channel
 
             NetworkEvent event = new ClientLeaveChannelEvent(client, vc);
             vc.handle(event);
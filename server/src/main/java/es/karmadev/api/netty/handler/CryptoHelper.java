@@ -25,11 +25,22 @@ import es.karmadev.api.channel.data.BaseMessage;
 import es.karmadev.api.channel.subscription.event.NetworkEvent;
 import es.karmadev.api.channel.subscription.event.connection.server.ClientConnectedEvent;
 import es.karmadev.api.channel.subscription.event.data.server.direct.DirectMessageEvent;
+import es.karmadev.api.netty.AdmissionController;
+import es.karmadev.api.netty.ConnectionSession;
+import es.karmadev.api.netty.HandshakeExecutor;
 import es.karmadev.api.netty.Server;
 import es.karmadev.api.netty.message.DecMessage;
 import es.karmadev.api.netty.message.MessageBuilder;
+import es.karmadev.api.netty.message.MessageView;
+import es.karmadev.api.netty.message.compress.StreamCompression;
 import es.karmadev.api.netty.message.nat.Messages;
+import es.karmadev.api.netty.message.table.DataTypes;
+import es.karmadev.api.netty.secure.CipherSession;
+import es.karmadev.api.netty.secure.CipherSuite;
+import es.karmadev.api.netty.secure.KeyShareGroup;
 import es.karmadev.api.netty.secure.SecureGen;
+import es.karmadev.api.netty.secure.TicketKeys;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 
 import javax.crypto.SecretKey;
@@ -37,9 +48,8 @@ import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.security.KeyPair;
 import java.security.PrivateKey;
-import java.util.Arrays;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.security.MessageDigest;
+import java.util.concurrent.Callable;
 import java.util.zip.DataFormatException;
 
 /**
@@ -47,57 +57,266 @@ import java.util.zip.DataFormatException;
  */
 class CryptoHelper {
 
-    private final static Map<String, SecretKey> clientKeys = new ConcurrentHashMap<>();
-    private final static Map<String, String> clientKeyAlgorithms = new ConcurrentHashMap<>();
-    private final static Map<String, Long> connectionIds = new ConcurrentHashMap<>();
-
     /**
-     * Perform a key exchange server-side
+     * Perform a key exchange server-side. The message
+     * is read at the event loop, but the secret is unwrapped
+     * or agreed at the handshake executor
      *
      * @param message the message which contains information
      *                for the key exchange to work
      * @param server  the server
      * @param channel the sender
-     * @throws IOException if the exchange message fails to build
+     * @param handler the message handler
      */
-    public static void performKeyExchange(final BaseMessage message, final Server server, final Channel channel) throws IOException {
+    public static void performKeyExchange(final BaseMessage message, final Server server, final Channel channel,
+                                          final BaseServerHandlers handler) {
+        ConnectionSession session = ConnectionSession.get(channel);
         Long connectionId = message.getInt64();
-        if (connectionId == null) return;
+        if (session == null || connectionId == null) return;
+
+        /*
+        The secret is only exchanged once, clients which
+        exchange it again, or while it's being exchanged,
+        are misbehaving
+         */
+        if (exchanged(session) || session.isHandshaking()) {
+            channel.close();
+            return;
+        }
 
         byte[] encodedSecret = message.getBytes();
         String algorithm = message.getUTF();
+        Boolean streamRequested = message.getBoolean();
+
+        /*
+        Clients which support sealed connections offer
+        their cipher suites after the stream request. Clients
+        which pipeline the handshake also send their access key
+        proof and request the discover in the same message, so
+        they are ready after a single round trip
+         */
+        int[] offered = new int[0];
+        byte[] accessProof = null;
+        boolean discoverRequested = false;
+        boolean ticketRequested = false;
+        KeyShareGroup group = null;
+
+        MessageView view = MessageView.of(message);
+        if (view != null) {
+            offered = new int[view.count(DataTypes.INT16)];
+            for (int i = 0; i < offered.length; i++) offered[i] = view.getInt16(i);
+
+            if (view.count(DataTypes.BYTE) > 1) accessProof = view.getBytes(1);
+            discoverRequested = view.count(DataTypes.BOOLEAN) > 1 && view.getBoolean(1);
+            ticketRequested = view.count(DataTypes.BOOLEAN) > 2 && view.getBoolean(2);
+
+            /*
+            Clients which agreed the secret on our key share
+            send their key share instead of the wrapped secret
+             */
+            if (view.count(DataTypes.INT32) > 0) {
+                group = KeyShareGroup.byId(view.getInt32(0));
+                if (group == null) return;
+            }
+        }
 
-        KeyPair serverPair = server.getPair();
-        assert serverPair != null;
-
-        PrivateKey serverPrivate = serverPair.getPrivate();
-        SecretKey decrypted = decryptSecret(encodedSecret, algorithm, serverPrivate);
-        SecretKey serverSecret = server.getSecret();
+        if (encodedSecret == null || algorithm == null) return;
+        if (group == null && !server.isLegacyKeyExchange()) return;
+
+        //Ephemeral, even if the client used the legacy exchange
+        KeyPair share = session.getKeyShare();
+        KeyShareGroup shareGroup = session.getKeyShareGroup();
+        session.setKeyShare(null, null);
+
+        KeyShareGroup clientGroup = group;
+        byte[] proof = accessProof;
+        int[] suites = offered;
+        boolean stream = Boolean.TRUE.equals(streamRequested);
+        boolean discover = discoverRequested;
+        boolean ticket = ticketRequested;
+
+        offload(server, session, () -> {
+            SecretKey decrypted;
+            if (clientGroup != null) {
+                decrypted = agreeSecret(share, shareGroup, clientGroup, encodedSecret);
+            } else {
+                decrypted = decryptSecret(encodedSecret, algorithm, server.getPair().getPrivate());
+            }
 
-        server.mapKey(channel, decrypted, algorithm);
+            byte[] accessKey = server.getAccessKey();
+            boolean proven = accessKey != null && proof != null && matchesAccessKey(server, accessKey, proof, decrypted, algorithm);
+
+            return () -> {
+                if (exchanged(session)) return;
+                if (accessKey != null && proof != null && !proven) {
+                    reject(server, channel);
+                    return;
+                }
+
+                session.setClientId(connectionId);
+                session.setClientAlgorithm(algorithm);
+                session.setDiscoverRequested(discover);
+                session.setTicketRequested(ticket);
+                completeExchange(session, server, handler, decrypted, suites, stream, accessKey == null || proven);
+            };
+        });
+    }
 
-        MessageBuilder builder = new MessageBuilder();
-        if (server.getAccessKey() == null) {
-            builder.writeUTF(SecureGen.SECRET_ALGORITHM);
-            builder.write(serverSecret.getEncoded());
+    /**
+     * Resume a session server-side. The client presents the
+     * ticket we issued on its previous connection, and both derive
+     * the connection secret from the ticket resumption secret, so
+     * no asymmetric operation is performed. The ticket proves the
+     * client already provided the access key. If the ticket is not
+     * valid the client performs the key exchange instead
+     *
+     * @param message the resume message
+     * @param server  the server
+     * @param channel the sender
+     * @param handler the message handler
+     */
+    public static void resume(final BaseMessage message, final Server server, final Channel channel,
+                              final BaseServerHandlers handler) {
+        ConnectionSession session = ConnectionSession.get(channel);
+        MessageView view = MessageView.of(message);
+        if (session == null) return;
+
+        if (exchanged(session) || session.isHandshaking()) {
+            channel.close();
+            return;
         }
 
-        builder.writeBoolean(server.getAccessKey() != null);
-        channel.writeAndFlush(builder.build(Messages.KEY_EXCHANGE));
+        if (session.getKeyShare() == null || view == null || view.count(DataTypes.INT64) == 0 || view.count(DataTypes.BYTE) < 2) return;
 
-        if (server.getAccessKey() == null) {
-            RemoteClient rm = new es.karmadev.api.netty.RemoteClient(connectionId, server, channel);
-            rm.getProperties().put("id", channel.id().asShortText());
+        long connectionId = view.getInt64(0);
+        byte[] data = view.getBytes(0);
+        byte[] clientNonce = view.getBytes(1);
 
-            server.getConnectedClients().put(channel.id().asLongText(), rm);
+        int[] offered = new int[view.count(DataTypes.INT16)];
+        for (int i = 0; i < offered.length; i++) offered[i] = view.getInt16(i);
 
-            NetworkEvent event = new ClientConnectedEvent(rm);
-            server.handle(event);
+        boolean streamRequested = view.count(DataTypes.BOOLEAN) > 0 && view.getBoolean(0);
+        boolean discoverRequested = view.count(DataTypes.BOOLEAN) > 1 && view.getBoolean(1);
+
+        TicketKeys tickets = server.getTickets();
+        offload(server, session, () -> {
+            TicketKeys.Ticket ticket = tickets != null ? tickets.open(data) : null;
+            if (ticket == null || ticket.getClientId() != connectionId) {
+                //The client falls back to our key share
+                return () -> channel.writeAndFlush(MessageBuilder.pooled().compression(server.getCompression()).build(Messages.RESUME));
+            }
+
+            /*
+            Our nonce is part of the secret, so a replayed
+            resume never results in a secret we already used
+             */
+            byte[] serverNonce = SecureGen.generateNonce();
+            SecretKey secret = SecureGen.deriveResumed(ticket.getResumption(), clientNonce, serverNonce);
+
+            return () -> {
+                if (exchanged(session)) return;
+
+                MessageBuilder builder = MessageBuilder.pooled().compression(server.getCompression());
+                builder.write(serverNonce);
+                channel.write(builder.build(Messages.RESUME));
+
+                session.setKeyShare(null, null);
+                session.setClientId(connectionId);
+                session.setClientAlgorithm(SecureGen.SECRET_ALGORITHM);
+                session.setDiscoverRequested(discoverRequested);
+                session.setTicketRequested(true);
+                completeExchange(session, server, handler, secret, offered, streamRequested, true);
+            };
+        });
+    }
+
+    /**
+     * Run a handshake step at the server handshake
+     * executor. The connection is marked as handshaking
+     * until the step completes, so it cannot queue more
+     * steps meanwhile. Connections are rejected if the
+     * executor is saturated
+     *
+     * @param server  the server
+     * @param session the connection session
+     * @param step the handshake step
+     */
+    private static void offload(final Server server, final ConnectionSession session, final Callable<HandshakeExecutor.Completion> step) {
+        Channel channel = session.getChannel();
+        session.setHandshaking(true);
+
+        HandshakeExecutor handshakes = server.getHandshakes();
+        if (handshakes != null && handshakes.submit(channel, () -> {
+            HandshakeExecutor.Completion completion = step.call();
+            return () -> {
+                session.setHandshaking(false);
+                completion.complete();
+            };
+        })) return;
+
+        AdmissionController admission = server.getAdmission();
+        admission.reject(channel, server.getCompression(), admission.getRetryAfter());
+    }
+
+    /**
+     * Get if the connection already exchanged
+     * its secret, or is already connected
+     *
+     * @param session the client connection session
+     * @return if the secret was exchanged
+     */
+    private static boolean exchanged(final ConnectionSession session) {
+        return session.getClient() != null || session.getClientKey() != null;
+    }
+
+    /**
+     * Complete the key exchange, once we know
+     * the client secret
+     *
+     * @param session the client connection session
+     * @param server  the server
+     * @param handler the message handler
+     * @param secret the client secret
+     * @param offered the cipher suites the client offered
+     * @param streamRequested if the client requested stream compression
+     * @param granted if the client is granted access
+     * @throws IOException if the exchange message fails to build
+     */
+    private static void completeExchange(final ConnectionSession session, final Server server, final BaseServerHandlers handler,
+                                         final SecretKey secret, final int[] offered, final boolean streamRequested,
+                                         final boolean granted) throws IOException {
+        Channel channel = session.getChannel();
+
+        CipherSuite suite = CipherSuite.select(offered);
+        if (suite != null) {
+            session.getCipher().accept(secret, suite); //The response is already sealed
         } else {
-            connectionIds.put(channel.id().asLongText(), connectionId);
-            clientKeys.put(channel.id().asLongText(), decrypted);
-            clientKeyAlgorithms.put(channel.id().asLongText(), algorithm);
+            server.mapKey(channel, secret);
+        }
+
+        MessageBuilder builder = MessageBuilder.pooled().compression(server.getCompression());
+        if (granted && suite == null) {
+            builder.writeUTF(SecureGen.SECRET_ALGORITHM);
+            builder.write(server.getSecret().getEncoded());
         }
+
+        StreamCompression streamCompression = server.getStreamCompression();
+        boolean streamAccepted = streamRequested && streamCompression != null;
+
+        builder.writeBoolean(!granted);
+        builder.writeBoolean(streamAccepted);
+        builder.writeBoolean(session.isDiscoverRequested());
+        channel.write(builder.build(Messages.KEY_EXCHANGE));
+
+        if (streamAccepted) {
+            StreamContext stream = StreamContext.get(channel);
+            if (stream != null) stream.startCompressing(streamCompression);
+        }
+
+        session.setClientKey(secret);
+        if (granted) connect(session, server, handler);
+
+        channel.flush();
     }
 
     /**
@@ -106,48 +325,163 @@ class CryptoHelper {
      * @param message the access key message
      * @param channel the client validating the access key
      * @param server  the server
+     * @param handler the message handler
+     */
+    public static void validateAccessKey(final BaseMessage message, final Channel channel, final Server server,
+                                         final BaseServerHandlers handler) {
+        ConnectionSession session = ConnectionSession.get(channel);
+        MessageView view = MessageView.of(message);
+        if (session == null || session.getClient() != null || view == null || view.count(DataTypes.BYTE) == 0) return;
+
+        SecretKey clientKey = session.getClientKey();
+        String clientAlgorithm = session.getClientAlgorithm();
+        byte[] accessKey = server.getAccessKey();
+        if (clientKey == null || clientAlgorithm == null || accessKey == null) return;
+
+        if (session.isHandshaking()) {
+            channel.close();
+            return;
+        }
+
+        byte[] proof = view.getBytes(0);
+        offload(server, session, () -> {
+            boolean proven = matchesAccessKey(server, accessKey, proof, clientKey, clientAlgorithm);
+            return () -> {
+                if (!proven) {
+                    reject(server, channel);
+                    return;
+                }
+
+                grantAccess(session, server, handler);
+            };
+        });
+    }
+
+    /**
+     * Grant access to a client which
+     * provided the access key
+     *
+     * @param session the client connection session
+     * @param server  the server
+     * @param handler the message handler
      * @throws IOException if the key message fails to build
      */
-    public static void validateAccessKey(final BaseMessage message, final Channel channel, final Server server) throws IOException {
+    private static void grantAccess(final ConnectionSession session, final Server server, final BaseServerHandlers handler) throws IOException {
+        Channel channel = session.getChannel();
+        if (session.getClient() != null) return;
+
         SecretKey secret = server.getSecret();
 
-        Long connectionId = connectionIds.get(channel.id().asLongText());
-        byte[] encodedAccessKey = message.clone().getBytes();
-        if (encodedAccessKey == null || connectionId == null) return;
+        /*
+        Sealed connections don't use our secret, so
+        there's no need to share it with them
+         */
+        MessageBuilder builder = MessageBuilder.pooled().compression(server.getCompression());
+        if (!session.getCipher().isSealed()) {
+            builder.writeUTF(SecureGen.SECRET_ALGORITHM);
+            builder.write(secret.getEncoded());
+        }
+        builder.writeBoolean(false);
 
-        SecretKey clientKey = clientKeys.get(channel.id().asLongText());
-        String clientAlgorithm = clientKeyAlgorithms.get(channel.id().asLongText());
+        StreamContext stream = StreamContext.get(channel);
+        builder.writeBoolean(stream != null && stream.isCompressing());
 
-        if (clientKey == null || clientAlgorithm == null) return;
+        builder.writeBoolean(session.isDiscoverRequested());
+        channel.write(builder.build(Messages.KEY_EXCHANGE));
 
-        byte[] accessKey = SecurityProvider.getInstance(clientAlgorithm)
-                .decodeData(encodedAccessKey, clientKey);
-        byte[] serverKnownKey = SecureGen.SECRET_PROVIDER
-                .encodeData(accessKey, secret);
+        connect(session, server, handler);
 
-        if (!Arrays.equals(serverKnownKey, server.getAccessKey())) {
-            MessageBuilder builder = new MessageBuilder();
-            BaseMessage response = builder.build(Messages.DISCONNECTION);
-            channel.writeAndFlush(response)
-                    .addListener((future) -> channel.disconnect());
+        channel.flush();
+    }
 
-            return;
-        }
+    /**
+     * Check an access key proof against the
+     * server access key
+     *
+     * @param server the server
+     * @param accessKey the server access key
+     * @param proof the access key, encoded with the client secret
+     * @param clientKey the client secret
+     * @param clientAlgorithm the client secret algorithm
+     * @return if the proof matches the access key
+     */
+    private static boolean matchesAccessKey(final Server server, final byte[] accessKey, final byte[] proof,
+                                            final SecretKey clientKey, final String clientAlgorithm) {
+        byte[] clientAccessKey = SecurityProvider.getInstance(clientAlgorithm)
+                .decodeData(proof, clientKey);
+        byte[] serverKnownKey = SecureGen.SECRET_PROVIDER
+                .encodeData(clientAccessKey, server.getSecret());
 
-        MessageBuilder builder = new MessageBuilder();
-        builder.writeUTF(SecureGen.SECRET_ALGORITHM);
-        builder.write(secret.getEncoded());
-        builder.writeBoolean(false);
+        return MessageDigest.isEqual(serverKnownKey, accessKey);
+    }
+
+    /**
+     * Reject a client, which failed to
+     * provide the access key
+     *
+     * @param server the server
+     * @param channel the client
+     * @throws IOException if the disconnection message fails to build
+     */
+    private static void reject(final Server server, final Channel channel) throws IOException {
+        MessageBuilder builder = MessageBuilder.pooled().compression(server.getCompression());
+        BaseMessage response = builder.build(Messages.DISCONNECTION);
+        channel.writeAndFlush(response)
+                .addListener((future) -> channel.disconnect());
+    }
 
-        channel.writeAndFlush(builder.build(Messages.KEY_EXCHANGE));
+    /**
+     * Complete the connection of a client. The channels
+     * the client can join are pushed to it if it requested
+     * so on the key exchange, saving it a round trip
+     *
+     * @param session the client connection session
+     * @param server  the server
+     * @param handler the message handler
+     */
+    private static void connect(final ConnectionSession session, final Server server, final BaseServerHandlers handler) {
+        Channel channel = session.getChannel();
+        server.getAdmission().complete(channel);
+        issueTicket(session, server);
 
-        RemoteClient rm = new es.karmadev.api.netty.RemoteClient(connectionId, server, channel);
+        RemoteClient rm = new es.karmadev.api.netty.RemoteClient(session.getClientId(), server, channel);
         rm.getProperties().put("id", channel.id().asShortText());
 
-        server.getConnectedClients().put(channel.id().asLongText(), rm);
+        session.setClient(rm);
+        server.getConnectedClients().add(rm);
 
         NetworkEvent event = new ClientConnectedEvent(rm);
         server.handle(event);
+
+        if (session.isDiscoverRequested()) handler.handleDiscover(rm, true);
+    }
+
+    /**
+     * Issue a resumption ticket to the client, so it
+     * can resume the session when it reconnects. The
+     * client secret is not needed anymore after this
+     *
+     * @param session the client connection session
+     * @param server  the server
+     */
+    private static void issueTicket(final ConnectionSession session, final Server server) {
+        SecretKey secret = session.getClientKey();
+        session.setClientKey(null);
+        session.setClientAlgorithm(null);
+
+        TicketKeys tickets = server.getTickets();
+        if (tickets == null || secret == null || !session.isTicketRequested()) return;
+
+        SecretKey resumption = SecureGen.deriveResumption(secret);
+        if (resumption == null) return;
+
+        try {
+            MessageBuilder builder = MessageBuilder.pooled().compression(server.getCompression());
+            builder.write(tickets.issue(session.getClientId(), resumption));
+            builder.writeInt64(tickets.getLifetime());
+
+            session.getChannel().write(builder.build(Messages.TICKET));
+        } catch (IOException ignored) {}
     }
 
     /**
@@ -162,21 +496,54 @@ class CryptoHelper {
      */
     public static void handleEncoded(final BaseMessage message, final Server server,
                                      final Channel channel, final BaseServerHandlers handler) throws IOException, DataFormatException {
-        Long originalId = message.getInt64();
-        if (originalId == null) return;
-        byte[] encodedData = message.getBytes();
-        byte[] decodedData = SecurityProvider.getInstance(SecureGen.SECRET_ALGORITHM)
-                .decodeData(encodedData, server.getSecret());
+        MessageView view = MessageView.of(message);
+        if (view == null || view.count(DataTypes.INT64) == 0 || view.count(DataTypes.BYTE) == 0) return;
+
+        CipherSession session = CipherSession.get(channel);
+        if (session == null || !session.canDecrypt()) return;
+
+        long originalId = view.getInt64(0);
+        ByteBuf decodedData = session.decrypt(channel.alloc(), view.sliceBytes(0));
+
+        DecMessage decoded;
+        try {
+            decoded = new DecMessage(originalId, decodedData, StreamContext.get(channel));
+        } catch (IOException | DataFormatException | RuntimeException ex) {
+            decodedData.release();
+            throw ex;
+        }
+
+        try {
+            handleDecoded(decoded, server, channel, handler);
+        } finally {
+            decoded.release();
+        }
+    }
 
-        DecMessage decoded = new DecMessage(originalId, decodedData);
+    /**
+     * Handle a decoded message, either decrypted from
+     * an encoded message, or opened from a sealed record
+     *
+     * @param decoded the decoded message
+     * @param server  the server
+     * @param channel the sender
+     * @param handler the message handler
+     */
+    public static void handleDecoded(final BaseMessage decoded, final Server server,
+                                     final Channel channel, final BaseServerHandlers handler) {
         if (Messages.isValid(decoded.getId())) {
             Messages decodedMessage = Messages.getById(decoded.getId());
             assert decodedMessage != null;
 
-            RemoteClient rm = server.getConnectedClients().get(channel.id().asLongText());
+            ConnectionSession session = ConnectionSession.get(channel);
+            RemoteClient rm = session != null ? session.getClient() : null;
             if (rm == null) return; //Unsafe communication
 
-            DirectMessageEvent event = new DirectMessageEvent(rm, decoded.clone());
+            /*
+            Handlers read the message through its view, so the
+            subscribers can use the message read cursors directly
+             */
+            DirectMessageEvent event = new DirectMessageEvent(rm, decoded);
             server.handle(event);
 
             if (event.isCancelled()) return;
@@ -184,13 +551,23 @@ class CryptoHelper {
             Messages decodedType = Messages.getById(decoded.getId());
             assert decodedType != null;
 
-            boolean handled = handler.handleEvent(decodedType, decoded.clone(), channel);
+            boolean handled = handler.handleEvent(decodedType, decoded, channel);
             if (!handled) {
                 //TODO: Log warning
             }
         }
     }
 
+    private static SecretKey agreeSecret(final KeyPair share, final KeyShareGroup shareGroup,
+                                         final KeyShareGroup group, final byte[] clientShare) {
+        if (share == null || group != shareGroup) {
+            throw new SecurityException("Client answered to a key share we didn't send");
+        }
+
+        byte[] shared = group.agree(share.getPrivate(), clientShare);
+        return SecureGen.deriveSecret(shared, share.getPublic().getEncoded(), clientShare);
+    }
+
     private static SecretKey decryptSecret(final byte[] data, final String algorithm, final PrivateKey key) {
         byte[] decoded = SecureGen.PAIR_PROVIDER
                 .decodeData(data, key);
@@ -24,13 +24,18 @@ import es.karmadev.api.channel.data.BaseMessage;
 import es.karmadev.api.channel.subscription.event.NetworkEvent;
 import es.karmadev.api.channel.subscription.event.connection.server.ClientDisconnectedEvent;
 import es.karmadev.api.channel.subscription.event.connection.server.ClientPreConnectEvent;
+import es.karmadev.api.netty.ConnectionSession;
 import es.karmadev.api.netty.Server;
+import es.karmadev.api.netty.VirtualChannel;
 import es.karmadev.api.netty.message.nat.Messages;
+import es.karmadev.api.netty.secure.CipherSession;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
 
 import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
 
 @ThreadSafe
 public class ServerHandler extends ChannelInboundHandlerAdapter {
@@ -49,21 +54,44 @@ public class ServerHandler extends ChannelInboundHandlerAdapter {
 
         if (msg instanceof BaseMessage) {
             BaseMessage message = (BaseMessage) msg;
-            long id = message.getId();
-
-            Messages type = Messages.getById(id);
-            if (type == null) return;
-
-            if (type.equals(Messages.KEY_EXCHANGE)) {
-                CryptoHelper.performKeyExchange(message, server, channel);
-            }
-
-            if (server.getAccessKey() != null && type.equals(Messages.ACCESS_KEY)) {
-                CryptoHelper.validateAccessKey(message, channel, server);
-            }
-
-            if (type.equals(Messages.ENCODED)) {
-                CryptoHelper.handleEncoded(message, server, channel, handler);
+            try {
+                long id = message.getId();
+
+                /*
+                Sealed connections only emit opened messages, so
+                they are handled as the encoded ones once decrypted
+                 */
+                CipherSession session = CipherSession.get(channel);
+                if (session != null && session.isSealed()) {
+                    if (server.getAccessKey() != null && id == Messages.ACCESS_KEY.getId()) {
+                        CryptoHelper.validateAccessKey(message, channel, server, handler);
+                    } else {
+                        CryptoHelper.handleDecoded(message, server, channel, handler);
+                    }
+
+                    return;
+                }
+
+                Messages type = Messages.getById(id);
+                if (type == null) return;
+
+                if (type.equals(Messages.KEY_EXCHANGE)) {
+                    CryptoHelper.performKeyExchange(message, server, channel, handler);
+                }
+
+                if (type.equals(Messages.RESUME)) {
+                    CryptoHelper.resume(message, server, channel, handler);
+                }
+
+                if (server.getAccessKey() != null && type.equals(Messages.ACCESS_KEY)) {
+                    CryptoHelper.validateAccessKey(message, channel, server, handler);
+                }
+
+                if (type.equals(Messages.ENCODED)) {
+                    CryptoHelper.handleEncoded(message, server, channel, handler);
+                }
+            } finally {
+                ReferenceCountUtil.release(message);
             }
 
             return;
@@ -83,16 +111,21 @@ public class ServerHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         Channel channel = ctx.channel();
-        RemoteClient rm = server.getConnectedClients().get(channel.id().asLongText());
-        if (rm == null) {
-            super.channelInactive(ctx);
-            return;
-        }; //Unsafe communication
+        ConnectionSession session = ConnectionSession.get(channel);
+        RemoteClient rm = session != null ? session.getClient() : null;
 
-        NetworkEvent event = new ClientDisconnectedEvent(rm);
-        server.handle(event);
+        try {
+            if (rm != null) {
+                NetworkEvent event = new ClientDisconnectedEvent(rm);
+                server.handle(event);
+
+                for (VirtualChannel vc : new ArrayList<>(session.getChannels())) handler.leave(vc, rm, channel);
+                server.getConnectedClients().remove(rm);
+            }
+        } finally {
+            ConnectionSession.detach(channel);
+        }
 
-        server.getConnectedClients().remove(channel.id().asLongText());
         super.channelInactive(ctx);
     }
 